@@ -0,0 +1,343 @@
+package com.github.zabbix.agent;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import com.github.zabbix.agent.data.KeyRegistry;
+import com.github.zabbix.agent.data.ResultBatch;
+
+/**
+ * Writes "agent data" requests straight into a reusable direct buffer.<br>
+ * Host name and keys are escaped and encoded once, numbers are written digit by digit,
+ * string values are escaped and encoded to UTF-8 in place. So no JSON tree, String or byte
+ * array is created per value (except for double values). The Zabbix header is kept in a
+ * separate buffer, its length is set when the body is complete, and both are sent with
+ * one gathering write.<br>
+ * If compression is enabled, bodies of {@link #COMPRESSION_THRESHOLD} bytes and more are compressed
+ * with zlib. Large packet framing is used when the data sent or the uncompressed body is larger than
+ * {@link #LARGE_PACKET_THRESHOLD}.<br>
+ * Not thread safe.
+ *
+ * @author Victor Kadachigov
+ */
+public class AgentDataEncoder
+{
+	private static final int INITIAL_CAPACITY = 64 * 1024;
+	private static final int CHUNK_SIZE = 64 * 1024;
+	/** Smaller messages are sent uncompressed, it is not worth it */
+	static final int COMPRESSION_THRESHOLD = 1024;
+	/** Max size of a standard packet accepted by Zabbix server */
+	static final long LARGE_PACKET_THRESHOLD = 1024L * 1024 * 1024;
+	private static final byte[] HEX = ascii("0123456789abcdef");
+	private static final byte[] MIN_LONG = ascii(Long.toString(Long.MIN_VALUE));
+	private static final byte[] TRUE = ascii("true");
+	private static final byte[] FALSE = ascii("false");
+
+	private static final byte[] REQUEST_START = ascii("{\"" + Protocol.JSON_TAG_REQUEST + "\":\"agent data\",\"" + Protocol.JSON_TAG_DATA + "\":[");
+	private static final byte[] REQUEST_END = ascii("],\"" + Protocol.JSON_TAG_CLOCK + "\":");
+	private static final byte[] ITEM_HOST = ascii("{\"" + Protocol.JSON_TAG_HOST + "\":\"");
+	private static final byte[] ITEM_KEY = ascii("\",\"" + Protocol.JSON_TAG_KEY + "\":\"");
+	private static final byte[] ITEM_VALUE = ascii("\",\"" + Protocol.JSON_TAG_VALUE + "\":\"");
+	private static final byte[] ITEM_STATE = ascii("\",\"" + Protocol.JSON_TAG_STATE + "\":");
+	private static final byte[] ITEM_CLOCK = ascii(",\"" + Protocol.JSON_TAG_CLOCK + "\":");
+
+	private final ByteBuffer header = ByteBuffer.allocateDirect(Protocol.MAX_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	private final ByteBuffer[] message = new ByteBuffer[2];
+	private final byte[] digits = new byte[20];
+	private ByteBuffer body = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+	private ByteBuffer compressed;
+	private final boolean compression;
+	private final Deflater deflater = new Deflater();
+	private final byte[] input = new byte[CHUNK_SIZE];
+	private final byte[] output = new byte[CHUNK_SIZE];
+
+	private String host;
+	private byte[] hostBytes;
+	/** Registry the cached keys belong to */
+	private KeyRegistry keys;
+	/** Escaped keys by key id */
+	private byte[][] keyBytes = new byte[0][];
+
+	public AgentDataEncoder()
+	{
+		this(true);
+	}
+
+	/**
+	 * @param compression false for servers older than Zabbix 4.0
+	 */
+	public AgentDataEncoder(boolean compression)
+	{
+		this.compression = compression;
+	}
+
+	/**
+	 * @param clock request time in ms
+	 * @return header and body of the message, valid until the next call
+	 */
+	public ByteBuffer[] encode(ResultBatch batch, String host, long clock)
+	{
+		if (!host.equals(this.host))
+		{
+			this.host = host;
+			hostBytes = escape(host);
+		}
+		if (batch.getKeys() != keys)
+		{
+			keys = batch.getKeys();
+			keyBytes = new byte[keys.size()][];
+		}
+
+		body.clear();
+		put(REQUEST_START);
+		for (int i = 0; i < batch.size(); i++)
+		{
+			if (i > 0)
+				put((byte)',');
+			put(ITEM_HOST);
+			put(hostBytes);
+			put(ITEM_KEY);
+			put(getKeyBytes(batch.getKeyId(i)));
+			put(ITEM_VALUE);
+			putValue(batch, i);
+			if (batch.getState(i) != ResultBatch.STATE_NORMAL)
+			{
+				put(ITEM_STATE);
+				putLong(batch.getState(i));
+			}
+			else
+				put((byte)'"');
+			put(ITEM_CLOCK);
+			putLong(clock(batch.getClock(i)));
+			put((byte)'}');
+		}
+		put(REQUEST_END);
+		putLong(clock(clock));
+		put((byte)'}');
+		body.flip();
+
+		int flags = Protocol.FLAG_PROTOCOL;
+		long length = body.remaining();
+		ByteBuffer data = body;
+		if (compression && length >= COMPRESSION_THRESHOLD)
+		{
+			data = compress(body);
+			flags |= Protocol.FLAG_COMPRESSED;
+		}
+		// the server checks both the data length and the uncompressed length kept in the reserved field
+		if (data.remaining() > LARGE_PACKET_THRESHOLD || length > LARGE_PACKET_THRESHOLD)
+			flags |= Protocol.FLAG_LARGE;
+
+		header.clear();
+		Protocol.putHeader(header, flags, data.remaining(), (flags & Protocol.FLAG_COMPRESSED) != 0 ? length : 0);
+		header.flip();
+
+		message[0] = header;
+		message[1] = data;
+		return message;
+	}
+
+	private ByteBuffer compress(ByteBuffer data)
+	{
+		if (compressed == null)
+			compressed = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+		compressed.clear();
+		deflater.reset();
+
+		ByteBuffer source = data.duplicate();
+		while (source.hasRemaining())
+		{
+			int n = Math.min(source.remaining(), input.length);
+			source.get(input, 0, n);
+			deflater.setInput(input, 0, n);
+			while (!deflater.needsInput())
+				putCompressed(deflater.deflate(output));
+		}
+		deflater.finish();
+		while (!deflater.finished())
+			putCompressed(deflater.deflate(output));
+
+		compressed.flip();
+		return compressed;
+	}
+
+	private void putCompressed(int length)
+	{
+		compressed = ensure(compressed, length);
+		compressed.put(output, 0, length);
+	}
+
+	/**
+	 * @return uncompressed body of the last message, for logging
+	 */
+	public String getText()
+	{
+		ByteBuffer buffer = body.duplicate();
+		buffer.rewind();
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private void putValue(ResultBatch batch, int index)
+	{
+		switch (batch.getType(index))
+		{
+			case ResultBatch.TYPE_LONG:
+				putLong(batch.getNumber(index));
+				break;
+			case ResultBatch.TYPE_BOOLEAN:
+				put(batch.getNumber(index) != 0 ? TRUE : FALSE);
+				break;
+			case ResultBatch.TYPE_DOUBLE:
+			case ResultBatch.TYPE_FLOAT:
+				putString(batch.getValue(index));
+				break;
+			default:
+				putString(batch.getString(index));
+		}
+	}
+
+	private byte[] getKeyBytes(int keyId)
+	{
+		if (keyId >= keyBytes.length)
+			keyBytes = Arrays.copyOf(keyBytes, Math.max(keyId + 1, keyBytes.length * 2));
+		byte[] result = keyBytes[keyId];
+		if (result == null)
+		{
+			result = escape(keys.get(keyId).getKey());
+			keyBytes[keyId] = result;
+		}
+		return result;
+	}
+
+	private void put(byte b)
+	{
+		body = ensure(body, 1);
+		body.put(b);
+	}
+
+	private void put(byte[] bytes)
+	{
+		body = ensure(body, bytes.length);
+		body.put(bytes);
+	}
+
+	private void putLong(long value)
+	{
+		if (value == Long.MIN_VALUE)
+		{
+			put(MIN_LONG);
+			return;
+		}
+		body = ensure(body, digits.length);
+		if (value < 0)
+		{
+			body.put((byte)'-');
+			value = -value;
+		}
+		int i = digits.length;
+		do
+		{
+			digits[--i] = (byte)('0' + value % 10);
+			value /= 10;
+		}
+		while (value != 0);
+		body.put(digits, i, digits.length - i);
+	}
+
+	/**
+	 * Escapes the string as JSON string content and encodes it to UTF-8
+	 */
+	private void putString(String s)
+	{
+		// 6 bytes is the longest form of one char: \\u001f
+		body = ensure(body, s.length() * 6);
+		for (int i = 0; i < s.length(); i++)
+		{
+			char ch = s.charAt(i);
+			if (ch == '"' || ch == '\\')
+			{
+				body.put((byte)'\\');
+				body.put((byte)ch);
+			}
+			else if (ch < 0x20)
+			{
+				body.put((byte)'\\');
+				switch (ch)
+				{
+					case '\b': body.put((byte)'b'); break;
+					case '\t': body.put((byte)'t'); break;
+					case '\n': body.put((byte)'n'); break;
+					case '\f': body.put((byte)'f'); break;
+					case '\r': body.put((byte)'r'); break;
+					default:
+						body.put((byte)'u');
+						body.put((byte)'0');
+						body.put((byte)'0');
+						body.put(HEX[ch >> 4]);
+						body.put(HEX[ch & 0xF]);
+				}
+			}
+			else if (ch < 0x80)
+				body.put((byte)ch);
+			else if (ch < 0x800)
+			{
+				body.put((byte)(0xC0 | ch >> 6));
+				body.put((byte)(0x80 | ch & 0x3F));
+			}
+			else if (Character.isHighSurrogate(ch) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1)))
+			{
+				int cp = Character.toCodePoint(ch, s.charAt(++i));
+				body.put((byte)(0xF0 | cp >> 18));
+				body.put((byte)(0x80 | cp >> 12 & 0x3F));
+				body.put((byte)(0x80 | cp >> 6 & 0x3F));
+				body.put((byte)(0x80 | cp & 0x3F));
+			}
+			else if (Character.isSurrogate(ch))
+				body.put((byte)'?'); // the same as String.getBytes() does
+			else
+			{
+				body.put((byte)(0xE0 | ch >> 12));
+				body.put((byte)(0x80 | ch >> 6 & 0x3F));
+				body.put((byte)(0x80 | ch & 0x3F));
+			}
+		}
+	}
+
+	private static ByteBuffer ensure(ByteBuffer buffer, int length)
+	{
+		if (buffer.remaining() >= length)
+			return buffer;
+		int capacity = buffer.capacity();
+		while (capacity - buffer.position() < length)
+			capacity *= 2;
+		ByteBuffer result = ByteBuffer.allocateDirect(capacity);
+		buffer.flip();
+		result.put(buffer);
+		return result;
+	}
+
+	private byte[] escape(String s)
+	{
+		ByteBuffer saved = body;
+		body = ByteBuffer.allocate(s.length() * 6);
+		putString(s);
+		byte[] result = Arrays.copyOf(body.array(), body.position());
+		body = saved;
+		return result;
+	}
+
+	private static long clock(long timestamp)
+	{
+		return timestamp / 1000;
+	}
+
+	private static byte[] ascii(String s)
+	{
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+}
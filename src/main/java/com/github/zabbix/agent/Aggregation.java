@@ -0,0 +1,187 @@
+package com.github.zabbix.agent;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+
+/**
+ * Function of <code>jmx.aggregate</code> reducing attribute values of many MBeans to one number:
+ * <code>sum</code>, <code>avg</code>, <code>min</code>, <code>max</code>, <code>count</code> or
+ * percentile <code>p&lt;N&gt;</code>, e.g. <code>p95</code> or <code>p99.9</code>.<br>
+ * Values are reduced in one pass by {@link Accumulator} with primitive fields. Integer values stay
+ * integers as long as no floating point value is met and the sum does not overflow.<br>
+ * Immutable.
+ *
+ * @author Victor Kadachigov
+ */
+public class Aggregation
+{
+	public enum Function
+	{
+		SUM,
+		AVG,
+		MIN,
+		MAX,
+		COUNT,
+		PERCENTILE;
+	}
+
+	@Getter
+	private final Function function;
+	/** 0-100, for {@link Function#PERCENTILE} only */
+	@Getter
+	private final double percentile;
+
+	private Aggregation(Function function, double percentile)
+	{
+		this.function = function;
+		this.percentile = percentile;
+	}
+
+	public static Aggregation parse(String text) throws ZabbixException
+	{
+		if (text.length() > 1 && Character.toLowerCase(text.charAt(0)) == 'p')
+		{
+			double percentile;
+			try
+			{
+				percentile = Double.parseDouble(text.substring(1));
+			}
+			catch (NumberFormatException ex)
+			{
+				percentile = -1;
+			}
+			if (Double.isNaN(percentile) || percentile < 0 || percentile > 100)
+				throw new ZabbixException("invalid percentile: " + text);
+			return new Aggregation(Function.PERCENTILE, percentile);
+		}
+
+		for (Function function : Function.values())
+			if (function != Function.PERCENTILE && function.name().equalsIgnoreCase(text))
+				return new Aggregation(function, 0);
+		throw new ZabbixException("invalid aggregate function: " + text);
+	}
+
+	public Accumulator newAccumulator()
+	{
+		return new Accumulator();
+	}
+
+	/**
+	 * Not thread safe
+	 */
+	public class Accumulator
+	{
+		private int count;
+		/** No floating point value and no overflow so far */
+		private boolean integral = true;
+		private long longSum;
+		private long longMin = Long.MAX_VALUE;
+		private long longMax = Long.MIN_VALUE;
+		private double sum;
+		private double min = Double.POSITIVE_INFINITY;
+		private double max = Double.NEGATIVE_INFINITY;
+		/** Values for percentile */
+		private double[] values;
+
+		private Accumulator()
+		{
+		}
+
+		public void add(Number value)
+		{
+			if (isIntegral(value))
+				add(value.longValue());
+			else
+				add(value.doubleValue());
+		}
+
+		public void add(long value)
+		{
+			long result = longSum + value;
+			// overflow if both operands differ in sign from the result
+			if (((longSum ^ result) & (value ^ result)) < 0)
+				integral = false;
+			longSum = result;
+			longMin = Math.min(longMin, value);
+			longMax = Math.max(longMax, value);
+			addDouble(value);
+		}
+
+		public void add(double value)
+		{
+			integral = false;
+			addDouble(value);
+		}
+
+		private void addDouble(double value)
+		{
+			sum += value;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+			if (function == Function.PERCENTILE)
+			{
+				if (values == null)
+					values = new double[16];
+				else if (count == values.length)
+					values = Arrays.copyOf(values, count * 2);
+				values[count] = value;
+			}
+			count++;
+		}
+
+		public int getCount()
+		{
+			return count;
+		}
+
+		/**
+		 * @return result, null if it is not defined without values
+		 */
+		public Number getResult()
+		{
+			switch (function)
+			{
+				case COUNT:
+					return count;
+				case SUM:
+					return integral ? (Number)longSum : (Number)sum;
+				default:
+			}
+			if (count == 0)
+				return null;
+
+			switch (function)
+			{
+				case AVG:
+					return sum / count;
+				case MIN:
+					return integral ? (Number)longMin : (Number)min;
+				case MAX:
+					return integral ? (Number)longMax : (Number)max;
+				default:
+					// nearest rank
+					Arrays.sort(values, 0, count);
+					int rank = (int)Math.ceil(percentile / 100 * count);
+					double result = values[Math.max(0, rank - 1)];
+					return integral ? (Number)(long)result : (Number)result;
+			}
+		}
+
+	}
+
+	/**
+	 * @return true if the value is an integer that fits in a long
+	 */
+	static boolean isIntegral(Number value)
+	{
+		return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+				|| value instanceof AtomicLong || value instanceof AtomicInteger
+				|| (value instanceof BigInteger && ((BigInteger)value).bitLength() < 64)
+				|| (value instanceof BigDecimal && ((BigDecimal)value).scale() <= 0 && ((BigDecimal)value).precision() < 19);
+	}
+}
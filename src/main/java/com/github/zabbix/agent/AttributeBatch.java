@@ -0,0 +1,84 @@
+package com.github.zabbix.agent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import lombok.Getter;
+
+/**
+ * All {@link CheckPlan.Type#JMX} plans of a checker task that read the same MBean.<br>
+ * Attribute names are distinct, so every attribute (and every composite data value)
+ * is fetched once per cycle and shared by all the plans taking fields from it.
+ *
+ * @author Victor Kadachigov
+ */
+public class AttributeBatch
+{
+	@Getter
+	private final ObjectName objectName;
+	@Getter
+	private final String[] attributeNames;
+	@Getter
+	private final List<CheckPlan> plans;
+	/** Index in {@link #attributeNames} for every plan */
+	private final int[] attributeIndexes;
+
+	private AttributeBatch(ObjectName objectName, String[] attributeNames, List<CheckPlan> plans, int[] attributeIndexes)
+	{
+		this.objectName = objectName;
+		this.attributeNames = attributeNames;
+		this.plans = plans;
+		this.attributeIndexes = attributeIndexes;
+	}
+
+	public int getAttributeIndex(int planIndex)
+	{
+		return attributeIndexes[planIndex];
+	}
+
+	/**
+	 * Groups {@link CheckPlan.Type#JMX} plans by object name. Other plans are ignored.
+	 */
+	public static List<AttributeBatch> group(List<CheckPlan> checkPlans)
+	{
+		Map<ObjectName, List<CheckPlan>> map = new LinkedHashMap<>();
+		for (CheckPlan plan : checkPlans)
+		{
+			if (plan.getType() != CheckPlan.Type.JMX)
+				continue;
+			List<CheckPlan> list = map.get(plan.getObjectName());
+			if (list == null)
+			{
+				list = new ArrayList<>();
+				map.put(plan.getObjectName(), list);
+			}
+			list.add(plan);
+		}
+
+		List<AttributeBatch> result = new ArrayList<>(map.size());
+		for (Map.Entry<ObjectName, List<CheckPlan>> entry : map.entrySet())
+		{
+			List<CheckPlan> plans = entry.getValue();
+			List<String> names = new ArrayList<>();
+			int[] indexes = new int[plans.size()];
+			for (int i = 0; i < plans.size(); i++)
+			{
+				String name = plans.get(i).getAttributeName();
+				int index = names.indexOf(name);
+				if (index < 0)
+				{
+					index = names.size();
+					names.add(name);
+				}
+				indexes[i] = index;
+			}
+			result.add(new AttributeBatch(entry.getKey(), names.toArray(new String[names.size()]), Collections.unmodifiableList(plans), indexes));
+		}
+		return result;
+	}
+}
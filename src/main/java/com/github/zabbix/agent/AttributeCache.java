@@ -0,0 +1,349 @@
+package com.github.zabbix.agent;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+/**
+ * Read-through cache of MBean attribute values shared by checks of all periods, all active
+ * servers and passive checks.<br>
+ * A value is kept for <code>AttributeCacheTtl</code> ms, so checks reading the same attribute
+ * at about the same time make one MBean call. Reads of an attribute not cached are coalesced:
+ * the first caller reads it, the others wait for its value, but no longer than the wait timeout,
+ * so a hung MBean holds only the thread reading it. Attributes of one MBean missing in
+ * the cache are read with one {@link Loader} call. Failures are kept as values too. Callers computing
+ * rates get the time every value was read at, not the time they got it.<br>
+ * When the cache grows over its size, expired values and then any others are evicted.<br>
+ * Thread safe.
+ *
+ * @author Victor Kadachigov
+ */
+public class AttributeCache
+{
+	/**
+	 * Reads attributes of an MBean
+	 */
+	public interface Loader
+	{
+		/**
+		 * @return values of the attributes in <code>names</code> order, failures included
+		 */
+		Object[] load(ObjectName objectName, String[] names);
+
+		/**
+		 * @return value of an attribute another caller has been reading for longer than the wait timeout
+		 */
+		Object timedOut(ObjectName objectName, String name);
+	}
+
+	/** Value of an entry whose loader failed, waiters read the attribute themselves */
+	private static final Object FAILED = new Object();
+
+	private final long ttl;
+	private final int maxSize;
+	private final long waitTimeout;
+	private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<>();
+	private final AtomicBoolean evicting = new AtomicBoolean();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong waits = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+
+	/**
+	 * @param ttl how long values are kept, ms. If 0, only concurrent reads are coalesced
+	 * @param maxSize max number of values
+	 * @param waitTimeout how long a caller waits for a read of another caller, ms
+	 */
+	public AttributeCache(long ttl, int maxSize, long waitTimeout)
+	{
+		this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+		this.maxSize = maxSize;
+		this.waitTimeout = TimeUnit.MILLISECONDS.toNanos(waitTimeout);
+	}
+
+	/**
+	 * @param wanted attributes to read, <code>null</code> for all
+	 * @return values in <code>names</code> order, <code>null</code> for attributes not wanted
+	 */
+	public Object[] get(ObjectName objectName, String[] names, boolean[] wanted, Loader loader) throws InterruptedException
+	{
+		return get(objectName, names, wanted, loader, null);
+	}
+
+	/**
+	 * @param wanted attributes to read, <code>null</code> for all
+	 * @param loadTimes receives {@link System#nanoTime()} every value was read at, in <code>names</code> order
+	 * @return values in <code>names</code> order, <code>null</code> for attributes not wanted
+	 */
+	public Object[] get(ObjectName objectName, String[] names, boolean[] wanted, Loader loader, long[] loadTimes) throws InterruptedException
+	{
+		Object[] result = new Object[names.length];
+		Entry[] claimed = new Entry[names.length];
+		Entry[] pending = null;
+		int claimedCount = 0;
+
+		long now = System.nanoTime();
+		for (int i = 0; i < names.length; i++)
+		{
+			if (wanted != null && !wanted[i])
+				continue;
+			Key key = new Key(objectName, names[i]);
+			while (true)
+			{
+				Entry entry = entries.get(key);
+				if (entry == null || entry.isExpired(now))
+				{
+					Entry created = new Entry(key);
+					boolean added = entry == null ? entries.putIfAbsent(key, created) == null : entries.replace(key, entry, created);
+					if (!added)
+						continue; // somebody else was faster
+					claimed[i] = created;
+					claimedCount++;
+					misses.incrementAndGet();
+				}
+				else if (entry.isLoaded())
+				{
+					result[i] = entry.value;
+					if (loadTimes != null)
+						loadTimes[i] = entry.loadTime;
+					hits.incrementAndGet();
+				}
+				else
+				{
+					if (pending == null)
+						pending = new Entry[names.length];
+					pending[i] = entry;
+					waits.incrementAndGet();
+				}
+				break;
+			}
+		}
+
+		if (claimedCount > 0)
+		{
+			load(objectName, names, claimed, claimedCount, loader, result, loadTimes);
+			evict();
+		}
+
+		if (pending != null)
+		{
+			// own reads count too, the caller has a deadline for the whole call
+			long deadline = now + waitTimeout;
+			for (int i = 0; i < names.length; i++)
+			{
+				if (pending[i] == null)
+					continue;
+				if (!pending[i].await(deadline - System.nanoTime()))
+				{
+					timeouts.incrementAndGet();
+					result[i] = loader.timedOut(objectName, names[i]);
+					if (loadTimes != null)
+						loadTimes[i] = System.nanoTime();
+					continue;
+				}
+				Object value = pending[i].value;
+				long loadTime = pending[i].loadTime;
+				if (value == FAILED)
+				{
+					long[] times = new long[1];
+					value = get(objectName, new String[] { names[i] }, null, loader, times)[0];
+					loadTime = times[0];
+				}
+				result[i] = value;
+				if (loadTimes != null)
+					loadTimes[i] = loadTime;
+			}
+		}
+		return result;
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * @return number of reads that waited for a read of another caller
+	 */
+	public long getWaits()
+	{
+		return waits.get();
+	}
+
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	/**
+	 * @return number of waits for a read of another caller that timed out
+	 */
+	public long getTimeouts()
+	{
+		return timeouts.get();
+	}
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "size: " + size() + "; hits: " + getHits() + "; misses: " + getMisses()
+				+ "; waits: " + getWaits() + "; evictions: " + getEvictions() + "; timeouts: " + getTimeouts();
+	}
+
+	private void load(ObjectName objectName, String[] names, Entry[] claimed, int claimedCount, Loader loader, Object[] result, long[] loadTimes)
+	{
+		String[] request = new String[claimedCount];
+		for (int i = 0, j = 0; i < names.length; i++)
+			if (claimed[i] != null)
+				request[j++] = names[i];
+
+		Object[] values = null;
+		try
+		{
+			values = loader.load(objectName, request);
+		}
+		finally
+		{
+			// waiters must be released whatever happens
+			long loadTime = System.nanoTime();
+			for (int i = 0, j = 0; i < names.length; i++)
+			{
+				Entry entry = claimed[i];
+				if (entry == null)
+					continue;
+				if (loadTimes != null)
+					loadTimes[i] = loadTime;
+				if (values != null)
+				{
+					result[i] = values[j++];
+					entry.set(result[i], loadTime + ttl, loadTime);
+				}
+				else
+				{
+					entries.remove(entry.key, entry);
+					entry.set(FAILED, loadTime + ttl, loadTime);
+				}
+			}
+		}
+	}
+
+	private void evict()
+	{
+		if (entries.size() <= maxSize || !evicting.compareAndSet(false, true))
+			return;
+		try
+		{
+			long now = System.nanoTime();
+			for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); )
+			{
+				if (it.next().isExpired(now))
+				{
+					it.remove();
+					evictions.incrementAndGet();
+				}
+			}
+
+			// leave some room not to evict on every miss
+			int target = maxSize - maxSize / 10;
+			for (Iterator<Entry> it = entries.values().iterator(); it.hasNext() && entries.size() > target; )
+			{
+				if (it.next().isLoaded())
+				{
+					it.remove();
+					evictions.incrementAndGet();
+				}
+			}
+		}
+		finally
+		{
+			evicting.set(false);
+		}
+	}
+
+	private static class Key
+	{
+		private final ObjectName objectName;
+		private final String attributeName;
+
+		private Key(ObjectName objectName, String attributeName)
+		{
+			this.objectName = objectName;
+			this.attributeName = attributeName;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return objectName.hashCode() * 31 + attributeName.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key)obj;
+			return objectName.equals(other.objectName) && attributeName.equals(other.attributeName);
+		}
+	}
+
+	private static class Entry
+	{
+		private final Key key;
+		private final CountDownLatch loaded = new CountDownLatch(1);
+		private volatile Object value;
+		/** System.nanoTime() the value expires at */
+		private volatile long expires;
+		/** System.nanoTime() the value was read at */
+		private volatile long loadTime;
+
+		private Entry(Key key)
+		{
+			this.key = key;
+		}
+
+		private boolean isLoaded()
+		{
+			return loaded.getCount() == 0;
+		}
+
+		private boolean isExpired(long now)
+		{
+			return isLoaded() && now - expires >= 0;
+		}
+
+		private void set(Object value, long expires, long loadTime)
+		{
+			this.value = value;
+			this.expires = expires;
+			this.loadTime = loadTime;
+			loaded.countDown();
+		}
+
+		/**
+		 * @return false if the value is not loaded in time
+		 */
+		private boolean await(long nanos) throws InterruptedException
+		{
+			return loaded.await(nanos, TimeUnit.NANOSECONDS);
+		}
+	}
+}
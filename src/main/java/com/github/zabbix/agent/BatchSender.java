@@ -0,0 +1,281 @@
+package com.github.zabbix.agent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
+import com.github.zabbix.agent.data.KeyRegistry;
+import com.github.zabbix.agent.data.ResultBatch;
+import com.github.zabbix.agent.data.ServerAddress;
+import com.github.zabbix.agent.util.DaemonThreadFactory;
+import com.github.zabbix.agent.util.FlushPolicy;
+
+import lombok.Getter;
+import lombok.extern.java.Log;
+
+/**
+ * Sends values as "agent data" requests of at most <code>MaxBatchSize</code> values, up to
+ * <code>MaxInflightBatches</code> requests at the same time.<br>
+ * Every batch is acknowledged separately. Accepted batches are released in order, so the source
+ * is told to forget values only up to the first batch not accepted yet. Failed batches are kept,
+ * split if {@link FlushPolicy} has made the batch size smaller, and sent again first.<br>
+ * Not thread safe, parallel requests are made by own threads.
+ *
+ * @author Victor Kadachigov
+ */
+@Log(topic="com.github.zabbix.agent")
+public class BatchSender
+{
+	/**
+	 * Values to send
+	 */
+	public interface Source
+	{
+		/**
+		 * Adds at most <code>maxValues</code> values to the batch
+		 *
+		 * @return number of values added
+		 */
+		int read(ResultBatch batch, int maxValues) throws IOException;
+
+		/**
+		 * @return position after the last value read, negative if the source does not keep positions
+		 */
+		long getPosition();
+
+		/**
+		 * Values before the position are accepted by the server
+		 */
+		void commit(long position) throws IOException;
+	}
+
+	private final KeyRegistry keys;
+	private final Protocol[] protocols;
+	/** null if only one request is sent at a time */
+	private final ExecutorService executor;
+	@Getter
+	private final FlushPolicy policy;
+	/** Batches taken from the source and not accepted yet, in source order */
+	private final List<Batch> batches = new ArrayList<>();
+	private final List<ResultBatch> freeBatches = new ArrayList<>();
+	/**
+	 * @return true if a request failed on last {@link #send(Source)}
+	 */
+	@Getter
+	private boolean failed;
+
+	public BatchSender(ServerAddress serverAddress, ZabbixAgentConfig config, KeyRegistry keys, String name)
+	{
+		this.keys = keys;
+		protocols = new Protocol[config.getMaxInflightBatches()];
+		for (int i = 0; i < protocols.length; i++)
+			protocols[i] = new Protocol(serverAddress, config);
+		executor = protocols.length > 1
+						? Executors.newFixedThreadPool(protocols.length - 1, new DaemonThreadFactory(name))
+						: null;
+		// leave a margin to the I/O deadline
+		policy = new FlushPolicy(config.getMaxBatchSize(), config.getBufferSend() * 1000L, config.getTimeout() * 1000L / 3);
+	}
+
+	/**
+	 * @return number of values taken from the source and not accepted by the server yet
+	 */
+	public int size()
+	{
+		int result = 0;
+		for (Batch batch : batches)
+			result += batch.values.size();
+		return result;
+	}
+
+	/**
+	 * Sends values not accepted before and new values from the source
+	 *
+	 * @return number of values accepted by the server
+	 */
+	public int send(Source source) throws IOException
+	{
+		fill(source);
+		failed = false;
+		if (batches.isEmpty())
+			return 0;
+
+		// accepted batches wait for the ones before them
+		List<Batch> requests = new ArrayList<>(protocols.length);
+		for (int i = 0; i < batches.size() && requests.size() < protocols.length; i++)
+			if (!batches.get(i).accepted)
+				requests.add(batches.get(i));
+		
+		List<Future<?>> futures = new ArrayList<>(requests.size());
+		for (int i = 1; i < requests.size(); i++)
+			futures.add(executor.submit(new Request(requests.get(i), protocols[i])));
+		new Request(requests.get(0), protocols[0]).call();
+		for (Future<?> future : futures)
+		{
+			try
+			{
+				future.get();
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+			catch (ExecutionException ex)
+			{
+				// Request catches everything
+			}
+		}
+
+		int result = 0;
+		long oldestClock = Long.MAX_VALUE;
+		for (Batch batch : requests)
+		{
+			if (batch.accepted)
+			{
+				log.log(Level.FINE, "{0} items sent in {1} ms: {2}", new Object[] { batch.values.size(), batch.rtt, batch.info });
+				long rejected = policy.getRejected();
+				long lost = policy.getLost();
+				policy.onSuccess(batch.values.size(), batch.rtt, batch.info);
+				if (policy.getLost() > lost)
+					log.log(Level.WARNING, "{0} of {1} values sent were not received by the server", 
+							new Object[] { policy.getLost() - lost, batch.values.size() });
+				if (policy.getRejected() > rejected)
+					log.log(Level.FINE, "{0} values rejected by the server, their items are not configured or not active", 
+							policy.getRejected() - rejected);
+				result += batch.values.size();
+				oldestClock = Math.min(oldestClock, batch.values.getClock(0));
+			}
+			else
+			{
+				if (!failed)
+					log.severe(batch.error);
+				failed = true;
+				policy.onFailure();
+			}
+		}
+		if (result > 0)
+			log.log(Level.FINE, "{0} items sent, oldest value age {1} ms", new Object[] { result, System.currentTimeMillis() - oldestClock });
+
+		release(source);
+		split();
+		return result;
+	}
+
+	public void shutdown()
+	{
+		if (executor != null)
+			executor.shutdownNow();
+	}
+
+	private void fill(Source source) throws IOException
+	{
+		while (batches.size() < protocols.length)
+		{
+			ResultBatch values = freeBatches.isEmpty() ? new ResultBatch(keys) : freeBatches.remove(freeBatches.size() - 1);
+			if (source.read(values, policy.getBatchSize()) == 0)
+			{
+				freeBatches.add(values);
+				break;
+			}
+			batches.add(new Batch(values, source.getPosition()));
+		}
+	}
+
+	/**
+	 * Removes accepted batches up to the first one not accepted
+	 */
+	private void release(Source source) throws IOException
+	{
+		long position = -1;
+		int n = 0;
+		while (n < batches.size() && batches.get(n).accepted)
+		{
+			Batch batch = batches.get(n++);
+			if (batch.position >= 0)
+				position = batch.position;
+			batch.values.clear();
+			freeBatches.add(batch.values);
+		}
+		batches.subList(0, n).clear();
+		if (position >= 0)
+			source.commit(position);
+	}
+
+	/**
+	 * Splits failed batches larger than the current batch size
+	 */
+	private void split()
+	{
+		int batchSize = policy.getBatchSize();
+		for (int i = 0; i < batches.size(); i++)
+		{
+			Batch batch = batches.get(i);
+			if (batch.accepted || batch.values.size() <= batchSize)
+				continue;
+			ResultBatch tail = freeBatches.isEmpty() ? new ResultBatch(keys) : freeBatches.remove(freeBatches.size() - 1);
+			tail.addAll(batch.values, batchSize, batch.values.size());
+			batch.values.truncate(batchSize);
+			// only the last part ends at the source position
+			batches.add(i + 1, new Batch(tail, batch.position));
+			batch.position = -1;
+		}
+	}
+
+	private class Request implements Callable<Void>
+	{
+		private final Batch batch;
+		private final Protocol protocol;
+
+		private Request(Batch batch, Protocol protocol)
+		{
+			this.batch = batch;
+			this.protocol = protocol;
+		}
+
+		@Override
+		public Void call()
+		{
+			batch.error = null;
+			long start = System.currentTimeMillis();
+			try
+			{
+				batch.info = protocol.sendCheckResults(batch.values);
+				batch.accepted = true;
+			}
+			catch (ZabbixException ex)
+			{
+				batch.error = ex.getMessage();
+			}
+			catch (Exception ex)
+			{
+				batch.error = ex.getClass().getName() + ": " + ex.getMessage();
+				log.log(Level.FINE, ex.getMessage(), ex);
+			}
+			batch.rtt = System.currentTimeMillis() - start;
+			return null;
+		}
+	}
+
+	private static class Batch
+	{
+		private final ResultBatch values;
+		/** Source position after the last value, negative if unknown */
+		private long position;
+		private volatile boolean accepted;
+		private volatile String error;
+		private volatile String info;
+		private volatile long rtt;
+
+		private Batch(ResultBatch values, long position)
+		{
+			this.values = values;
+			this.position = position;
+		}
+	}
+}
@@ -0,0 +1,359 @@
+package com.github.zabbix.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import com.github.zabbix.agent.data.CheckItem;
+import com.github.zabbix.agent.data.ZabbixKey;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Compiled, immutable form of a {@link CheckItem}.<br>
+ * Everything that can be derived from the item key (object name, attribute name,
+ * composite data field path, discovery mode and filter) is resolved once, when the list of
+ * active checks is refreshed, so the poll loop does no parsing at all.
+ *
+ * @author Victor Kadachigov
+ */
+@ToString(doNotUseGetters=true, onlyExplicitlyIncluded=true)
+public class CheckPlan
+{
+	private static final String[] NO_FIELDS = new String[0];
+	private static final int DEFAULT_SAMPLE_INTERVAL = 100;
+	private static final int MIN_SAMPLE_INTERVAL = 10;
+	private static final int MAX_SAMPLE_INTERVAL = 60000;
+
+	public enum Type
+	{
+		JMX,
+		DISCOVERY,
+		/** One number of attribute values of all MBeans matching a pattern */
+		AGGREGATE,
+		/** All attributes of an MBean as one JSON document */
+		BEAN,
+		/** Attribute values read between checks reduced to one number or JSON document */
+		SAMPLE,
+		/** Item that failed to compile, reported as not supported every time it is due */
+		ERROR;
+	}
+
+	/**
+	 * What {@link Type#JMX} returns of a monotonic counter instead of its value
+	 */
+	public enum Counter
+	{
+		/** Change since the previous value */
+		DELTA,
+		/** Change per second since the previous value */
+		RATE;
+	}
+
+	public enum DiscoveryMode
+	{
+		ATTRIBUTES,
+		BEANS,
+		/** Beans with the highest values of an attribute */
+		TOP;
+	}
+
+	@Getter
+	@ToString.Include
+	private final CheckItem item;
+	@Getter
+	private final Type type;
+	/** Object name for {@link Type#JMX}, pattern for {@link Type#AGGREGATE}, filter (may be null) for {@link Type#DISCOVERY} */
+	@Getter
+	private final ObjectName objectName;
+	/** Unescaped attribute name, the attribute beans are ranked by for {@link DiscoveryMode#TOP} */
+	@Getter
+	private final String attributeName;
+	/** Unescaped composite data field names, empty if attribute is not composite */
+	@Getter
+	private final String[] fieldPath;
+	@Getter
+	private final DiscoveryMode discoveryMode;
+	/** MBeans to discover among the ones matching {@link #objectName} */
+	@Getter
+	private final DiscoveryFilter discoveryFilter;
+	/** Max number of discovery rows, 0 if not set in the key */
+	@Getter
+	private final int maxRows;
+	/** Function of {@link Type#AGGREGATE} and {@link Type#SAMPLE}, null for all functions of {@link Type#SAMPLE} */
+	@Getter
+	private final Aggregation aggregation;
+	/** Attributes of {@link Type#BEAN}, null for all readable ones */
+	@Getter
+	private final String[] attributeNames;
+	/** Counter mode of {@link Type#JMX}, null for the value itself */
+	@Getter
+	private final Counter counter;
+	/** How often {@link Type#SAMPLE} reads the attribute, ms */
+	@Getter
+	private final int sampleInterval;
+	/** Bit mask of indexes of active servers the value is sent to */
+	@Getter
+	private final int servers;
+	/** Why the item is not supported, for {@link Type#ERROR} only */
+	@Getter
+	private final String error;
+
+	@Builder(toBuilder=true)
+	private CheckPlan(CheckItem item, Type type, ObjectName objectName, String attributeName, String[] fieldPath, 
+						DiscoveryMode discoveryMode, DiscoveryFilter discoveryFilter, int maxRows, Aggregation aggregation, String[] attributeNames, Counter counter, int sampleInterval, int servers, String error)
+	{
+		this.item = item;
+		this.type = type;
+		this.objectName = objectName;
+		this.attributeName = attributeName;
+		this.fieldPath = fieldPath;
+		this.discoveryMode = discoveryMode;
+		this.discoveryFilter = discoveryFilter;
+		this.maxRows = maxRows;
+		this.aggregation = aggregation;
+		this.attributeNames = attributeNames;
+		this.counter = counter;
+		this.sampleInterval = sampleInterval;
+		this.servers = servers;
+		this.error = error;
+	}
+
+	public ZabbixKey getKey()
+	{
+		return item.getKey();
+	}
+
+	/**
+	 * @return the same plan for other servers
+	 */
+	public CheckPlan withServers(int servers)
+	{
+		return (servers == this.servers) ? this : toBuilder().servers(servers).build();
+	}
+
+	/**
+	 * @return builder of a plan of the item for the first server
+	 */
+	private static CheckPlanBuilder plan(CheckItem item, Type type)
+	{
+		return builder().item(item).type(type).fieldPath(NO_FIELDS).servers(1);
+	}
+
+	/**
+	 * @return plan of the item that failed to compile
+	 */
+	public static CheckPlan error(CheckItem item, String message)
+	{
+		return plan(item, Type.ERROR).error(message).build();
+	}
+
+	public static CheckPlan compile(CheckItem item) throws ZabbixException
+	{
+		ZabbixKey key = item.getKey();
+		try
+		{
+			Counter counter = null;
+			if (key.getKeyId().equals("jmx.delta"))
+				counter = Counter.DELTA;
+			else if (key.getKeyId().equals("jmx.rate"))
+				counter = Counter.RATE;
+
+			if (key.getKeyId().equals("jmx") || counter != null)
+			{
+				if (key.getArgumentCount() != 2)
+					throw new ZabbixException("required key format: " + key.getKeyId() + "[<object name>,<attribute name>]");
+
+				ObjectName objectName = new ObjectName(key.getArgument(1));
+				List<String> path = splitAttributePath(key.getArgument(2));
+				String attributeName = path.remove(0);
+
+				return plan(item, Type.JMX)
+						.objectName(objectName)
+						.attributeName(attributeName)
+						.fieldPath(path.toArray(NO_FIELDS))
+						.counter(counter)
+						.build();
+			}
+			else if (key.getKeyId().equals("jmx.aggregate"))
+			{
+				if (key.getArgumentCount() != 3)
+					throw new ZabbixException("required key format: jmx.aggregate[<object name>,<attribute name>,<function>]");
+
+				ObjectName objectName = new ObjectName(key.getArgument(1));
+				List<String> path = splitAttributePath(key.getArgument(2));
+				String attributeName = path.remove(0);
+				Aggregation aggregation = Aggregation.parse(key.getArgument(3));
+
+				return plan(item, Type.AGGREGATE)
+						.objectName(objectName)
+						.attributeName(attributeName)
+						.fieldPath(path.toArray(NO_FIELDS))
+						.aggregation(aggregation)
+						.build();
+			}
+			else if (key.getKeyId().equals("jmx.sample"))
+			{
+				int argumentCount = key.getArgumentCount();
+				if (argumentCount < 2 || argumentCount > 4)
+					throw new ZabbixException("required key format: jmx.sample[<object name>,<attribute name>,<function>,<interval>]");
+
+				ObjectName objectName = new ObjectName(key.getArgument(1));
+				if (objectName.isPattern())
+					throw new ZabbixException("object name must not be a pattern: " + key.getArgument(1));
+				List<String> path = splitAttributePath(key.getArgument(2));
+				String attributeName = path.remove(0);
+				Aggregation aggregation = null;
+				if (argumentCount >= 3 && !key.getArgument(3).isEmpty())
+					aggregation = Aggregation.parse(key.getArgument(3));
+				int interval = DEFAULT_SAMPLE_INTERVAL;
+				if (argumentCount >= 4 && !key.getArgument(4).isEmpty())
+				{
+					try
+					{
+						interval = Integer.parseInt(key.getArgument(4));
+					}
+					catch (NumberFormatException ex)
+					{
+						interval = -1;
+					}
+					if (interval < MIN_SAMPLE_INTERVAL || interval > MAX_SAMPLE_INTERVAL)
+						throw new ZabbixException("invalid interval, must be in range " + MIN_SAMPLE_INTERVAL + "-" + MAX_SAMPLE_INTERVAL + ": " + key.getArgument(4));
+				}
+
+				return plan(item, Type.SAMPLE)
+						.objectName(objectName)
+						.attributeName(attributeName)
+						.fieldPath(path.toArray(NO_FIELDS))
+						.aggregation(aggregation)
+						.sampleInterval(interval)
+						.build();
+			}
+			else if (key.getKeyId().equals("jmx.bean"))
+			{
+				if (key.getArgumentCount() < 1 || key.getArgument(1).isEmpty())
+					throw new ZabbixException("required key format: jmx.bean[<object name>,<attribute name>,...]");
+
+				ObjectName objectName = new ObjectName(key.getArgument(1));
+				if (objectName.isPattern())
+					throw new ZabbixException("object name must not be a pattern: " + key.getArgument(1));
+				String[] attributeNames = null;
+				if (key.getArgumentCount() > 1)
+				{
+					attributeNames = new String[key.getArgumentCount() - 1];
+					for (int i = 0; i < attributeNames.length; i++)
+						attributeNames[i] = key.getArgument(i + 2);
+				}
+
+				return plan(item, Type.BEAN)
+						.objectName(objectName)
+						.attributeNames(attributeNames)
+						.build();
+			}
+			else if (key.getKeyId().equals("jmx.discovery"))
+			{
+				int argumentCount = key.getArgumentCount();
+				if (argumentCount > 6)
+					throw new ZabbixException("required key format: jmx.discovery[<discovery mode>,<object name>,<include>,<exclude>,<max rows>,<attribute name>]");
+
+				ObjectName filter = (argumentCount >= 2) ? new ObjectName(key.getArgument(2)) : null;
+				DiscoveryFilter discoveryFilter = DiscoveryFilter.parse(argumentCount >= 3 ? key.getArgument(3) : null, 
+																		argumentCount >= 4 ? key.getArgument(4) : null);
+				int maxRows = 0;
+				if (argumentCount >= 5 && !key.getArgument(5).isEmpty())
+				{
+					try
+					{
+						maxRows = Integer.parseInt(key.getArgument(5));
+					}
+					catch (NumberFormatException ex)
+					{
+						maxRows = -1;
+					}
+					if (maxRows < 1)
+						throw new ZabbixException("invalid max rows: " + key.getArgument(5));
+				}
+
+				DiscoveryMode mode = DiscoveryMode.ATTRIBUTES;
+				if (0 != argumentCount)
+				{
+					String modeName = key.getArgument(1);
+
+					if (modeName.equals("beans"))
+						mode = DiscoveryMode.BEANS;
+					else if (modeName.equals("top"))
+						mode = DiscoveryMode.TOP;
+					else if (!modeName.equals("attributes"))
+						throw new ZabbixException("invalid discovery mode: " + modeName);
+				}
+
+				String attributeName = null;
+				String[] fieldPath = NO_FIELDS;
+				if (mode == DiscoveryMode.TOP)
+				{
+					if (argumentCount != 6 || maxRows == 0 || key.getArgument(6).isEmpty())
+						throw new ZabbixException("required key format: jmx.discovery[top,<object name>,<include>,<exclude>,<number of beans>,<attribute name>]");
+					List<String> path = splitAttributePath(key.getArgument(6));
+					attributeName = path.remove(0);
+					fieldPath = path.toArray(NO_FIELDS);
+				}
+				else if (argumentCount == 6)
+					throw new ZabbixException("attribute name is only used in top discovery mode");
+
+				return plan(item, Type.DISCOVERY)
+						.objectName(filter)
+						.attributeName(attributeName)
+						.fieldPath(fieldPath)
+						.discoveryMode(mode)
+						.discoveryFilter(discoveryFilter)
+						.maxRows(maxRows)
+						.build();
+			}
+			else
+				throw new ZabbixException("Key ID \"" + key.getKeyId() + "\" is not supported");
+		}
+		catch (MalformedObjectNameException ex)
+		{
+			throw new ZabbixException("invalid object name in key \"" + key.getKey() + "\": " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Attribute name and composite data field names are separated by dots. On the other hand the
+	 * name may contain a dot too. In this case user needs to escape it with a backslash. Also the
+	 * backslash symbols in the name must be escaped. So a real separator is unescaped dot.
+	 *
+	 * @return unescaped attribute name followed by unescaped field names
+	 */
+	static List<String> splitAttributePath(String attributePath)
+	{
+		List<String> result = new ArrayList<>();
+		StringBuilder builder = new StringBuilder(attributePath.length());
+
+		for (int i = 0; i < attributePath.length(); i++)
+		{
+			char ch = attributePath.charAt(i);
+			if (ch == '\\' && i + 1 < attributePath.length()
+					&& (attributePath.charAt(i + 1) == '\\' || attributePath.charAt(i + 1) == '.'))
+			{
+				builder.append(attributePath.charAt(++i));
+			}
+			else if (ch == '.')
+			{
+				result.add(builder.toString());
+				builder.setLength(0);
+			}
+			else
+				builder.append(ch);
+		}
+		// trailing separator has no field name after it
+		if (builder.length() > 0 || result.isEmpty())
+			result.add(builder.toString());
+
+		return result;
+	}
+}
@@ -0,0 +1,246 @@
+package com.github.zabbix.agent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+import com.github.zabbix.agent.data.CheckItem;
+import com.github.zabbix.agent.data.ItemSchedule;
+import com.github.zabbix.agent.data.KeyRegistry;
+import com.github.zabbix.agent.data.ResultBuffer;
+import com.github.zabbix.agent.data.ZabbixKey;
+import com.github.zabbix.agent.util.TimerWheel;
+
+import lombok.extern.java.Log;
+
+/**
+ * Collection engine shared by all active servers.<br>
+ * Every server reports its own list of active checks. The lists are merged, so a check with the
+ * same key and period is read once and its value goes to the result buffers of all servers
+ * requesting it ({@link CheckPlan#getServers()}). Each server sends from its own buffer, so a slow
+ * or unavailable server does not hold others back. Attribute values are shared through
+ * {@link AttributeCache} and results of discovery queries through {@link DiscoveryCache}
+ * with passive checks as well.<br>
+ * Checks are grouped by their schedule, one {@link CheckerTask} per schedule. Every MBean and
+ * every other check of a task has its own timer on one {@link TimerWheel}, spread over the
+ * interval, so checks of the same interval do not all run at once.<br>
+ * A new list of a server is compared with the previous one, only tasks of intervals with added,
+ * removed or changed checks are updated.
+ *
+ * @author Victor Kadachigov
+ */
+@Log(topic="com.github.zabbix.agent")
+public class CheckScheduler
+{
+	/** Limited by the bit mask of {@link CheckPlan#getServers()} */
+	public static final int MAX_SERVERS = 32;
+	private static final long TICK_DURATION = 100L; // ms
+	private static final int WHEEL_SIZE = 1024;
+
+	private final ZabbixAgentConfig config;
+	private final ResultBuffer[] resultBuffers;
+	private final AttributeCache attributeCache;
+	private final DiscoveryCache discoveryCache;
+	/** Last list of checks of every server with their intervals, null if the server is detached */
+	private final List<Map<ZabbixKey, ItemSchedule>> serverItems;
+	/** Compiled checks of all servers by interval */
+	private final Map<ItemSchedule, Map<ZabbixKey, CheckPlan>> plans = new HashMap<>();
+	private final Map<ItemSchedule, CheckerTask> checkerTasks = new HashMap<>();
+
+	private TimerWheel wheel;
+	private CollectorPool collectorPool;
+	private int attached;
+
+	/**
+	 * @param bufferCapacity capacity of the result buffer of every server
+	 */
+	public CheckScheduler(ZabbixAgentConfig config, int serverCount, int bufferCapacity, AttributeCache attributeCache, DiscoveryCache discoveryCache)
+	{
+		if (serverCount > MAX_SERVERS)
+			throw new IllegalArgumentException("No more than " + MAX_SERVERS + " active servers are supported");
+		this.config = config;
+		this.attributeCache = attributeCache;
+		this.discoveryCache = discoveryCache;
+		KeyRegistry keys = new KeyRegistry();
+		resultBuffers = new ResultBuffer[serverCount];
+		serverItems = new ArrayList<>(serverCount);
+		for (int i = 0; i < serverCount; i++)
+		{
+			resultBuffers[i] = new ResultBuffer(bufferCapacity, keys);
+			serverItems.add(null);
+		}
+	}
+
+	public ResultBuffer getResultBuffer(int serverIndex)
+	{
+		return resultBuffers[serverIndex];
+	}
+
+	/**
+	 * Starts the engine with the first server
+	 */
+	public synchronized void attach(int serverIndex)
+	{
+		if (attached++ == 0)
+		{
+			wheel = new TimerWheel(TICK_DURATION, WHEEL_SIZE);
+			wheel.start("zabbix-agent-timer");
+			collectorPool = new CollectorPool(config.getStartCollectors());
+		}
+		serverItems.set(serverIndex, new HashMap<ZabbixKey, ItemSchedule>());
+	}
+
+	/**
+	 * Drops checks of the server, stops the engine with the last server
+	 */
+	public synchronized void detach(int serverIndex)
+	{
+		Map<ZabbixKey, ItemSchedule> items = serverItems.set(serverIndex, null);
+		if (--attached > 0)
+		{
+			Set<ItemSchedule> changed = new HashSet<>();
+			for (Map.Entry<ZabbixKey, ItemSchedule> entry : items.entrySet())
+				removePlan(entry.getValue(), entry.getKey(), serverIndex, changed);
+			reschedule(changed);
+			return;
+		}
+		wheel.stop();
+		collectorPool.shutdown();
+		for (CheckerTask task : checkerTasks.values())
+		{
+			// releases samplers, rankings and counters of the task
+			task.updateCheckPlans(Collections.<CheckPlan>emptyList());
+			task.stop();
+		}
+		checkerTasks.clear();
+		plans.clear();
+	}
+
+	/**
+	 * Replaces the list of active checks of the server. Only tasks of the intervals with added,
+	 * removed or changed checks are updated, compiled plans of other checks are kept.
+	 */
+	public synchronized void updateChecks(int serverIndex, Set<CheckItem> checkItems)
+	{
+		Map<ZabbixKey, ItemSchedule> items = serverItems.get(serverIndex);
+		if (items == null)
+			return; // detached
+
+		Map<ZabbixKey, ItemSchedule> newItems = new HashMap<>();
+		for (CheckItem item : checkItems)
+		{
+			ItemSchedule schedule = item.getSchedule();
+			if (schedule == null)
+				log.log(Level.FINE, "Skip \"{0}\": no interval", item.getKey().getKey());
+			else
+				newItems.put(item.getKey(), schedule);
+		}
+
+		Set<ItemSchedule> changed = new HashSet<>();
+		// removed and the old interval of changed
+		for (Map.Entry<ZabbixKey, ItemSchedule> entry : items.entrySet())
+		{
+			if (!entry.getValue().equals(newItems.get(entry.getKey())))
+				removePlan(entry.getValue(), entry.getKey(), serverIndex, changed);
+		}
+		// added and the new interval of changed
+		for (CheckItem item : checkItems)
+		{
+			ItemSchedule schedule = newItems.get(item.getKey());
+			if (schedule != null && !schedule.equals(items.get(item.getKey())))
+				addPlan(schedule, item, serverIndex, changed);
+		}
+		serverItems.set(serverIndex, newItems);
+
+		log.log(Level.FINE, "Checks of {0} of {1} intervals changed", new Object[] { changed.size(), plans.size() });
+		log.log(Level.FINE, "Attribute cache {0}", attributeCache);
+		long missed = 0;
+		for (CheckerTask task : checkerTasks.values())
+			missed += task.getMissedChecks();
+		log.log(Level.FINE, "Missed checks: {0}; late timer ticks: {1}", new Object[] { missed, wheel.getLateTicks() });
+
+		reschedule(changed);
+	}
+
+	private void addPlan(ItemSchedule schedule, CheckItem item, int serverIndex, Set<ItemSchedule> changed)
+	{
+		Map<ZabbixKey, CheckPlan> schedulePlans = plans.get(schedule);
+		if (schedulePlans == null)
+		{
+			schedulePlans = new LinkedHashMap<>();
+			plans.put(schedule, schedulePlans);
+		}
+		CheckPlan plan = schedulePlans.get(item.getKey());
+		if (plan == null)
+		{
+			try
+			{
+				plan = CheckPlan.compile(item).withServers(0);
+			}
+			catch (ZabbixException ex)
+			{
+				// the server is told why the item is not supported instead of waiting for a value forever 
+				log.log(Level.FINE, "Not supported \"{0}\": {1}", new Object[] { item.getKey().getKey(), ex.getMessage() });
+				plan = CheckPlan.error(item, ex.getMessage()).withServers(0);
+			}
+		}
+		schedulePlans.put(item.getKey(), plan.withServers(plan.getServers() | 1 << serverIndex));
+		changed.add(schedule);
+	}
+
+	private void removePlan(ItemSchedule schedule, ZabbixKey key, int serverIndex, Set<ItemSchedule> changed)
+	{
+		Map<ZabbixKey, CheckPlan> schedulePlans = plans.get(schedule);
+		CheckPlan plan = (schedulePlans != null) ? schedulePlans.get(key) : null;
+		if (plan == null)
+			return; // not scheduled
+		int servers = plan.getServers() & ~(1 << serverIndex);
+		if (servers != 0)
+			schedulePlans.put(key, plan.withServers(servers));
+		else
+			schedulePlans.remove(key);
+		changed.add(schedule);
+	}
+
+	/**
+	 * Starts, updates or stops tasks of the intervals
+	 */
+	private void reschedule(Set<ItemSchedule> changed)
+	{
+		for (ItemSchedule schedule : changed)
+		{
+			Map<ZabbixKey, CheckPlan> schedulePlans = plans.get(schedule);
+			CheckerTask task = checkerTasks.get(schedule);
+			if (schedulePlans == null || schedulePlans.isEmpty()) // delete
+			{
+				plans.remove(schedule);
+				if (task == null)
+					continue;
+				log.log(Level.FINE, "Stop task with interval {0}", schedule);
+				checkerTasks.remove(schedule);
+				task.stop();
+				// releases what the task keeps for its checks, e.g. samplers
+				task.updateCheckPlans(Collections.<CheckPlan>emptyList());
+			}
+			else if (task == null) // insert
+			{
+				List<CheckPlan> list = new ArrayList<>(schedulePlans.values());
+				log.log(Level.FINE, "Start {0} checks with interval {1}", new Object[] { list.size(), schedule });
+				task = new CheckerTask(list, config, resultBuffers, schedule.getInterval(), collectorPool, attributeCache, discoveryCache);
+				checkerTasks.put(schedule, task);
+				task.start(wheel, schedule);
+			}
+			else // update
+			{
+				log.log(Level.FINE, "Update {0} checks with interval {1}", new Object[] { schedulePlans.size(), schedule });
+				task.updateCheckPlans(new ArrayList<>(schedulePlans.values()));
+			}
+		}
+	}
+}
@@ -3,32 +3,51 @@ package com.github.zabbix.agent;
 import java.lang.management.ManagementFactory;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
+import javax.management.Attribute;
 import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
-import javax.management.OperationsException;
 import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.TabularDataSupport;
 
-import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.github.zabbix.agent.data.CheckItem;
-import com.github.zabbix.agent.data.CheckResult;
+import com.github.zabbix.agent.data.ItemSchedule;
+import com.github.zabbix.agent.data.KeyRegistry;
+import com.github.zabbix.agent.data.ResultBuffer;
+import com.github.zabbix.agent.data.ValueThrottle;
 import com.github.zabbix.agent.data.ZabbixKey;
+import com.github.zabbix.agent.util.CircuitBreaker;
+import com.github.zabbix.agent.util.DiscoveryWriter;
+import com.github.zabbix.agent.util.TimerWheel;
 
 import lombok.extern.java.Log;
 
@@ -38,70 +57,598 @@ import lombok.extern.java.Log;
 @Log(topic="com.github.zabbix.agent")
 public class CheckerTask implements Runnable
 {
-	private enum DiscoveryMode
-	{ 
-		ATTRIBUTES,
-		BEANS;
-	}
+	private static final Set<Class<?>> PRIMITIVE_CLASSES = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+										Boolean.class, Character.class, Byte.class, 
+										Short.class, Integer.class, Long.class,
+										Float.class, Double.class, String.class, 
+										BigDecimal.class, BigInteger.class, Date.class, 
+										ObjectName.class, AtomicBoolean.class,
+										AtomicInteger.class, AtomicLong.class
+								));
+	
+	private static final long BREAKER_INITIAL_BACKOFF = 60000L; // 1 min
+	private static final long BREAKER_MAX_BACKOFF = 3600000L; // 1 hour
+	/** Weight of the last value in the smoothed value of top discovery */
+	private static final double RANKING_ALPHA = 0.3;
+	/** How much a bean in the top must be beaten by to leave it */
+	private static final double RANKING_HYSTERESIS = 0.1;
+	/** Value of a check that has nothing to send this time, e.g. the first sample of a counter */
+	private static final Object NO_VALUE = new Object();
+	/** Functions of sample checks without a function */
+	private static final String[] SAMPLE_FUNCTIONS = { "min", "max", "avg", "p99", "count" };
+	/** Period samples are kept for by passive sample checks */
+	private static final long SAMPLE_WINDOW = 60000L; // 1 min
+	/** Periods without a check after which sampling stops */
+	private static final int SAMPLE_UNUSED_PERIODS = 3;
+	private static final int MAX_SAMPLES = 10000;
+	/** Counters of passive checks kept at most */
+	private static final int MAX_PASSIVE_COUNTERS = 1000;
+	/** Limits of the attribute cache of a task created without one */
+	private static final int DEFAULT_ATTRIBUTE_CACHE_SIZE = 10000;
+	private static final long DEFAULT_TIMEOUT = 3000L;
 	
 	private final ZabbixAgentConfig config;
-	private final Queue<CheckResult> resultsQueue;
+	/** Buffers of active servers */
+	private final ResultBuffer[] resultBuffers;
+	
+	private final CollectorPool collectorPool;
+	private final AttributeCache attributeCache;
+	private final DiscoveryCache discoveryCache;
+	/** Limits of attributes discovery, none without config */
+	private final int discoveryMaxRows;
+	private final long discoveryMaxTime;
+	private final int discoveryMaxDepth;
+	/** Drops unchanged values, null if all values are sent */
+	private final ValueThrottle throttle;
+	private final AttributeCache.Loader loader = new AttributeCache.Loader()
+	{
+		@Override
+		public Object[] load(ObjectName objectName, String[] names)
+		{
+			return readAttributes(objectName, names, null);
+		}
+
+		@Override
+		public Object timedOut(ObjectName objectName, String name)
+		{
+			return new ReadFailure("Timeout while waiting for another read of \"" + name + "\"");
+		}
+	};
+	/** Checks skipped because their previous check was still running */
+	private final AtomicLong missedChecks = new AtomicLong();
+	/** Changed by cycle coordinators only. A check is read by one cycle at a time */
+	private final Map<ZabbixKey, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+	/** Smoothed values of top discoveries */
+	private final ConcurrentMap<ZabbixKey, Ranking> rankings = new ConcurrentHashMap<>();
+	/** Last samples of delta and rate checks */
+	private final CounterTable counters = new CounterTable();
+	/** Last samples of delta and rate passive checks, apart from active ones reading the same counters */
+	private final CounterTable passiveCounters = new CounterTable();
+	/** 
+	 * Rows of {@link #passiveCounters} by key, the least recently used first. Passive keys are not interned 
+	 * into the key registry of results, any key may be requested and ids are never freed there 
+	 */
+	private final Map<ZabbixKey, Integer> passiveCounterIds = new LinkedHashMap<>(16, 0.75f, true);
+	private final ConcurrentMap<ZabbixKey, Sampler> samplers = new ConcurrentHashMap<>();
+	/** 
+	 * Ids of keys being read. Kept by key rather than by unit, so a unit hung on replaced checks 
+	 * still blocks the unit reading the same keys after the update
+	 */
+	private final BitSet busyKeys = new BitSet();
 	
-	private Set<CheckItem> checkItems;
+	private volatile Checks checks;
+	/** Timers of the checks, null if the task is not started */
+	private UnitTimers timers;
 	private MBeanServer mbServer;
 	private int delay;
 
-	public CheckerTask(Set<CheckItem> checkItems, ZabbixAgentConfig config, Queue<CheckResult> resultsQueue, int delay)
+	public CheckerTask(List<CheckPlan> checkPlans, ZabbixAgentConfig config, ResultBuffer resultBuffer, int delay)
 	{
-		this.checkItems = checkItems;
+		this(checkPlans, config, new ResultBuffer[] { resultBuffer }, delay, null);
+	}
+	
+	public CheckerTask(List<CheckPlan> checkPlans, ZabbixAgentConfig config, ResultBuffer resultBuffer, int delay, CollectorPool collectorPool)
+	{
+		this(checkPlans, config, new ResultBuffer[] { resultBuffer }, delay, collectorPool);
+	}
+	
+	/**
+	 * @param resultBuffers buffers of active servers sharing one key registry, a value goes to the 
+	 * 		buffers of {@link CheckPlan#getServers()} 
+	 * @param collectorPool pool to read checks in parallel and to run cycles of timers. If <code>null</code> 
+	 * 		the {@link CollectorPool#getDefault() default} pool is used
+	 */
+	public CheckerTask(List<CheckPlan> checkPlans, ZabbixAgentConfig config, ResultBuffer[] resultBuffers, int delay, CollectorPool collectorPool)
+	{
+		// nobody to share values with, so concurrent reads are only coalesced
+		this(checkPlans, config, resultBuffers, delay, collectorPool, 
+				new AttributeCache(0, DEFAULT_ATTRIBUTE_CACHE_SIZE, config != null ? config.getTimeout() * 1000L : DEFAULT_TIMEOUT), 
+				new DiscoveryCache());
+	}
+	
+	/**
+	 * @param attributeCache cache shared with other tasks
+	 * @param discoveryCache cache shared with other tasks
+	 */
+	public CheckerTask(List<CheckPlan> checkPlans, ZabbixAgentConfig config, ResultBuffer[] resultBuffers, int delay, CollectorPool collectorPool, 
+						AttributeCache attributeCache, DiscoveryCache discoveryCache)
+	{
+		this.resultBuffers = resultBuffers;
+		this.checks = new Checks(checkPlans, resultBuffers[0].getKeys());
 		this.config = config;
-		this.resultsQueue = resultsQueue;
 		this.delay = delay;
+		this.collectorPool = collectorPool;
+		this.attributeCache = attributeCache;
+		this.discoveryCache = discoveryCache;
+		this.discoveryMaxRows = config != null ? config.getDiscoveryMaxRows() : Integer.MAX_VALUE;
+		this.discoveryMaxTime = config != null ? config.getDiscoveryMaxTime() : TimeUnit.DAYS.toMillis(1);
+		this.discoveryMaxDepth = config != null ? config.getDiscoveryMaxDepth() : Integer.MAX_VALUE;
+		this.throttle = config != null && config.getDiscardUnchangedHeartbeat() > 0 
+							? new ValueThrottle(TimeUnit.SECONDS.toMillis(config.getDiscardUnchangedHeartbeat())) : null;
 	}
 	
+	/**
+	 * Reads all checks at once, the caller waits for the cycle
+	 */
 	@Override
 	public void run()
 	{
-		long start = 0;
-		if (log.isLoggable(Level.INFO))
+		Checks current = checks;
+		int[] units = new int[current.unitCount()];
+		for (int i = 0; i < units.length; i++)
+			units[i] = i;
+		collect(current, units, units.length);
+	}
+	
+	/**
+	 * Reads every attribute batch and every other check on its own timer of the wheel, at the times 
+	 * of the schedule. Checks by interval are spread over it by hashes of their object names or keys
+	 */
+	public synchronized void start(TimerWheel wheel, ItemSchedule schedule)
+	{
+		if (timers != null)
+			timers.stopped = true;
+		timers = new UnitTimers(checks, wheel, schedule);
+		timers.scheduleAll();
+	}
+	
+	public synchronized void stop()
+	{
+		if (timers != null)
+			timers.stopped = true;
+		timers = null;
+	}
+	
+	/**
+	 * @return number of checks skipped because their previous check was still running
+	 */
+	public long getMissedChecks()
+	{
+		return missedChecks.get();
+	}
+	
+	/**
+	 * Runs a cycle in a coordinator of the pool, never in the thread of the wheel
+	 */
+	private void submit(final Checks current, final int[] units, final int count)
+	{
+		CollectorPool pool = collectorPool != null ? collectorPool : CollectorPool.getDefault();
+		try
+		{
+			pool.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					collect(current, units, count);
+				}
+			});
+		}
+		catch (RejectedExecutionException ex)
+		{
+			if (pool.isShutdown())
+				log.log(Level.FINE, "Collector pool is shut down");
+			else
+			{
+				missedChecks.addAndGet(count);
+				log.log(Level.WARNING, "Too many check cycles are waiting. {0} check units with period {1}s skipped", new Object[] { count, delay });
+			}
+		}
+	}
+	
+	/**
+	 * @param units units to read, the first <code>count</code> are valid. Units still read by another cycle are skipped,
+	 * 		a unit is released when its read returns, even after the cycle has given up on it
+	 */
+	private void collect(Checks current, int[] units, int count)
+	{
+		int claimed = 0;
+		synchronized (busyKeys)
+		{
+			for (int i = 0; i < count; i++)
+			{
+				if (claim(current, units[i]))
+					units[claimed++] = units[i];
+			}
+		}
+		if (claimed < count)
+		{
+			missedChecks.addAndGet(count - claimed);
+			log.log(Level.WARNING, "{0} check units with period {1}s are still running. Skipped", new Object[] { count - claimed, delay });
+		}
+		if (claimed == 0)
+			return;
+		
+		// all values of the cycle get the same timestamp whatever thread and whenever reads them  
+		long clock = System.currentTimeMillis();
+		
+		if (log.isLoggable(Level.FINE))
+			log.log(Level.FINE, "Start {0} of {1} check units. Period {2}s", new Object[] { claimed, current.unitCount(), delay } );
+		
+		Cycle cycle = new Cycle(current, units, claimed, clock);
+		try
+		{
+			collectClaimed(cycle);
+		}
+		finally
+		{
+			// releases units not started
+			cycle.close();
+		}
+		merge(cycle);
+		
+		if (log.isLoggable(Level.FINE))
+		{
+			long end = System.currentTimeMillis();
+			log.log(Level.FINE, "End checks. Period {0}s. Work time: {1}", new Object[] { delay, timeToLog(end - clock) });
+		}
+	}
+	
+	/**
+	 * @return false if a key of the unit is still read by another cycle
+	 */
+	private boolean claim(Checks current, int unit)
+	{
+		int end = current.unitEnd(unit);
+		for (int slot = current.offsets[unit]; slot < end; slot++)
+		{
+			if (busyKeys.get(current.keyIds[slot]))
+				return false;
+		}
+		for (int slot = current.offsets[unit]; slot < end; slot++)
+			busyKeys.set(current.keyIds[slot]);
+		return true;
+	}
+	
+	private void release(Checks current, int unit)
+	{
+		synchronized (busyKeys)
 		{
-			start = System.currentTimeMillis();
-			log.log(Level.INFO, "Start {0} checks. Period {1}s", new Object[] { checkItems.size(), delay } );
+			for (int slot = current.offsets[unit]; slot < current.unitEnd(unit); slot++)
+				busyKeys.clear(current.keyIds[slot]);
+		}
+	}
+	
+	/**
+	 * Reads units of the cycle on the collector pool waiting for them no longer than Timeout and 
+	 * the period of the checks. Units not finished by then are timed out, the rest is sent
+	 */
+	private void collectClaimed(Cycle cycle)
+	{
+		Checks current = cycle.checks;
+		// checks in quarantine are not read
+		for (int i = 0; i < cycle.count; i++)
+		{
+			for (int slot = current.offsets[cycle.units[i]]; slot < current.unitEnd(cycle.units[i]); slot++)
+			{
+				CircuitBreaker breaker = breakers.get(current.slots.get(slot).getKey());
+				cycle.quarantined[slot] = breaker != null && breaker.isOpen(cycle.clock);
+			}
 		}
 		
+		CollectorPool pool = collectorPool != null ? collectorPool : CollectorPool.getDefault();
+		long timeout = getCycleTimeout();
 		try
 		{
-			Iterator<CheckItem> iterator = checkItems.iterator();
-			while (iterator.hasNext())
+			int chunkSize = Math.max(1, cycle.count / (pool.getParallelism() * 4));
+			ForkJoinTask<Void> task = pool.submit(new CollectChunk(cycle, 0, cycle.count, chunkSize));
+			if (timeout > 0)
+				task.get(timeout, TimeUnit.MILLISECONDS);
+			else
+				task.get();
+		}
+		catch (TimeoutException ex)
+		{
+			log.log(Level.WARNING, "Checks with period {0}s did not finish in {1} ms", new Object[] { delay, timeout });
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (Exception ex)
+		{
+			log.log(Level.SEVERE, ex.getMessage(), ex);
+		}
+	}
+	
+	/**
+	 * @return the lesser of Timeout and the period, ms. 0 if there is neither
+	 */
+	private long getCycleTimeout()
+	{
+		long timeout = config != null ? TimeUnit.SECONDS.toMillis(config.getTimeout()) : 0;
+		long period = TimeUnit.SECONDS.toMillis(delay);
+		if (timeout > 0 && period > 0)
+			return Math.min(timeout, period);
+		return Math.max(timeout, period);
+	}
+	
+	/**
+	 * Puts results of the cycle to the queue in the same order whatever thread read them
+	 */
+	private void merge(Cycle cycle)
+	{
+		Checks current = cycle.checks;
+		int skipped = 0;
+		int unchanged = 0;
+		for (int i = 0; i < cycle.count; i++)
+		{
+			int unit = cycle.units[i];
+			int state = cycle.unitStates.get(i);
+			if (state == Cycle.SKIPPED)
 			{
-				CheckItem checkItem = iterator.next();
-				String value = getStringValue(checkItem.getKey());
-				if (value != null)
+				skipped += current.unitEnd(unit) - current.offsets[unit];
+				continue;
+			}
+			
+			boolean timedOut = state == Cycle.TIMED_OUT;
+			for (int slot = current.offsets[unit]; slot < current.unitEnd(unit); slot++)
+			{
+				if (cycle.quarantined[slot])
+					continue;
+				
+				CheckPlan plan = current.slots.get(slot);
+				int keyId = current.keyIds[slot];
+				if (plan.getType() == CheckPlan.Type.ERROR)
+					// never quarantined, the server gets the error every cycle
+					offerNotSupported(plan, keyId, plan.getError(), cycle.clock);
+				else if (timedOut)
+					onFailure(plan, keyId, "Timeout while reading " + plan.getObjectName(), cycle.clock);
+				else if (cycle.values[slot] == NO_VALUE)
+					continue;
+				else if (cycle.values[slot] != null)
 				{
-					CheckResult checkResult = CheckResult.builder()
-													.key(checkItem.getKey())
-													.value(getStringValue(checkItem.getKey()))
-													.clock(System.currentTimeMillis())
-													.build();
-					resultsQueue.offer(checkResult);
+					if (!onSuccess(plan, keyId, cycle.values[slot], cycle.clock))
+						unchanged++;
 				}
 				else
+					onFailure(plan, keyId, cycle.errors[slot] != null ? cycle.errors[slot] : "Cannot obtain value", cycle.clock);
+			}
+		}
+		
+		if (skipped > 0)
+			log.log(Level.WARNING, "{0} checks with period {1}s were not started in time", new Object[] { skipped, delay });
+		if (unchanged > 0)
+			log.log(Level.FINE, "{0} unchanged values with period {1}s not sent", new Object[] { unchanged, delay });
+	}
+	
+	/**
+	 * @return false if the value is not sent because it has not changed
+	 */
+	private boolean onSuccess(CheckPlan plan, int keyId, Object value, long clock)
+	{
+		CircuitBreaker breaker = breakers.get(plan.getKey());
+		if (breaker != null)
+			breaker.onSuccess();
+		int servers = plan.getServers();
+		if (throttle != null && !throttle.offer(keyId, clock, value, servers))
+			return false;
+		for (int i = 0; i < resultBuffers.length; i++)
+			if ((servers & 1 << i) != 0)
+				resultBuffers[i].offer(keyId, clock, value);
+		return true;
+	}
+	
+	private void onFailure(CheckPlan plan, int keyId, String message, long clock)
+	{
+		log.log(Level.FINE, "{0}: {1}", new Object[] { plan.getKey().getKey(), message });
+		if (throttle != null)
+			throttle.reset(keyId);
+		
+		CircuitBreaker breaker = breakers.get(plan.getKey());
+		if (breaker == null)
+		{
+			breaker = new CircuitBreaker(Math.max(BREAKER_INITIAL_BACKOFF, delay * 1000L), BREAKER_MAX_BACKOFF);
+			breakers.put(plan.getKey(), breaker);
+		}
+		offerNotSupported(plan, keyId, message, clock);
+		
+		if (breaker.onFailure(clock))
+			log.log(Level.WARNING, "\"{0}\" failed {1} times in a row. Not checked next {2}s", 
+					new Object[] { plan.getKey().getKey(), breaker.getFailures(), breaker.getBackoff() / 1000 });
+	}
+	
+	private void offerNotSupported(CheckPlan plan, int keyId, String message, long clock)
+	{
+		int servers = plan.getServers();
+		for (int i = 0; i < resultBuffers.length; i++)
+			if ((servers & 1 << i) != 0)
+				resultBuffers[i].offerNotSupported(keyId, clock, message);
+	}
+	
+	private void checkBatch(Cycle cycle, AttributeBatch batch, int offset)
+	{
+		List<CheckPlan> plans = batch.getPlans();
+		String[] names = batch.getAttributeNames();
+		
+		// do not read attributes needed by quarantined checks only 
+		boolean[] wanted = null;
+		for (int i = 0; i < plans.size(); i++)
+		{
+			if (cycle.quarantined[offset + i])
+			{
+				wanted = new boolean[names.length];
+				break;
+			}
+		}
+		if (wanted != null)
+		{
+			boolean any = false;
+			for (int i = 0; i < plans.size(); i++)
+			{
+				if (!cycle.quarantined[offset + i])
 				{
-					// something wrong. remove until next refresh
-					log.log(Level.FINE, "Remove \"{0}\" from checks", checkItem.getKey().getKey());
-					iterator.remove();
+					wanted[batch.getAttributeIndex(i)] = true;
+					any = true;
 				}
 			}
+			if (!any)
+				return;
 		}
-		catch (Exception ex)
+		
+		// a cached value is as old as its read, rates use the time of the read
+		long[] loadTimes = new long[names.length];
+		Object[] attributes = readAttributesBlocking(batch.getObjectName(), names, wanted, loadTimes);
+		
+		for (int i = 0; i < plans.size(); i++)
 		{
-			log.log(Level.SEVERE, ex.getMessage(), ex);
+			if (cycle.quarantined[offset + i])
+				continue;
+			
+			CheckPlan plan = plans.get(i);
+			Object attribute = attributes[batch.getAttributeIndex(i)];
+			if (attribute instanceof ReadFailure)
+				cycle.errors[offset + i] = ((ReadFailure)attribute).message;
+			else
+			{
+				try
+				{
+					Object value = getPrimitiveAttributeValue(attribute, plan.getFieldPath());
+					if (plan.getCounter() != null)
+						value = getCounterValue(counters, plan, cycle.checks.keyIds[offset + i], loadTimes[batch.getAttributeIndex(i)], value);
+					cycle.values[offset + i] = value;
+				}
+				catch (Exception ex)
+				{
+					cycle.errors[offset + i] = ex.getMessage();
+				}
+			}
 		}
+	}
+	
+	/**
+	 * Reads attributes through the attribute cache telling the collector pool that the thread may block for a long time,
+	 * so the pool can keep its parallelism while a hung MBean holds the thread.
+	 * 
+	 * @param wanted attributes to read, <code>null</code> for all
+	 * @param loadTimes receives {@link System#nanoTime()} the values were read at
+	 */
+	private Object[] readAttributesBlocking(ObjectName objectName, String[] names, boolean[] wanted, long[] loadTimes)
+	{
+		AttributeRead read = new AttributeRead(objectName, names, wanted, loadTimes);
+		try
+		{
+			ForkJoinPool.managedBlock(read);
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			Object[] result = new Object[names.length];
+			Arrays.fill(result, new ReadFailure("Interrupted"));
+			return result;
+		}
+		return read.result;
+	}
+	
+	/**
+	 * Reads all wanted attributes with one {@link MBeanServer#getAttributes} call.
+	 * 
+	 * @param wanted attributes to read, <code>null</code> for all
+	 * @return attribute values in <code>names</code> order, 
+	 * 		{@link ReadFailure} for attributes that could not be read
+	 */
+	private Object[] readAttributes(ObjectName objectName, String[] names, boolean[] wanted)
+	{
+		Object[] result = new Object[names.length];
 		
-		if (log.isLoggable(Level.INFO))
+		String[] request = names;
+		if (wanted != null)
 		{
-			long end = System.currentTimeMillis();
-			log.log(Level.INFO, "End checks. Period {0}s. Work time: {1}", new Object[] { delay, timeToLog(end - start) });
+			List<String> list = new ArrayList<>(names.length);
+			for (int i = 0; i < names.length; i++)
+			{
+				if (wanted[i])
+					list.add(names[i]);
+			}
+			request = list.toArray(new String[list.size()]);
+		}
+		
+		try
+		{
+			if (request.length == 1)
+			{
+				result[indexOf(names, request[0], 0)] = getMbServer().getAttribute(objectName, request[0]);
+				return result;
+			}
+			
+			int found = 0;
+			int index = -1;
+			for (Attribute attribute : getMbServer().getAttributes(objectName, request).asList())
+			{
+				// values usually come back in request order
+				index = indexOf(names, attribute.getName(), index + 1);
+				if (index >= 0 && result[index] == null)
+				{
+					result[index] = attribute.getValue();
+					found++;
+				}
+			}
+			
+			if (found < request.length)
+			{
+				// getAttributes() silently skips failed attributes. Ask again one by one to find out why.
+				for (int i = 0; i < names.length; i++)
+				{
+					if (result[i] == null && (wanted == null || wanted[i]))
+						result[i] = readAttribute(objectName, names[i]);
+				}
+			}
+		}
+		catch (Exception ex)
+		{
+			ReadFailure failure = new ReadFailure(ex.getClass().getSimpleName() + ": " + getRootCauseMessage(ex));
+			for (int i = 0; i < names.length; i++)
+			{
+				if (result[i] == null)
+					result[i] = failure;
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * @return index of the name looking from <code>from</code> first
+	 */
+	private int indexOf(String[] names, String name, int from)
+	{
+		for (int i = 0; i < names.length; i++)
+		{
+			int index = (from + i) % names.length;
+			if (names[index].equals(name))
+				return index;
+		}
+		return -1;
+	}
+	
+	private Object readAttribute(ObjectName objectName, String attributeName)
+	{
+		try
+		{
+			return getMbServer().getAttribute(objectName, attributeName);
+		}
+		catch (Exception ex)
+		{
+			return new ReadFailure(ex.getClass().getSimpleName() + ": " + getRootCauseMessage(ex));
 		}
 	}
 	
@@ -135,149 +682,433 @@ public class CheckerTask implements Runnable
 
 	protected String getStringValue(ZabbixKey key) throws Exception
 	{
-		if (key.getKeyId().equals("jmx"))
-		{
-			if (key.getArgumentCount() != 2)
-				throw new ZabbixException("required key format: jmx[<object name>,<attribute name>]");
-
-			ObjectName objectName = new ObjectName(key.getArgument(1));
-			String attributeName = key.getArgument(2);
-			String realAttributeName;
-			String fieldNames = "";
-
-			// Attribute name and composite data field names are separated by dots. On the other hand the
-			// name may contain a dot too. In this case user needs to escape it with a backslash. Also the
-			// backslash symbols in the name must be escaped. So a real separator is unescaped dot and
-			// separatorIndex() is used to locate it.
+		return getStringValue(CheckPlan.compile(CheckItem.builder().key(key).build()));
+	}
 
-			int sep = separatorIndex(attributeName);
+	/**
+	 * @return value of the check, a number for {@link CheckPlan.Type#AGGREGATE} and {@link CheckPlan.Type#SAMPLE}
+	 * 		with a function, a string otherwise, {@link #NO_VALUE} if there are no samples yet
+	 */
+	private Object getValue(CheckPlan plan) throws Exception
+	{
+		if (plan.getType() == CheckPlan.Type.AGGREGATE)
+			return aggregate(plan);
+		else if (plan.getType() == CheckPlan.Type.SAMPLE)
+			return sample(plan);
+		return getStringValue(plan);
+	}
 
-			if (sep >= 0)
+	protected String getStringValue(final CheckPlan plan) throws Exception
+	{
+		if (plan.getType() == CheckPlan.Type.AGGREGATE)
+			return aggregate(plan).toString();
+		else if (plan.getType() == CheckPlan.Type.SAMPLE)
+		{
+			Object value = sample(plan);
+			if (value == NO_VALUE)
 			{
-				log.log(Level.FINEST, "\"{0}\" contains composite data", attributeName);
-
-				realAttributeName = attributeName.substring(0, sep);
-				fieldNames = attributeName.substring(sep + 1);
+				log.log(Level.FINE, "{0}: no samples yet", plan.getKey().getKey());
+				return null;
 			}
-			else
-				realAttributeName = attributeName;
-
-			// unescape possible dots or backslashes that were escaped by user
-			realAttributeName = unescapeUserInput(realAttributeName);
-
-			log.log(Level.FINEST, "attributeName: \"{0}\"", realAttributeName);
-			log.log(Level.FINEST, "fieldNames: \"{0}\"", fieldNames);
-
-			String result = null;
-			try
+			return value.toString();
+		}
+		else if (plan.getType() == CheckPlan.Type.JMX)
+		{
+			long[] loadTimes = new long[1];
+			Object value = attributeCache.get(plan.getObjectName(), new String[] { plan.getAttributeName() }, null, loader, loadTimes)[0];
+			if (value instanceof ReadFailure)
 			{
-				result = getPrimitiveAttributeValue(getMbServer().getAttribute(objectName, realAttributeName), fieldNames);
+				log.log(Level.FINE, ((ReadFailure)value).message);
+				return null;
 			}
-			catch (OperationsException ex)
+			Object result = getPrimitiveAttributeValue(value, plan.getFieldPath());
+			if (plan.getCounter() != null)
 			{
-				log.log(Level.FINE, "{0}: {1}", new Object[] {ex.getClass().getSimpleName(), ex.getMessage()});
+				result = getCounterValue(passiveCounters, plan, getPassiveCounterId(plan.getKey()), loadTimes[0], result);
+				if (result == NO_VALUE)
+				{
+					log.log(Level.FINE, "{0}: no previous value", plan.getKey().getKey());
+					return null;
+				}
 			}
-			return result;
+			return result.toString();
 		}
-		else if (key.getKeyId().equals("jmx.discovery"))
+		else if (plan.getType() == CheckPlan.Type.BEAN)
+			return readBean(plan);
+		else if (plan.getDiscoveryMode() == CheckPlan.DiscoveryMode.ATTRIBUTES)
 		{
-			int argumentCount = key.getArgumentCount();
-			if (argumentCount > 2)
-				throw new ZabbixException("required key format: jmx.discovery[<discovery mode>,<object name>]");
-
-			JSONArray counters = new JSONArray();
-			ObjectName filter = (argumentCount == 2) ? new ObjectName(key.getArgument(2)) : null;
-
-			DiscoveryMode mode = DiscoveryMode.ATTRIBUTES;
-			if (0 != argumentCount)
-			{
-				String modeName = key.getArgument(1);
-
-				if (modeName.equals("beans"))
-					mode = DiscoveryMode.BEANS;
-				else if (!modeName.equals("attributes"))
-					throw new ZabbixException("invalid discovery mode: " + modeName);
-			}
-
-			for (ObjectName name : getMbServer().queryNames(filter, null))
+			// values change, so the data is made every time
+			DiscoveryWriter writer = new DiscoveryWriter(plan.getMaxRows() > 0 ? plan.getMaxRows() : discoveryMaxRows);
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(discoveryMaxTime);
+			for (ObjectName name : discoveryCache.queryNames(plan.getObjectName()))
 			{
+				if (writer.isTruncated())
+					break;
+				if (!plan.getDiscoveryFilter().accept(name))
+					continue;
+				if (System.nanoTime() - deadline >= 0)
+				{
+					writer.truncate("more than " + discoveryMaxTime + " ms");
+					break;
+				}
 				log.log(Level.FINEST, "discovered object \"{0}\"", name);
-
-				if (mode == DiscoveryMode.ATTRIBUTES)
-					discoverAttributes(counters, name);
-				else
-					discoverBeans(counters, name);
+				discoverAttributes(writer, name, deadline);
 			}
-
-			JSONObject mapping = new JSONObject();
-			mapping.put(Protocol.JSON_TAG_DATA, counters);
-			return mapping.toString();
+			return finishDiscovery(plan, writer);
 		}
+		else if (plan.getDiscoveryMode() == CheckPlan.DiscoveryMode.TOP)
+			return discoverTop(plan);
 		else
-			log.log(Level.FINE, "Key ID \"{0}\" is not supported", key.getKeyId());
+		{
+			return discoveryCache.render(plan.getObjectName(), plan.getKey(), new DiscoveryCache.Renderer()
+			{
+				@Override
+				public String render(List<ObjectName> names) throws Exception
+				{
+					DiscoveryWriter writer = new DiscoveryWriter(plan.getMaxRows() > 0 ? plan.getMaxRows() : Integer.MAX_VALUE);
+					for (ObjectName name : names)
+					{
+						if (writer.isTruncated())
+							break;
+						if (!plan.getDiscoveryFilter().accept(name))
+							continue;
+						log.log(Level.FINEST, "discovered object \"{0}\"", name);
+						discoverBeans(writer, name);
+					}
+					return finishDiscovery(plan, writer);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Ranks beans by the smoothed value of the attribute and writes the top ones as beans discovery does,
+	 * in name order, so the data does not change while the top stays the same
+	 */
+	private String discoverTop(CheckPlan plan) throws Exception
+	{
+		Ranking ranking = rankings.get(plan.getKey());
+		if (ranking == null)
+		{
+			rankings.putIfAbsent(plan.getKey(), new Ranking());
+			ranking = rankings.get(plan.getKey());
+		}
+		
+		int size = plan.getMaxRows();
+		DiscoveryWriter writer = new DiscoveryWriter(size);
+		synchronized (ranking)
+		{
+			// the lowest ranked on top
+			PriorityQueue<Ranked> heap = new PriorityQueue<>(size + 1);
+			Map<ObjectName, Double> values = new HashMap<>();
+			String[] names = new String[] { plan.getAttributeName() };
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(discoveryMaxTime);
+			for (ObjectName name : discoveryCache.queryNames(plan.getObjectName()))
+			{
+				if (!plan.getDiscoveryFilter().accept(name))
+					continue;
+				if (System.nanoTime() - deadline >= 0)
+				{
+					writer.truncate("more than " + discoveryMaxTime + " ms");
+					break;
+				}
+				
+				Object attribute = attributeCache.get(name, names, null, loader)[0];
+				if (attribute instanceof ReadFailure)
+				{
+					log.log(Level.FINEST, "bean \"{0}\" not ranked: {1}", new Object[] { name, ((ReadFailure)attribute).message });
+					continue;
+				}
+				Object value;
+				try
+				{
+					value = getPrimitiveAttributeValue(attribute, plan.getFieldPath());
+				}
+				catch (Exception ex)
+				{
+					log.log(Level.FINEST, "bean \"{0}\" not ranked: {1}", new Object[] { name, ex.getMessage() });
+					continue;
+				}
+				if (!(value instanceof Number))
+				{
+					log.log(Level.FINEST, "bean \"{0}\" not ranked: value is not a number", name);
+					continue;
+				}
+				
+				double current = ((Number)value).doubleValue();
+				Double previous = ranking.values.get(name);
+				double smoothed = (previous == null) ? current : previous + RANKING_ALPHA * (current - previous);
+				values.put(name, smoothed);
+				
+				double score = ranking.top.contains(name) ? smoothed + Math.abs(smoothed) * RANKING_HYSTERESIS : smoothed;
+				heap.add(new Ranked(name, score));
+				if (heap.size() > size)
+					heap.poll();
+			}
+			
+			Set<ObjectName> top = new TreeSet<>();
+			for (Ranked ranked : heap)
+				top.add(ranked.name);
+			ranking.values = values;
+			ranking.top = top;
+			
+			for (ObjectName name : top)
+				discoverBeans(writer, name);
+		}
+		return finishDiscovery(plan, writer);
+	}
+	
+	/**
+	 * Reduces values of the attribute of all MBeans matching the pattern. MBeans without the attribute 
+	 * or with a value that is not a number are skipped
+	 */
+	private Number aggregate(CheckPlan plan) throws Exception
+	{
+		Aggregation.Accumulator accumulator = plan.getAggregation().newAccumulator();
+		String[] names = new String[] { plan.getAttributeName() };
+		int skipped = 0;
+		for (ObjectName name : discoveryCache.queryNames(plan.getObjectName()))
+		{
+			Object attribute = attributeCache.get(name, names, null, loader)[0];
+			Object value = null;
+			if (!(attribute instanceof ReadFailure))
+			{
+				try
+				{
+					value = getPrimitiveAttributeValue(attribute, plan.getFieldPath());
+				}
+				catch (Exception ex)
+				{
+					// skipped
+				}
+			}
+			if (value instanceof Number)
+				accumulator.add((Number)value);
+			else
+				skipped++;
+		}
+		if (skipped > 0)
+			log.log(Level.FINEST, "{0}: {1} beans skipped", new Object[] { plan.getKey().getKey(), skipped });
 		
+		Number result = accumulator.getResult();
+		if (result == null)
+			throw new ZabbixException("No values to aggregate");
+		return result;
+	}
+	
+	/**
+	 * Reads the listed or all readable attributes of the bean with one call and puts them into one 
+	 * JSON object for dependent items. Composite data becomes nested objects no deeper than 
+	 * <code>DiscoveryMaxDepth</code>, attributes that cannot be read or converted are left out
+	 * 
+	 * @return null if no attribute could be read
+	 */
+	private String readBean(CheckPlan plan) throws Exception
+	{
+		ObjectName name = plan.getObjectName();
+		String[] names = plan.getAttributeNames();
+		boolean[] readable = null;
+		if (names == null)
+		{
+			MBeanAttributeInfo[] attrInfos = discoveryCache.getMBeanInfo(name).getAttributes();
+			names = new String[attrInfos.length];
+			readable = new boolean[attrInfos.length];
+			for (int i = 0; i < attrInfos.length; i++)
+			{
+				names[i] = attrInfos[i].getName();
+				readable[i] = attrInfos[i].isReadable();
+			}
+		}
+		
+		Object[] values = attributeCache.get(name, names, readable, loader);
+		JSONObject result = new JSONObject();
+		ReadFailure failure = null;
+		int read = 0;
+		for (int i = 0; i < names.length; i++)
+		{
+			if (readable != null && !readable[i])
+				continue;
+			if (values[i] instanceof ReadFailure)
+			{
+				failure = (ReadFailure)values[i];
+				log.log(Level.FINEST, "attribute \"{0},{1}\" skipped: {2}", new Object[] { name, names[i], failure.message });
+				continue;
+			}
+			read++;
+			Object value = toJsonValue(values[i], 1);
+			if (value != null)
+				result.put(names[i], value);
+		}
+		if (read == 0 && failure != null)
+		{
+			log.log(Level.FINE, failure.message);
+			return null;
+		}
+		return result.toString();
+	}
+	
+	/**
+	 * @return value to put into a JSON object, null if the value is left out
+	 */
+	private Object toJsonValue(Object value, int depth) throws Exception
+	{
+		if (value == null)
+			return JSONObject.NULL;
+		else if (value instanceof Boolean)
+			return value;
+		else if (value instanceof Number)
+		{
+			double d = ((Number)value).doubleValue();
+			// JSON has no NaN and infinity
+			return Double.isNaN(d) || Double.isInfinite(d) ? value.toString() : value;
+		}
+		else if (value instanceof CompositeData)
+		{
+			if (depth >= discoveryMaxDepth)
+				return null;
+			CompositeData comp = (CompositeData)value;
+			JSONObject result = new JSONObject();
+			for (String key : comp.getCompositeType().keySet())
+			{
+				Object field = toJsonValue(comp.get(key), depth + 1);
+				if (field != null)
+					result.put(key, field);
+			}
+			return result;
+		}
+		else if (value instanceof TabularDataSupport || value.getClass().isArray())
+			return null;
+		else if (isPrimitiveAttributeType(value))
+			return value.toString();
 		return null;
 	}
+	
+	/**
+	 * Reduces samples of the attribute taken since the previous check. The first check starts sampling
+	 * 
+	 * @return number for a function, JSON object of {@link #SAMPLE_FUNCTIONS} without it,
+	 * 		{@link #NO_VALUE} if there are no samples yet
+	 */
+	private Object sample(final CheckPlan plan) throws Exception
+	{
+		Sampler sampler = samplers.get(plan.getKey());
+		if (sampler == null || sampler.isStopped())
+		{
+			// keep samples for two periods, a check may come late
+			long window = delay > 0 ? TimeUnit.SECONDS.toMillis(delay) : SAMPLE_WINDOW;
+			int capacity = (int)Math.min(MAX_SAMPLES, 2 * window / plan.getSampleInterval() + 1);
+			long readTimeout = config != null ? config.getTimeout() * 1000L : DEFAULT_TIMEOUT;
+			Sampler created = new Sampler(plan.getKey().getKey(), capacity, SAMPLE_UNUSED_PERIODS * window, readTimeout, new Sampler.Reader()
+			{
+				@Override
+				public Number read() throws Exception
+				{
+					Object attribute = readAttribute(plan.getObjectName(), plan.getAttributeName());
+					if (attribute instanceof ReadFailure)
+						throw new ZabbixException(((ReadFailure)attribute).message);
+					Object value = getPrimitiveAttributeValue(attribute, plan.getFieldPath());
+					if (!(value instanceof Number))
+						throw new ZabbixException("Sampled value is not a number: " + value.getClass().getName());
+					return (Number)value;
+				}
+			});
+			boolean added = sampler == null ? samplers.putIfAbsent(plan.getKey(), created) == null : samplers.replace(plan.getKey(), sampler, created);
+			if (!added)
+				return NO_VALUE; // another thread has just started it
+			log.log(Level.FINE, "Start sampling of \"{0}\" every {1} ms", new Object[] { plan.getKey().getKey(), plan.getSampleInterval() });
+			created.start(plan.getSampleInterval());
+			return NO_VALUE;
+		}
+		
+		String[] functions = plan.getAggregation() != null ? null : SAMPLE_FUNCTIONS;
+		Aggregation.Accumulator[] accumulators = new Aggregation.Accumulator[functions != null ? functions.length : 1];
+		for (int i = 0; i < accumulators.length; i++)
+			accumulators[i] = (functions != null ? Aggregation.parse(functions[i]) : plan.getAggregation()).newAccumulator();
+		if (sampler.drainTo(accumulators) == 0)
+		{
+			if (sampler.getError() != null)
+				throw new ZabbixException(sampler.getError());
+			return NO_VALUE;
+		}
+		
+		if (functions == null)
+			return accumulators[0].getResult();
+		JSONObject result = new JSONObject();
+		for (int i = 0; i < functions.length; i++)
+			result.put(functions[i], accumulators[i].getResult());
+		return result.toString();
+	}
+	
+	private String finishDiscovery(CheckPlan plan, DiscoveryWriter writer)
+	{
+		if (writer.isTruncated())
+			log.log(Level.WARNING, "Discovery \"{0}\" truncated after {1} rows: {2}", 
+					new Object[] { plan.getKey().getKey(), writer.getRows(), writer.getTruncateReason() });
+		return writer.finish();
+	}
 
-	private String getPrimitiveAttributeValue(Object dataObject, String fieldNames) throws Exception
+	/**
+	 * @return delta or rate of the counter, {@link #NO_VALUE} for the first value and after a counter reset
+	 */
+	private Object getCounterValue(CounterTable table, CheckPlan plan, int keyId, long nanos, Object value) throws ZabbixException
 	{
-		if (dataObject == null)
-			throw new ZabbixException("data object is null");
+		if (!(value instanceof Number))
+			throw new ZabbixException("Counter value is not a number: " + value.getClass().getName());
+		Number result = table.update(keyId, plan.getCounter(), nanos, (Number)value);
+		return result != null ? result : NO_VALUE;
+	}
 
-		if (fieldNames.equals(""))
+	/**
+	 * @return row of the passive counter, the least recently used counter is forgotten if there are too many
+	 */
+	private synchronized int getPassiveCounterId(ZabbixKey key)
+	{
+		Integer result = passiveCounterIds.get(key);
+		if (result != null)
+			return result;
+		
+		if (passiveCounterIds.size() < MAX_PASSIVE_COUNTERS)
+			result = passiveCounterIds.size();
+		else
 		{
-			if (isPrimitiveAttributeType(dataObject))
-				return dataObject.toString();
-			else
-				throw new ZabbixException("Data object type cannot be converted to string.");
+			Iterator<Integer> eldest = passiveCounterIds.values().iterator();
+			result = eldest.next();
+			eldest.remove();
+			passiveCounters.reset(result);
 		}
+		passiveCounterIds.put(key, result);
+		return result;
+	}
 
-		if (dataObject instanceof CompositeData)
+	/**
+	 * @return value of primitive type or of a type that overrides toString()
+	 */
+	private Object getPrimitiveAttributeValue(Object dataObject, String[] fieldPath) throws Exception
+	{
+		for (String fieldName : fieldPath)
 		{
-			CompositeData comp = (CompositeData)dataObject;
-
-			String dataObjectName;
-			String newFieldNames = "";
+			if (dataObject == null)
+				throw new ZabbixException("data object is null");
 
-			int sep = separatorIndex(fieldNames);
-			if (sep >= 0)
-			{
-				dataObjectName = fieldNames.substring(0, sep);
-				newFieldNames = fieldNames.substring(sep + 1);
-			}
+			if (dataObject instanceof CompositeData)
+				dataObject = ((CompositeData)dataObject).get(fieldName);
 			else
-				dataObjectName = fieldNames;
+				throw new ZabbixException("Unsupported data object type along the path: " + dataObject.getClass());
+		}
 
-			// unescape possible dots or backslashes that were escaped by user
-			dataObjectName = unescapeUserInput(dataObjectName);
+		if (dataObject == null)
+			throw new ZabbixException("data object is null");
 
-			return getPrimitiveAttributeValue(comp.get(dataObjectName), newFieldNames);
-		}
+		if (isPrimitiveAttributeType(dataObject))
+			return dataObject;
 		else
-			throw new ZabbixException("Unsupported data object type along the path: " + dataObject.getClass());
+			throw new ZabbixException("Data object type cannot be converted to string.");
 	}
 
 	private boolean isPrimitiveAttributeType(Object obj) throws NoSuchMethodException
 	{
-		Class<?>[] primitiveClasses = 
-								{
-										Boolean.class, Character.class, Byte.class, 
-										Short.class, Integer.class, Long.class,
-										Float.class, Double.class, String.class, 
-										BigDecimal.class, BigInteger.class, Date.class, 
-										ObjectName.class, AtomicBoolean.class,
-										AtomicInteger.class, AtomicLong.class
-								};
-		
-		boolean isPrimitive = false;
-		for (Class<?> c : primitiveClasses)
-		{
-			isPrimitive = c.equals(obj.getClass());
-			if (isPrimitive) break;
-		}
-
 		// check if the type is either primitive or overrides toString()
-		return isPrimitive 
+		return PRIMITIVE_CLASSES.contains(obj.getClass())
 				|| 	(	
 						!(obj instanceof CompositeData) 
 						&& !(obj instanceof TabularDataSupport) 
@@ -285,62 +1116,78 @@ public class CheckerTask implements Runnable
 					);
 	}
 	
-	private int separatorIndex(String input)
+	public synchronized void updateCheckPlans(List<CheckPlan> checkPlans)
 	{
-		for (int i = 0; i < input.length(); i++)
+		Set<ZabbixKey> keys = new HashSet<>();
+		for (CheckPlan plan : checkPlans)
+			keys.add(plan.getKey());
+		breakers.keySet().retainAll(keys);
+		rankings.keySet().retainAll(keys);
+		for (Iterator<Map.Entry<ZabbixKey, Sampler>> it = samplers.entrySet().iterator(); it.hasNext(); )
 		{
-			if (input.charAt(i) == '\\')
+			Map.Entry<ZabbixKey, Sampler> entry = it.next();
+			if (!keys.contains(entry.getKey()))
 			{
-				if (i + 1 < input.length() && (input.charAt(i + 1) == '\\' || input.charAt(i + 1) == '.'))
-					i++;
+				entry.getValue().stop();
+				it.remove();
 			}
-			else if (input.charAt(i) == '.')
-				return i;
 		}
-
-		return -1;
+		
+		this.checks = new Checks(checkPlans, resultBuffers[0].getKeys());
+		if (timers != null)
+			start(timers.wheel, timers.schedule);
+		counters.retain(checks.keyIds);
+		if (throttle != null)
+			throttle.retain(checks.keyIds);
 	}
 
-	private String unescapeUserInput(String input)
+	/**
+	 * Writes primitive values of all readable attributes of the bean, drilling down into composite 
+	 * data no deeper than <code>DiscoveryMaxDepth</code>
+	 */
+	private void discoverAttributes(DiscoveryWriter writer, ObjectName name, long deadline) throws Exception
 	{
-		StringBuilder builder = new StringBuilder(input.length());
-
-		for (int i = 0; i < input.length(); i++)
+		MBeanAttributeInfo[] attrInfos = discoveryCache.getMBeanInfo(name).getAttributes();
+		String[] names = new String[attrInfos.length];
+		boolean[] readable = new boolean[attrInfos.length];
+		for (int i = 0; i < attrInfos.length; i++)
 		{
-			if (input.charAt(i) == '\\' && i + 1 < input.length() 
-					&& (input.charAt(i + 1) == '\\' || input.charAt(i + 1) == '.'))
-			{
-				i++;
-			}
-
-			builder.append(input.charAt(i));
+			log.log(Level.FINEST, "discovered attribute \"{0}\"", attrInfos[i].getName());
+			names[i] = attrInfos[i].getName();
+			readable[i] = attrInfos[i].isReadable();
+			if (!readable[i])
+				log.log(Level.FINEST, "attribute not readable, skipping");
 		}
-
-		return builder.toString();
-	}
-
-	public synchronized void updateCheckItems(Set<CheckItem> checkItems)
-	{
-		this.checkItems = checkItems;
-	}
-
-	private void discoverAttributes(JSONArray counters, ObjectName name) throws Exception
-	{
-		for (MBeanAttributeInfo attrInfo : getMbServer().getMBeanInfo(name).getAttributes())
+		
+		// all attributes of the bean with one call
+		Object[] values = attributeCache.get(name, names, readable, loader);
+		String objectName = name.toString();
+		StringBuilder attrPath = new StringBuilder();
+		for (int i = 0; i < attrInfos.length && !writer.isTruncated(); i++)
 		{
-			log.log(Level.FINEST, "discovered attribute \"{0}\"", attrInfo.getName());
-
-			if (!attrInfo.isReadable())
+			if (!readable[i])
+				continue;
+			if (System.nanoTime() - deadline >= 0)
 			{
-				log.log(Level.FINEST, "attribute not readable, skipping");
+				writer.truncate("more than " + discoveryMaxTime + " ms");
+				return;
+			}
+			
+			MBeanAttributeInfo attrInfo = attrInfos[i];
+			if (values[i] instanceof ReadFailure)
+			{
+				Object[] logInfo = {name, attrInfo.getName(), ((ReadFailure)values[i]).message};
+				log.log(Level.WARNING, "attribute processing \"{0},{1}\" failed: {2}", logInfo);
 				continue;
 			}
-
+			
 			try
 			{
 				log.log(Level.FINEST, "looking for attributes of primitive types");
 				String descr = (attrInfo.getName().equals(attrInfo.getDescription()) ? null : attrInfo.getDescription());
-				findPrimitiveAttributes(counters, name, descr, attrInfo.getName(), getMbServer().getAttribute(name, attrInfo.getName()));
+				attrPath.setLength(0);
+				attrPath.append(attrInfo.getName());
+				findPrimitiveAttributes(writer, objectName, descr, attrPath, values[i], 1);
 			}
 			catch (Exception e)
 			{
@@ -351,32 +1198,49 @@ public class CheckerTask implements Runnable
 		}
 	}
 
-	private void findPrimitiveAttributes(JSONArray counters, ObjectName name, String descr, String attrPath, Object attribute) throws NoSuchMethodException, JSONException
+	/**
+	 * @param attrPath path to the attribute, restored on return
+	 */
+	private void findPrimitiveAttributes(DiscoveryWriter writer, String name, String descr, StringBuilder attrPath, Object attribute, int depth) throws NoSuchMethodException
 	{
 		log.log(Level.FINEST, "drilling down with attribute path \"{0}\"", attrPath);
 
-		if (isPrimitiveAttributeType(attribute))
+		if (attribute == null)
+			log.log(Level.FINEST, "attribute is null, skipping");
+		else if (isPrimitiveAttributeType(attribute))
 		{
 			log.log(Level.FINEST, "found attribute of a primitive type: {0}", attribute.getClass());
 
-			JSONObject counter = new JSONObject();
-
-			counter.put("{#JMXDESC}", null == descr ? name + "," + attrPath : descr);
-			counter.put("{#JMXOBJ}", name);
-			counter.put("{#JMXATTR}", attrPath);
-			counter.put("{#JMXTYPE}", attribute.getClass().getName());
-			counter.put("{#JMXVALUE}", attribute.toString());
-
-			counters.put(counter);
+			if (!writer.beginRow())
+				return;
+			String path = attrPath.toString();
+			writer.macro("{#JMXDESC}", null == descr ? name + "," + path : descr)
+					.macro("{#JMXOBJ}", name)
+					.macro("{#JMXATTR}", path)
+					.macro("{#JMXTYPE}", attribute.getClass().getName())
+					.macro("{#JMXVALUE}", attribute.toString());
+			writer.endRow();
 		}
 		else if (attribute instanceof CompositeData)
 		{
 			log.log(Level.FINEST, "found attribute of a composite type: {0}", attribute.getClass());
 
+			if (depth >= discoveryMaxDepth)
+			{
+				log.log(Level.FINEST, "max depth reached, skipping");
+				return;
+			}
+			
 			CompositeData comp = (CompositeData)attribute;
-
+			int length = attrPath.length();
 			for (String key : comp.getCompositeType().keySet())
-				findPrimitiveAttributes(counters, name, descr, attrPath + "." + key, comp.get(key));
+			{
+				if (writer.isTruncated())
+					break;
+				attrPath.append('.').append(key);
+				findPrimitiveAttributes(writer, name, descr, attrPath, comp.get(key), depth + 1);
+				attrPath.setLength(length);
+			}
 		}
 		else if (attribute instanceof TabularDataSupport || attribute.getClass().isArray())
 		{
@@ -386,40 +1250,34 @@ public class CheckerTask implements Runnable
 			log.log(Level.FINEST, "found attribute of an unknown, unsupported type: {0}", attribute.getClass());
 	}
 
-	private void discoverBeans(JSONArray counters, ObjectName name)
+	private void discoverBeans(DiscoveryWriter writer, ObjectName name)
 	{
-		try
-		{
-			HashSet<String> properties = new HashSet<>();
-			JSONObject counter = new JSONObject();
+		if (!writer.beginRow())
+			return;
+		
+		HashSet<String> properties = new HashSet<>();
 
-			// Default properties are added.
-			counter.put("{#JMXOBJ}", name);
-			counter.put("{#JMXDOMAIN}", name.getDomain());
-			properties.add("OBJ");
-			properties.add("DOMAIN");
+		// Default properties are added.
+		writer.macro("{#JMXOBJ}", name.toString());
+		writer.macro("{#JMXDOMAIN}", name.getDomain());
+		properties.add("OBJ");
+		properties.add("DOMAIN");
 
-			for (Map.Entry<String, String> property : name.getKeyPropertyList().entrySet())
-			{
-				String key = property.getKey().toUpperCase();
+		for (Map.Entry<String, String> property : name.getKeyPropertyList().entrySet())
+		{
+			String key = property.getKey().toUpperCase();
 
-				// Property key should only contain valid characters and should not be already added to attribute list.
-				if (key.matches("^[A-Z0-9_\\.]+$") && !properties.contains(key))
-				{
-					counter.put("{#JMX" + key + "}" , property.getValue());
-					properties.add(key);
-				}
-				else
-					log.log(Level.FINE, "bean \"{0}\" property \"{1}\" was ignored", new Object[] { name, property.getKey() });
+			// Property key should only contain valid characters and should not be already added to attribute list.
+			if (key.matches("^[A-Z0-9_\\.]+$") && !properties.contains(key))
+			{
+				writer.macro("{#JMX" + key + "}" , property.getValue());
+				properties.add(key);
 			}
-
-			counters.put(counter);
-		}
-		catch (Exception e)
-		{
-			log.log(Level.WARNING, "bean processing \"{0}\" failed: {1}", new Object[] { name, getRootCauseMessage(e) });
-			log.log(Level.FINE, "error caused by", e);
+			else
+				log.log(Level.FINE, "bean \"{0}\" property \"{1}\" was ignored", new Object[] { name, property.getKey() });
 		}
+		
+		writer.endRow();
 	}
 
 	Throwable getRootCause(Throwable e)
@@ -448,4 +1306,303 @@ public class CheckerTask implements Runnable
 		return mbServer;
 	}
 
+	/**
+	 * Splits units of a cycle into chunks for collector threads
+	 */
+	private static class CollectChunk extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final Cycle cycle;
+		private final int from;
+		private final int to;
+		private final int chunkSize;
+		
+		CollectChunk(Cycle cycle, int from, int to, int chunkSize)
+		{
+			this.cycle = cycle;
+			this.from = from;
+			this.to = to;
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from <= chunkSize)
+				cycle.collectUnits(from, to);
+			else
+			{
+				int middle = (from + to) >>> 1;
+				invokeAll(
+						new CollectChunk(cycle, from, middle, chunkSize), 
+						new CollectChunk(cycle, middle, to, chunkSize)
+				);
+			}
+		}
+	}
+	
+	/**
+	 * State of one run of the task.<br>
+	 * A unit is started by a collector thread only if the cycle is not closed yet. When the 
+	 * coordinator closes the cycle, units not started are skipped and units still running are 
+	 * timed out, values they put later are ignored. A unit is released by the thread reading it when
+	 * the read returns, or by the coordinator if the unit is skipped.
+	 */
+	private class Cycle
+	{
+		static final int NOT_STARTED = 0;
+		static final int STARTED = 1;
+		static final int DONE = 2;
+		static final int TIMED_OUT = 3;
+		static final int SKIPPED = 4;
+		
+		private final Checks checks;
+		/** Units of the cycle, the first {@link #count} are valid */
+		private final int[] units;
+		private final int count;
+		private final long clock;
+		private final boolean[] quarantined;
+		private final Object[] values;
+		private final String[] errors;
+		/** States of units by their index in {@link #units} */
+		private final AtomicIntegerArray unitStates;
+		
+		Cycle(Checks checks, int[] units, int count, long clock)
+		{
+			this.checks = checks;
+			this.units = units;
+			this.count = count;
+			this.clock = clock;
+			this.quarantined = new boolean[checks.slots.size()];
+			this.values = new Object[checks.slots.size()];
+			this.errors = new String[checks.slots.size()];
+			this.unitStates = new AtomicIntegerArray(count);
+		}
+		
+		/**
+		 * Reads units (attribute batches and discoveries) of {@link #units} from <code>from</code> (inclusive) 
+		 * to <code>to</code> (exclusive) and puts values to their slots
+		 */
+		void collectUnits(int from, int to)
+		{
+			for (int i = from; i < to; i++)
+			{
+				if (!unitStates.compareAndSet(i, NOT_STARTED, STARTED))
+					continue;
+				
+				int unit = units[i];
+				int offset = checks.offsets[unit];
+				try
+				{
+					CheckPlan plan = checks.slots.get(offset);
+					if (unit < checks.batches.size())
+						checkBatch(this, checks.batches.get(unit), offset);
+					else if (plan.getType() == CheckPlan.Type.ERROR)
+						errors[offset] = plan.getError();
+					else if (!quarantined[offset])
+						values[offset] = getValue(plan);
+				}
+				catch (Exception ex)
+				{
+					log.log(Level.FINE, ex.getMessage(), ex);
+					for (int slot = offset; slot < checks.unitEnd(unit); slot++)
+						errors[slot] = ex.getClass().getSimpleName() + ": " + getRootCauseMessage(ex);
+				}
+				// fails if the cycle is closed, the values are ignored then
+				unitStates.compareAndSet(i, STARTED, DONE);
+				release(checks, unit);
+			}
+		}
+		
+		void close()
+		{
+			for (int i = 0; i < count; i++)
+			{
+				if (unitStates.compareAndSet(i, NOT_STARTED, SKIPPED))
+					release(checks, units[i]);
+				else
+					unitStates.compareAndSet(i, STARTED, TIMED_OUT);
+			}
+		}
+	}
+	
+	/**
+	 * Timers of the units of one set of checks. Replaced when the checks change
+	 */
+	private class UnitTimers implements TimerWheel.Target
+	{
+		private final Checks checks;
+		private final TimerWheel wheel;
+		private final ItemSchedule schedule;
+		private volatile boolean stopped;
+		
+		UnitTimers(Checks checks, TimerWheel wheel, ItemSchedule schedule)
+		{
+			this.checks = checks;
+			this.wheel = wheel;
+			this.schedule = schedule;
+		}
+		
+		void scheduleAll()
+		{
+			long now = System.currentTimeMillis();
+			for (int unit = 0; unit < checks.unitCount(); unit++)
+				schedule(unit, now);
+		}
+		
+		private void schedule(int unit, long after)
+		{
+			long next = schedule.nextCheck(after, checks.seeds[unit]);
+			if (next != Long.MAX_VALUE)
+				wheel.schedule(this, unit, next);
+		}
+		
+		@Override
+		public void expired(int[] ids, int count, long time)
+		{
+			if (stopped)
+				return;
+			// the next check is due by the schedule whenever this one ends
+			for (int i = 0; i < count; i++)
+				schedule(ids[i], time);
+			submit(checks, Arrays.copyOf(ids, count), count);
+		}
+	}
+	
+	/**
+	 * Read of attribute batch that may block
+	 */
+	private class AttributeRead implements ForkJoinPool.ManagedBlocker
+	{
+		private final ObjectName objectName;
+		private final String[] names;
+		private final boolean[] wanted;
+		private final long[] loadTimes;
+		private volatile Object[] result;
+		
+		AttributeRead(ObjectName objectName, String[] names, boolean[] wanted, long[] loadTimes)
+		{
+			this.objectName = objectName;
+			this.names = names;
+			this.wanted = wanted;
+			this.loadTimes = loadTimes;
+		}
+
+		@Override
+		public boolean block() throws InterruptedException
+		{
+			result = attributeCache.get(objectName, names, wanted, loader, loadTimes);
+			return true;
+		}
+
+		@Override
+		public boolean isReleasable()
+		{
+			return result != null;
+		}
+	}
+	
+	/**
+	 * State of a top discovery between cycles
+	 */
+	private static class Ranking
+	{
+		private Map<ObjectName, Double> values = new HashMap<>();
+		private Set<ObjectName> top = new HashSet<>();
+	}
+	
+	private static class Ranked implements Comparable<Ranked>
+	{
+		private final ObjectName name;
+		private final double score;
+		
+		Ranked(ObjectName name, double score)
+		{
+			this.name = name;
+			this.score = score;
+		}
+
+		@Override
+		public int compareTo(Ranked other)
+		{
+			int result = Double.compare(score, other.score);
+			// ties are broken by name, so the top does not depend on query order
+			return result != 0 ? result : other.name.compareTo(name);
+		}
+	}
+	
+	private static class ReadFailure
+	{
+		private final String message;
+		
+		ReadFailure(String message)
+		{
+			this.message = message;
+		}
+	}
+
+	/**
+	 * Immutable snapshot of checks of the task.<br>
+	 * A unit of work is either an attribute batch or a discovery. Every plan has a slot for its value,
+	 * plans of a unit occupy consecutive slots starting from the unit offset.
+	 */
+	private static class Checks
+	{
+		private final List<CheckPlan> plans;
+		private final List<AttributeBatch> batches;
+		private final List<CheckPlan> slots;
+		/** Interned key id for every slot */
+		private final int[] keyIds;
+		private final int[] offsets;
+		/** Spreads checks of every unit over the interval, the same for the same MBean or key */
+		private final int[] seeds;
+		
+		Checks(List<CheckPlan> plans, KeyRegistry keys)
+		{
+			this.plans = plans;
+			this.batches = AttributeBatch.group(plans);
+			this.slots = new ArrayList<>(plans.size());
+			
+			List<CheckPlan> discoveries = new ArrayList<>();
+			for (CheckPlan plan : plans)
+			{
+				if (plan.getType() != CheckPlan.Type.JMX)
+					discoveries.add(plan);
+			}
+			
+			this.offsets = new int[batches.size() + discoveries.size()];
+			this.seeds = new int[offsets.length];
+			int unit = 0;
+			for (AttributeBatch batch : batches)
+			{
+				seeds[unit] = batch.getObjectName().getCanonicalName().hashCode();
+				offsets[unit++] = slots.size();
+				slots.addAll(batch.getPlans());
+			}
+			for (CheckPlan plan : discoveries)
+			{
+				seeds[unit] = plan.getKey().getKey().hashCode();
+				offsets[unit++] = slots.size();
+				slots.add(plan);
+			}
+			
+			this.keyIds = new int[slots.size()];
+			for (int i = 0; i < keyIds.length; i++)
+				keyIds[i] = keys.intern(slots.get(i).getKey());
+		}
+		
+		int unitCount()
+		{
+			return offsets.length;
+		}
+		
+		/**
+		 * @return slot after the last slot of the unit
+		 */
+		int unitEnd(int unit)
+		{
+			return (unit + 1 < offsets.length) ? offsets[unit + 1] : slots.size();
+		}
+	}
 }
@@ -0,0 +1,81 @@
+package com.github.zabbix.agent;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.github.zabbix.agent.util.DaemonThreadFactory;
+
+/**
+ * Threads reading active checks.<br>
+ * Reads are done by a work-stealing pool of <code>StartCollectors</code> threads. Every cycle
+ * is coordinated by a thread of its own that is never a pool worker, so it can wait for the
+ * cycle with a deadline and cannot end up running a hung read itself. The number of coordinators
+ * and of cycles waiting for one are bounded, so hung reads cannot make them pile up.
+ *
+ * @author Victor Kadachigov
+ */
+public class CollectorPool
+{
+	private static final int COORDINATORS_PER_COLLECTOR = 4;
+	private static final int MAX_QUEUED_CYCLES = 1024;
+
+	private static CollectorPool defaultPool;
+
+	private final ForkJoinPool workers;
+	private final ThreadPoolExecutor coordinators;
+
+	public CollectorPool(int parallelism)
+	{
+		workers = new ForkJoinPool(parallelism, new DaemonThreadFactory("zabbix-agent-collector"), null, false);
+		int maxCoordinators = parallelism * COORDINATORS_PER_COLLECTOR;
+		coordinators = new ThreadPoolExecutor(maxCoordinators, maxCoordinators, 60, TimeUnit.SECONDS, 
+												new LinkedBlockingQueue<Runnable>(MAX_QUEUED_CYCLES), 
+												new DaemonThreadFactory("zabbix-agent-cycle"));
+		coordinators.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @return pool of tasks created without one, it is never shut down
+	 */
+	public static synchronized CollectorPool getDefault()
+	{
+		if (defaultPool == null)
+			defaultPool = new CollectorPool(Math.min(4, Runtime.getRuntime().availableProcessors()));
+		return defaultPool;
+	}
+
+	public int getParallelism()
+	{
+		return workers.getParallelism();
+	}
+
+	/**
+	 * Runs cycle coordinator
+	 * 
+	 * @throws RejectedExecutionException if the pool is shut down or too many cycles are waiting
+	 */
+	public void execute(Runnable coordinator)
+	{
+		coordinators.execute(coordinator);
+	}
+
+	public boolean isShutdown()
+	{
+		return coordinators.isShutdown();
+	}
+
+	public <T> ForkJoinTask<T> submit(ForkJoinTask<T> task)
+	{
+		return workers.submit(task);
+	}
+
+	public void shutdown()
+	{
+		coordinators.shutdownNow();
+		workers.shutdownNow();
+	}
+}
@@ -0,0 +1,103 @@
+package com.github.zabbix.agent;
+
+import java.util.Arrays;
+
+/**
+ * Last samples of monotonic counters of <code>jmx.delta</code> and <code>jmx.rate</code> checks.<br>
+ * Samples are kept in primitive columns indexed by interned key id, the time of a sample is
+ * {@link System#nanoTime()}, so changes of the wall clock do not change rates. Integer counters
+ * give integer deltas. There is no result for the first sample of a counter and when the counter
+ * went down, which means it was reset, e.g. by a restart of the component.<br>
+ * Thread safe.
+ *
+ * @author Victor Kadachigov
+ */
+public class CounterTable
+{
+	private static final int INITIAL_CAPACITY = 256;
+
+	private static final byte NONE = 0;
+	private static final byte INTEGRAL = 1;
+	private static final byte FLOATING = 2;
+
+	private byte[] kinds = new byte[INITIAL_CAPACITY];
+	private long[] times = new long[INITIAL_CAPACITY];
+	private long[] longs = new long[INITIAL_CAPACITY];
+	private double[] doubles = new double[INITIAL_CAPACITY];
+
+	/**
+	 * Keeps the sample and compares it with the previous one
+	 *
+	 * @param nanos {@link System#nanoTime()} the value was read at
+	 * @return delta or rate, null for the first sample and after a reset
+	 */
+	public synchronized Number update(int keyId, CheckPlan.Counter counter, long nanos, Number value)
+	{
+		if (keyId >= kinds.length)
+			grow(keyId);
+
+		long elapsed = nanos - times[keyId];
+		if (kinds[keyId] != NONE && elapsed <= 0)
+			return null; // the same sample again
+
+		boolean integral = Aggregation.isIntegral(value);
+		Number delta = null;
+		if (kinds[keyId] == INTEGRAL && integral)
+		{
+			long last = longs[keyId];
+			long current = value.longValue();
+			if (current >= last)
+				delta = current - last;
+		}
+		else if (kinds[keyId] != NONE)
+		{
+			double last = kinds[keyId] == INTEGRAL ? longs[keyId] : doubles[keyId];
+			double current = value.doubleValue();
+			if (current >= last)
+				delta = current - last;
+		}
+
+		kinds[keyId] = integral ? INTEGRAL : FLOATING;
+		times[keyId] = nanos;
+		longs[keyId] = integral ? value.longValue() : 0;
+		doubles[keyId] = integral ? 0 : value.doubleValue();
+
+		if (delta == null || counter == CheckPlan.Counter.DELTA)
+			return delta;
+		return delta.doubleValue() * 1e9 / elapsed;
+	}
+
+	/**
+	 * Forgets the samples of the key
+	 */
+	public synchronized void reset(int keyId)
+	{
+		if (keyId < kinds.length)
+			kinds[keyId] = NONE;
+	}
+
+	/**
+	 * Forgets samples of all keys but the given ones
+	 */
+	public synchronized void retain(int[] keyIds)
+	{
+		boolean[] keep = new boolean[kinds.length];
+		for (int keyId : keyIds)
+			if (keyId < keep.length)
+				keep[keyId] = true;
+		for (int i = 0; i < kinds.length; i++)
+			if (!keep[i])
+				kinds[i] = NONE;
+	}
+
+	private void grow(int keyId)
+	{
+		int capacity = kinds.length;
+		while (capacity <= keyId)
+			capacity *= 2;
+		kinds = Arrays.copyOf(kinds, capacity);
+		times = Arrays.copyOf(times, capacity);
+		longs = Arrays.copyOf(longs, capacity);
+		doubles = Arrays.copyOf(doubles, capacity);
+	}
+}
@@ -0,0 +1,280 @@
+package com.github.zabbix.agent;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+
+import javax.management.JMException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.relation.MBeanServerNotificationFilter;
+
+import lombok.extern.java.Log;
+
+/**
+ * Keeps results of MBean queries of discovery checks up to date without querying the MBean
+ * server again.<br>
+ * The first query of a pattern asks the MBean server, later ones are answered from the set kept
+ * current by registration and unregistration notifications of {@link MBeanServerDelegate}.
+ * Notifications arriving while the first query runs are applied after it, so none is lost. A
+ * notification only updates the set, the list of names is copied from it on the next query, so
+ * a burst of registrations costs one copy.
+ * {@link MBeanInfo} is kept per MBean until it is unregistered. Discovery data is rendered again
+ * only when the set of MBeans matching the pattern has changed. Patterns not queried for
+ * {@link #UNUSED_TIMEOUT} are forgotten.<br>
+ * If notifications are not available, every query asks the MBean server.<br>
+ * Thread safe.
+ *
+ * @author Victor Kadachigov
+ */
+@Log(topic="com.github.zabbix.agent")
+public class DiscoveryCache
+{
+	private static final long UNUSED_TIMEOUT = 3600000L; // 1 hour
+
+	/**
+	 * Makes discovery data of MBeans
+	 */
+	public interface Renderer
+	{
+		String render(List<ObjectName> names) throws Exception;
+	}
+
+	private final Map<ObjectName, Query> queries = new HashMap<>();
+	private final ConcurrentMap<ObjectName, MBeanInfo> infos = new ConcurrentHashMap<>();
+	private final NotificationListener listener = new NotificationListener()
+	{
+		@Override
+		public void handleNotification(Notification notification, Object handback)
+		{
+			if (notification instanceof MBeanServerNotification)
+				onNotification((MBeanServerNotification)notification);
+		}
+	};
+
+	private MBeanServer mbServer;
+	private boolean subscribed;
+
+	/**
+	 * @param pattern pattern, null for all MBeans
+	 * @return names of registered MBeans matching the pattern in {@link ObjectName} order
+	 */
+	public List<ObjectName> queryNames(ObjectName pattern)
+	{
+		return getNames(getQuery(pattern));
+	}
+
+	/**
+	 * @param renderKey what the renderer makes, e.g. the item key. The same key must always be
+	 * 		rendered the same way
+	 * @return data made by the renderer for MBeans matching the pattern, cached until they change
+	 */
+	public String render(ObjectName pattern, Object renderKey, Renderer renderer) throws Exception
+	{
+		Query query = getQuery(pattern);
+		List<ObjectName> names;
+		synchronized (this)
+		{
+			names = getNames(query);
+			Rendered rendered = query.rendered.get(renderKey);
+			if (rendered != null && rendered.names == names)
+				return rendered.text;
+		}
+
+		String text = renderer.render(names);
+		synchronized (this)
+		{
+			query.rendered.put(renderKey, new Rendered(names, text));
+		}
+		return text;
+	}
+
+	public MBeanInfo getMBeanInfo(ObjectName name) throws JMException
+	{
+		MBeanInfo result = infos.get(name);
+		if (result == null)
+		{
+			result = getMbServer().getMBeanInfo(name);
+			if (isSubscribed())
+				infos.put(name, result);
+		}
+		return result;
+	}
+
+	private Query getQuery(ObjectName pattern)
+	{
+		if (pattern == null)
+			pattern = ObjectName.WILDCARD;
+		MBeanServer server = getMbServer();
+		Query query;
+		synchronized (this)
+		{
+			long now = System.currentTimeMillis();
+			removeUnused(now);
+			query = subscribed ? queries.get(pattern) : null;
+			if (query != null)
+			{
+				query.lastUsed = now;
+				if (query.events == null)
+					return query;
+			}
+			else
+			{
+				query = new Query(pattern, now);
+				if (subscribed)
+					queries.put(pattern, query);
+			}
+		}
+
+		// first query, or another thread is making it
+		Set<ObjectName> names;
+		try
+		{
+			names = new TreeSet<>(server.queryNames(pattern, null));
+		}
+		catch (RuntimeException ex)
+		{
+			synchronized (this)
+			{
+				// notifications are not collected for a query nobody makes, the next call starts over
+				if (query.events != null && queries.get(pattern) == query)
+					queries.remove(pattern);
+			}
+			throw ex;
+		}
+		synchronized (this)
+		{
+			if (query.events != null)
+			{
+				for (MBeanServerNotification event : query.events)
+				{
+					if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(event.getType()))
+						names.add(event.getMBeanName());
+					else
+						names.remove(event.getMBeanName());
+				}
+				query.set = names;
+				query.names = Collections.unmodifiableList(new ArrayList<>(names));
+				query.events = null;
+			}
+			return query;
+		}
+	}
+
+	private synchronized void onNotification(MBeanServerNotification notification)
+	{
+		ObjectName name = notification.getMBeanName();
+		boolean registered = MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType());
+		if (!registered)
+			infos.remove(name);
+
+		for (Query query : queries.values())
+		{
+			if (!query.pattern.apply(name))
+				continue;
+			if (query.events != null)
+			{
+				query.events.add(notification);
+				continue;
+			}
+			if (registered ? query.set.add(name) : query.set.remove(name))
+				query.names = null;
+		}
+	}
+
+	/**
+	 * @return current names of the query, copied from its set if it has changed
+	 */
+	private synchronized List<ObjectName> getNames(Query query)
+	{
+		if (query.names == null)
+			query.names = Collections.unmodifiableList(new ArrayList<>(query.set));
+		return query.names;
+	}
+
+	private void removeUnused(long now)
+	{
+		for (Iterator<Query> it = queries.values().iterator(); it.hasNext(); )
+		{
+			Query query = it.next();
+			if (query.events == null && now - query.lastUsed > UNUSED_TIMEOUT)
+			{
+				log.log(Level.FINE, "Forget discovery of \"{0}\"", query.pattern);
+				it.remove();
+			}
+		}
+	}
+
+	private synchronized boolean isSubscribed()
+	{
+		return subscribed;
+	}
+
+	private synchronized MBeanServer getMbServer()
+	{
+		if (mbServer == null)
+		{
+			mbServer = ManagementFactory.getPlatformMBeanServer();
+			try
+			{
+				MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+				filter.enableAllObjectNames();
+				mbServer.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, listener, filter, null);
+				subscribed = true;
+			}
+			catch (Exception ex)
+			{
+				log.log(Level.WARNING, "MBean registrations cannot be tracked, discovery will query all MBeans every time: {0}", ex.getMessage());
+			}
+		}
+		return mbServer;
+	}
+
+	/**
+	 * MBeans matching a pattern
+	 */
+	private static class Query
+	{
+		private final ObjectName pattern;
+		private final Map<Object, Rendered> rendered = new HashMap<>();
+		/** Notifications arrived while the first query runs, null after it */
+		private List<MBeanServerNotification> events = new ArrayList<>();
+		private Set<ObjectName> set;
+		/** Immutable copy of the set, null after the set has changed until it is asked for */
+		private List<ObjectName> names;
+		private long lastUsed;
+
+		private Query(ObjectName pattern, long lastUsed)
+		{
+			this.pattern = pattern;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+	private static class Rendered
+	{
+		/** Names the text was rendered for */
+		private final List<ObjectName> names;
+		private final String text;
+
+		private Rendered(List<ObjectName> names, String text)
+		{
+			this.names = names;
+			this.text = text;
+		}
+	}
+}
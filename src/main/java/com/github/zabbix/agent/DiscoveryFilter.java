@@ -0,0 +1,117 @@
+package com.github.zabbix.agent;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.management.ObjectName;
+
+/**
+ * Include and exclude conditions of <code>jmx.discovery</code> applied to MBean names before
+ * discovery data is made, so MBeans the server would drop are never sent.<br>
+ * A condition is <code>&lt;property&gt;=&lt;regex&gt;</code>, matched against the value of the key
+ * property of the name, or just <code>&lt;regex&gt;</code>, matched against the whole canonical name.
+ * As in Zabbix LLD filters, a regex matches if it is found anywhere in the value. An MBean
+ * without the property is not included and not excluded.<br>
+ * Compiled patterns are shared by all plans, so refreshing active checks does not compile them again.<br>
+ * Immutable.
+ *
+ * @author Victor Kadachigov
+ */
+public class DiscoveryFilter
+{
+	public static final DiscoveryFilter ALL = new DiscoveryFilter(null, null);
+
+	private static final int MAX_CACHED_PATTERNS = 1000;
+	private static final ConcurrentMap<String, Pattern> PATTERNS = new ConcurrentHashMap<>();
+
+	private final Condition include;
+	private final Condition exclude;
+
+	private DiscoveryFilter(Condition include, Condition exclude)
+	{
+		this.include = include;
+		this.exclude = exclude;
+	}
+
+	/**
+	 * @param include condition, null or empty to include all
+	 * @param exclude condition, null or empty to exclude none
+	 */
+	public static DiscoveryFilter parse(String include, String exclude) throws ZabbixException
+	{
+		Condition in = Condition.parse(include);
+		Condition ex = Condition.parse(exclude);
+		return (in == null && ex == null) ? ALL : new DiscoveryFilter(in, ex);
+	}
+
+	public boolean accept(ObjectName name)
+	{
+		if (include != null && include.matches(name) != Boolean.TRUE)
+			return false;
+		return exclude == null || exclude.matches(name) != Boolean.TRUE;
+	}
+
+	public boolean isAll()
+	{
+		return this == ALL;
+	}
+
+	private static Pattern compile(String regex) throws ZabbixException
+	{
+		Pattern result = PATTERNS.get(regex);
+		if (result == null)
+		{
+			try
+			{
+				result = Pattern.compile(regex);
+			}
+			catch (PatternSyntaxException ex)
+			{
+				throw new ZabbixException("invalid regular expression \"" + regex + "\": " + ex.getDescription());
+			}
+			if (PATTERNS.size() >= MAX_CACHED_PATTERNS)
+				PATTERNS.clear();
+			PATTERNS.put(regex, result);
+		}
+		return result;
+	}
+
+	private static class Condition
+	{
+		/** null for the whole name */
+		private final String property;
+		private final Pattern pattern;
+
+		private Condition(String property, Pattern pattern)
+		{
+			this.property = property;
+			this.pattern = pattern;
+		}
+
+		private static Condition parse(String text) throws ZabbixException
+		{
+			if (text == null || text.isEmpty())
+				return null;
+			int n = text.indexOf('=');
+			// a property name has no regex special characters
+			if (n > 0 && text.substring(0, n).matches("[\\w.-]+"))
+				return new Condition(text.substring(0, n), compile(text.substring(n + 1)));
+			return new Condition(null, compile(text));
+		}
+
+		/**
+		 * @return null if the name has no such property
+		 */
+		private Boolean matches(ObjectName name)
+		{
+			String value = property != null ? name.getKeyProperty(property) : name.getCanonicalName();
+			if (value == null)
+				return null;
+			Matcher m = pattern.matcher(value);
+			return m.find();
+		}
+	}
+}
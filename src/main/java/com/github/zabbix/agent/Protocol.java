@@ -10,9 +10,13 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Formatter;
@@ -20,16 +24,20 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Queue;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.github.zabbix.agent.data.CheckItem;
-import com.github.zabbix.agent.data.CheckResult;
+import com.github.zabbix.agent.data.ItemSchedule;
+import com.github.zabbix.agent.data.ResultBatch;
 import com.github.zabbix.agent.data.ServerAddress;
 import com.github.zabbix.agent.data.ZabbixKey;
 
@@ -41,9 +49,17 @@ import lombok.extern.java.Log;
 @Log(topic="com.github.zabbix.agent")
 public class Protocol
 {
-	private static final byte[] PROTOCOL_HEADER = {'Z', 'B', 'X', 'D', '\1'};
+	private static final byte[] PROTOCOL_SIGNATURE = {'Z', 'B', 'X', 'D'};
 	private static final Charset DEFAULT_ENCODING = Charset.forName("UTF-8");
 	
+	static final int FLAG_PROTOCOL = 0x01;
+	/** Data is compressed with zlib, reserved field keeps uncompressed size */
+	static final int FLAG_COMPRESSED = 0x02;
+	/** Data length and reserved fields are 8 bytes long */
+	static final int FLAG_LARGE = 0x04;
+	/** Signature, flags, 8 bytes data length, 8 bytes reserved */
+	static final int MAX_HEADER_SIZE = 21;
+	
 	public static final String JSON_TAG_REQUEST = "request";
 	public static final String JSON_TAG_RESPONSE = "response";
 	public static final String JSON_TAG_INFO = "info";
@@ -52,19 +68,37 @@ public class Protocol
 	public static final String JSON_TAG_HOST = "host";
 	public static final String JSON_TAG_CLOCK = "clock";
 	public static final String JSON_TAG_VALUE = "value";
+	public static final String JSON_TAG_STATE = "state";
+	public static final String JSON_TAG_CONFIG_REVISION = "config_revision";
+	public static final String JSON_TAG_SESSION = "session";
 
 	private static final String JSON_RESPONSE_FAILED = "failed";
 	private static final String JSON_RESPONSE_SUCCESS = "success";
 	
 	private final ZabbixAgentConfig config;
 	private final ServerAddress serverAddress;
+	private final AgentDataEncoder agentDataEncoder;
+	private final Inflater inflater = new Inflater();
+	/** Identifies this agent to the server, so the server knows which revision of checks it has */
+	private final String session = UUID.randomUUID().toString().replace("-", "");
+	/** Revision of the last list of active checks applied, 0 if none */
+	private volatile long configRevision;
+	/** Revision of the last list of active checks received, applied or not */
+	private volatile long receivedRevision;
 	
 	public Protocol(ServerAddress serverAddress, ZabbixAgentConfig config)
 	{
 		this.config = config;
 		this.serverAddress = serverAddress;
+		this.agentDataEncoder = new AgentDataEncoder(config != null && config.isEnableCompression());
 	}
 
+	/**
+	 * Zabbix 6.4+ sends the list only if its configuration revision differs from the one
+	 * the agent has, older servers always send the list.
+	 * 
+	 * @return null if the list has not changed since the previous call
+	 */
 	public Set<CheckItem> refreshActiveChecks() throws ZabbixException
 	{
 		Socket socket = null;
@@ -72,12 +106,7 @@ public class Protocol
         {
 			socket = openSocket();
 			
-			JSONObject requestJson = new JSONObject();
-			requestJson.put(JSON_TAG_REQUEST, "active checks");
-			requestJson.put(JSON_TAG_HOST, config.getHostname());
-			requestJson.putOpt("host_metadata", config.getHostMetadata());
-			
-			String msg = requestJson.toString();
+			String msg = activeChecksRequest().toString();
 			
 			log.log(Level.FINE, "sending {0}", msg);
 //System.out.println("sending {0}");
@@ -85,23 +114,7 @@ public class Protocol
 			byte message[] = toZbxMessage(msg);
 			socket.getOutputStream().write(message);
 			
-			Set<CheckItem> result = new HashSet<>();
-    		
-			JSONObject responseJson = checkResponse(read(socket.getInputStream()), "active checks");
-			JSONArray dataJson = responseJson.getJSONArray(JSON_TAG_DATA);
-			for (int i = 0; i < dataJson.length(); i++)
-			{
-				JSONObject itemJson = dataJson.getJSONObject(i);
-				CheckItem item = CheckItem.builder()
-											.key(new ZabbixKey(itemJson.getString(JSON_TAG_KEY)))
-											.delay(itemJson.getInt("delay"))
-											.lastlogsize(itemJson.optInt("lastlogsize"))
-											.mtime(itemJson.optInt("mtime"))
-											.build();
-				result.add(item);
-			}
-			
-			return result;
+			return parseActiveChecks(read(socket.getInputStream()));
 		} 
         catch (JSONException | IOException ex) 
         {
@@ -113,6 +126,76 @@ public class Protocol
 		}
 	}
 	
+	/**
+	 * Makes the next {@link #refreshActiveChecks()} get the whole list, e.g. after restart
+	 */
+	public void resetConfigRevision()
+	{
+		configRevision = 0;
+	}
+	
+	/**
+	 * Tells the server the list received by the last {@link #refreshActiveChecks()} is applied.
+	 * Until then the server sends the whole list again
+	 */
+	public void commitConfigRevision()
+	{
+		configRevision = receivedRevision;
+	}
+	
+	JSONObject activeChecksRequest() throws JSONException
+	{
+		JSONObject result = new JSONObject();
+		result.put(JSON_TAG_REQUEST, "active checks");
+		result.put(JSON_TAG_HOST, config.getHostname());
+		result.putOpt("host_metadata", config.getHostMetadata());
+		result.put(JSON_TAG_CONFIG_REVISION, configRevision);
+		result.put(JSON_TAG_SESSION, session);
+		return result;
+	}
+	
+	/**
+	 * @return null if the server reports the configuration has not changed
+	 */
+	Set<CheckItem> parseActiveChecks(String response) throws ZabbixException, JSONException
+	{
+		JSONObject responseJson = checkResponse(response, "active checks");
+		long revision = responseJson.optLong(JSON_TAG_CONFIG_REVISION, 0);
+		if (!responseJson.has(JSON_TAG_DATA) && revision != 0 && revision == configRevision)
+		{
+			log.log(Level.FINE, "Active checks not changed, revision {0}", revision);
+			return null;
+		}
+		
+		Set<CheckItem> result = new HashSet<>();
+		JSONArray dataJson = responseJson.getJSONArray(JSON_TAG_DATA);
+		for (int i = 0; i < dataJson.length(); i++)
+		{
+			JSONObject itemJson = dataJson.getJSONObject(i);
+			ItemSchedule schedule;
+			try
+			{
+				// seconds, or a string with suffixes, flexible and scheduling intervals since Zabbix 3.4
+				schedule = ItemSchedule.parse(itemJson.getString("delay"));
+			}
+			catch (IllegalArgumentException ex)
+			{
+				log.log(Level.WARNING, "Skip \"{0}\": {1}", new Object[] { itemJson.getString(JSON_TAG_KEY), ex.getMessage() });
+				continue;
+			}
+			CheckItem item = CheckItem.builder()
+										.key(new ZabbixKey(itemJson.getString(JSON_TAG_KEY)))
+										.delay(schedule.getInterval())
+										.schedule(schedule)
+										.lastlogsize(itemJson.optInt("lastlogsize"))
+										.mtime(itemJson.optInt("mtime"))
+										.build();
+			result.add(item);
+		}
+		receivedRevision = revision;
+		return result;
+	}
+	
 	private JSONObject checkResponse(String responseString, String requestTitle) throws ZabbixException, JSONException
 	{
 		JSONObject result = new JSONObject(responseString);
@@ -131,9 +214,18 @@ public class Protocol
 			log.log(Level.FINE, "Connecting to {0}", serverAddress);
 //System.out.println("Connecting to {0}");
 
-			Socket result = new Socket();
-			result.connect(serverAddress.getSocketAddress(), config.getTimeout() * 1000);
-//			result.setSoTimeout(config.getTimeout() * 1000);
+			// channel is used for gathering writes
+			Socket result = SocketChannel.open().socket();
+			try
+			{
+				result.connect(serverAddress.getSocketAddress(), config.getTimeout() * 1000);
+			}
+			catch (IOException ex)
+			{
+				closeSocket(result);
+				throw ex;
+			}
+			result.setSoTimeout(config.getTimeout() * 1000); // read deadline
 			
 			return result;
 		}
@@ -143,7 +235,7 @@ public class Protocol
 		} 
 	}
 	
-	private String read(InputStream inputStream) throws IOException
+	String read(InputStream inputStream) throws IOException
 	{
 		DataInputStream dis = new DataInputStream(inputStream);
 
@@ -155,31 +247,40 @@ public class Protocol
 		data = new byte[5];
 		dis.readFully(data);
 
-		if (!Arrays.equals(data, PROTOCOL_HEADER))
+		int flags = data[4];
+		if (!Arrays.equals(Arrays.copyOf(data, 4), PROTOCOL_SIGNATURE)
+				|| (flags & FLAG_PROTOCOL) == 0 
+				|| (flags & ~(FLAG_PROTOCOL | FLAG_COMPRESSED | FLAG_LARGE)) != 0)
 			throw new RuntimeException(
 							new Formatter().format(
 									"bad protocol header: %02X %02X %02X %02X %02X", data[0], data[1], data[2], data[3], data[4]
 							).toString()
 					);
 
-		log.finest("reading 8 bytes of data length");
+		int sizeLength = (flags & FLAG_LARGE) != 0 ? 8 : 4;
+		log.log(Level.FINEST, "reading {0} bytes of data length", sizeLength * 2);
 //System.out.println("reading 8 bytes of data length");
 		
-		data = new byte[8];
+		data = new byte[sizeLength * 2];
 		dis.readFully(data);
 
 		ByteBuffer buffer = ByteBuffer.wrap(data);
 		buffer.order(ByteOrder.LITTLE_ENDIAN);
-		long length = buffer.getLong();
+		long length = sizeLength == 8 ? buffer.getLong() : buffer.getInt() & 0xFFFFFFFFL;
+		long reserved = sizeLength == 8 ? buffer.getLong() : buffer.getInt() & 0xFFFFFFFFL;
 
 		if (!(0 <= length && length <= Integer.MAX_VALUE))
 			throw new RuntimeException("bad data length: " + length);
+		if ((flags & FLAG_COMPRESSED) != 0 && !(0 <= reserved && reserved <= Integer.MAX_VALUE))
+			throw new RuntimeException("bad uncompressed data length: " + reserved);
 
 		log.log(Level.FINEST, "reading {0} bytes from server", length);
 //System.out.println("reading {0} bytes from server");
 		
 		data = new byte[(int)length];
 		dis.readFully(data);
+		if ((flags & FLAG_COMPRESSED) != 0)
+			data = uncompress(data, (int)reserved);
 		
 //		saveToFile(data, null);
 
@@ -190,6 +291,85 @@ public class Protocol
 		return responseString;
 	}
 	
+	private byte[] uncompress(byte[] data, int length) throws IOException
+	{
+		byte[] result = new byte[length];
+		// refresh and send lanes share the protocol
+		synchronized (inflater)
+		{
+			inflater.reset();
+			inflater.setInput(data);
+			try
+			{
+				int n = 0;
+				while (n < length && !inflater.finished())
+				{
+					int count = inflater.inflate(result, n, length - n);
+					if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+						break;
+					n += count;
+				}
+				if (n != length || !inflater.finished())
+					throw new IOException("bad compressed data: expected " + length + " bytes, got " + n);
+			}
+			catch (DataFormatException ex)
+			{
+				throw new IOException("bad compressed data: " + ex.getMessage(), ex);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Gathering write with a deadline of Timeout seconds. The channel is switched to non-blocking
+	 * mode for the time of writing, as blocking channel writes can not time out.
+	 */
+	private void write(SocketChannel channel, ByteBuffer[] message) throws IOException
+	{
+		long deadline = System.currentTimeMillis() + config.getTimeout() * 1000L;
+		ByteBuffer last = message[message.length - 1];
+		channel.configureBlocking(false);
+		try (Selector selector = Selector.open())
+		{
+			channel.register(selector, SelectionKey.OP_WRITE);
+			while (last.hasRemaining())
+			{
+				if (channel.write(message) > 0)
+					continue;
+				long timeout = deadline - System.currentTimeMillis();
+				if (timeout <= 0)
+					throw new SocketTimeoutException("Write timed out");
+				selector.select(timeout);
+			}
+		}
+		// the key is deregistered when the selector is closed
+		channel.configureBlocking(true);
+	}
+	
+	/**
+	 * Writes Zabbix protocol header. Large packet header is written if {@link #FLAG_LARGE} is set.
+	 * 
+	 * @param reserved uncompressed data length for compressed data, 0 otherwise
+	 */
+	static void putHeader(ByteBuffer header, int flags, long length, long reserved)
+	{
+		ByteOrder order = header.order();
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		header.put(PROTOCOL_SIGNATURE);
+		header.put((byte)flags);
+		if ((flags & FLAG_LARGE) != 0)
+		{
+			header.putLong(length);
+			header.putLong(reserved);
+		}
+		else
+		{
+			header.putInt((int)length);
+			header.putInt((int)reserved);
+		}
+		header.order(order);
+	}
+	
 	private void saveToFile(byte[] data, String fileName)
 	{
 		OutputStream os = null;
@@ -236,51 +416,30 @@ public class Protocol
 	private byte[] toZbxMessage(String message)
 	{
 		byte data[] = message.getBytes(DEFAULT_ENCODING);
-		byte header[] = new byte[] 
-						{
-							'Z', 'B', 'X', 'D', '\1',
-							(byte)(data.length & 0xFF),
-							(byte)((data.length >> 8) & 0xFF),
-							(byte)((data.length >> 16) & 0xFF),
-							(byte)((data.length >> 24) & 0xFF),
-							'\0', '\0', '\0', '\0'
-						};
-		byte[] result = new byte[header.length + data.length];
-		System.arraycopy(header, 0, result, 0, header.length);
-		System.arraycopy(data, 0, result, header.length, data.length);
-		return result;
+		ByteBuffer result = ByteBuffer.allocate(13 + data.length);
+		putHeader(result, FLAG_PROTOCOL, data.length, 0);
+		result.put(data);
+		return result.array();
 	}
 
-	public void sendCheckResults(List<CheckResult> checkResults) throws ZabbixException
+	/**
+	 * @return "info" of the server response
+	 */
+	public String sendCheckResults(ResultBatch checkResults) throws ZabbixException
 	{
 		Socket socket = null;
         try 
         {
-        	socket = openSocket();
-        	
-			JSONObject requestJson = new JSONObject();
-			requestJson.put(JSON_TAG_REQUEST, "agent data");
-			requestJson.put(JSON_TAG_CLOCK, toZabbixClock(System.currentTimeMillis()));
-			JSONArray dataJson = new JSONArray();
-			for (CheckResult cr : checkResults)
-			{
-				JSONObject crJson = new JSONObject();
-				crJson.put(JSON_TAG_KEY, cr.getKey().getKey());
-				crJson.put(JSON_TAG_HOST, config.getHostname());
-				crJson.put(JSON_TAG_VALUE, cr.getValue());
-				crJson.put(JSON_TAG_CLOCK, toZabbixClock(cr.getClock()));
-				dataJson.put(crJson);
-			}
-			requestJson.put(JSON_TAG_DATA, dataJson);
-			
-			String msg = requestJson.toString();
+			ByteBuffer[] message = agentDataEncoder.encode(checkResults, config.getHostname(), System.currentTimeMillis());
 			
-			log.log(Level.FINE, "sending {0}", msg);
+			if (log.isLoggable(Level.FINE))
+				log.log(Level.FINE, "sending {0}", agentDataEncoder.getText());
 			
-			byte message[] = toZbxMessage(msg);
-			socket.getOutputStream().write(message);
+        	socket = openSocket();
+			write(socket.getChannel(), message);
 			
 			JSONObject responseJson = checkResponse(read(socket.getInputStream()), "agent data");
+			return responseJson.optString(JSON_TAG_INFO, null);
 		} 
         catch (JSONException | IOException ex) 
         {
@@ -291,9 +450,4 @@ public class Protocol
 			closeSocket(socket);
 		}
 	}
-	
-	private long toZabbixClock(long timestamp)
-	{
-		return timestamp / 1000;
-	}
 }
@@ -0,0 +1,237 @@
+package com.github.zabbix.agent;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import com.github.zabbix.agent.util.DaemonThreadFactory;
+
+import lombok.extern.java.Log;
+
+/**
+ * Reads a numeric attribute of <code>jmx.sample</code> many times between two checks, so spikes
+ * shorter than the check period are seen.<br>
+ * Samples are kept in a fixed size ring of primitives, when it is full the oldest ones are
+ * overwritten. A check takes all samples since the previous check with {@link #drainTo}.
+ * All samplers share one daemon thread that only starts reads, the reads run on a pool of up to
+ * {@link #MAX_READERS} threads. A sampler has one read at a time: while a read runs the next ones
+ * are skipped, and after the read timeout the sampler reports the timeout as its error, so a hung
+ * MBean holds one reader and stops its own samples only. A sampler nobody drains for the unused
+ * timeout stops.<br>
+ * Thread safe.
+ *
+ * @author Victor Kadachigov
+ */
+@Log(topic="com.github.zabbix.agent")
+public class Sampler implements Runnable
+{
+	private static final int MAX_READERS = 16;
+
+	private static ScheduledExecutorService executor;
+	private static ThreadPoolExecutor readers;
+
+	/**
+	 * Reads the value to sample
+	 */
+	public interface Reader
+	{
+		Number read() throws Exception;
+	}
+
+	private final String name;
+	private final Reader reader;
+	private final long unusedTimeout;
+	private final long readTimeout;
+	private final Runnable read = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			read();
+		}
+	};
+	private final double[] ring;
+	/** Index of the oldest sample */
+	private int head;
+	private int count;
+	/** No floating point sample since the last drain */
+	private boolean integral = true;
+	/** Message of the last failed read, null if the last read succeeded */
+	private String error;
+	private long lastDrained = System.nanoTime();
+	/** System.nanoTime() the running read started at, 0 if there is none */
+	private long readStarted;
+	private ScheduledFuture<?> future;
+
+	/**
+	 * @param name what is sampled, for logging
+	 * @param capacity max number of samples kept between two checks
+	 * @param unusedTimeout ms without {@link #drainTo} after which sampling stops
+	 * @param readTimeout ms a read may take before the sampler reports it as failed
+	 */
+	public Sampler(String name, int capacity, long unusedTimeout, long readTimeout, Reader reader)
+	{
+		this.name = name;
+		this.reader = reader;
+		this.unusedTimeout = TimeUnit.MILLISECONDS.toNanos(unusedTimeout);
+		this.readTimeout = TimeUnit.MILLISECONDS.toNanos(readTimeout);
+		this.ring = new double[capacity];
+	}
+
+	/**
+	 * @param interval ms between reads
+	 */
+	public synchronized void start(long interval)
+	{
+		if (future == null)
+			future = getExecutor().scheduleAtFixedRate(this, 0, interval, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop()
+	{
+		if (future != null)
+			future.cancel(false);
+	}
+
+	public synchronized boolean isStopped()
+	{
+		return future != null && future.isCancelled();
+	}
+
+	/**
+	 * Starts a read unless the previous one is still running
+	 */
+	@Override
+	public void run()
+	{
+		synchronized (this)
+		{
+			long now = System.nanoTime();
+			if (now - lastDrained > unusedTimeout)
+			{
+				log.log(Level.FINE, "Stop unused sampling of \"{0}\"", name);
+				stop();
+				return;
+			}
+			if (readStarted != 0)
+			{
+				if (now - readStarted > readTimeout)
+					error = "Timeout while reading the value";
+				return;
+			}
+			readStarted = now;
+		}
+
+		try
+		{
+			getReaders().execute(read);
+		}
+		catch (RejectedExecutionException ex)
+		{
+			synchronized (this)
+			{
+				readStarted = 0;
+				error = "Too many sampled values are being read";
+			}
+		}
+	}
+
+	private void read()
+	{
+		Number value = null;
+		String failure = null;
+		try
+		{
+			value = reader.read();
+		}
+		catch (Exception ex)
+		{
+			failure = ex.getMessage() != null ? ex.getMessage() : ex.getClass().getSimpleName();
+		}
+		synchronized (this)
+		{
+			readStarted = 0;
+			if (failure != null)
+				error = failure;
+			else
+				add(value);
+		}
+	}
+
+	synchronized void add(Number value)
+	{
+		error = null;
+		double d = value.doubleValue();
+		if (Double.isNaN(d) || Double.isInfinite(d))
+			return;
+		if (!Aggregation.isIntegral(value))
+			integral = false;
+		if (count < ring.length)
+			ring[(head + count++) % ring.length] = d;
+		else
+		{
+			ring[head] = d;
+			head = (head + 1) % ring.length;
+		}
+	}
+
+	/**
+	 * Moves samples taken since the previous call to the accumulators
+	 *
+	 * @return number of samples
+	 */
+	public synchronized int drainTo(Aggregation.Accumulator... accumulators)
+	{
+		lastDrained = System.nanoTime();
+		for (int i = 0; i < count; i++)
+		{
+			double value = ring[(head + i) % ring.length];
+			for (Aggregation.Accumulator accumulator : accumulators)
+			{
+				if (integral)
+					accumulator.add((long)value);
+				else
+					accumulator.add(value);
+			}
+		}
+		int result = count;
+		head = 0;
+		count = 0;
+		integral = true;
+		return result;
+	}
+
+	/**
+	 * @return message of the last read if it failed, null otherwise
+	 */
+	public synchronized String getError()
+	{
+		return error;
+	}
+
+	private static synchronized ScheduledExecutorService getExecutor()
+	{
+		if (executor == null)
+		{
+			ScheduledThreadPoolExecutor result = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("zabbix-agent-sampler"));
+			result.setRemoveOnCancelPolicy(true);
+			executor = result;
+		}
+		return executor;
+	}
+
+	private static synchronized ThreadPoolExecutor getReaders()
+	{
+		if (readers == null)
+		{
+			readers = new ThreadPoolExecutor(0, MAX_READERS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), 
+												new DaemonThreadFactory("zabbix-agent-sample-reader"));
+		}
+		return readers;
+	}
+}
@@ -1,27 +1,20 @@
 package com.github.zabbix.agent;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
-import java.util.Queue;
+import java.io.File;
+import java.io.IOException;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import com.github.zabbix.agent.data.CheckItem;
-import com.github.zabbix.agent.data.CheckResult;
+import com.github.zabbix.agent.data.PersistentBuffer;
+import com.github.zabbix.agent.data.ResultBatch;
+import com.github.zabbix.agent.data.ResultBuffer;
 import com.github.zabbix.agent.data.ServerAddress;
 import com.github.zabbix.agent.util.DaemonThreadFactory;
-import com.github.zabbix.agent.util.FixedSizeQueue;
 
-import lombok.Getter;
-import lombok.Setter;
 import lombok.extern.java.Log;
 
 /**
@@ -41,21 +34,34 @@ public class ZabbixActiveAgent implements Runnable
 	private final int serverIndex;
 	private final ServerAddress serverAddress;
 	private final Protocol protocol;
-	private final Queue<CheckResult> resultsQueue = new FixedSizeQueue<>(500000); // <100Mb
-	private final Map<Integer, Pair<CheckerTask, ScheduledFuture<?>>> checkerTasks = new HashMap<>();
+	private final CheckScheduler checkScheduler;
+	private final ResultBuffer resultBuffer;
+	/** Values moved from the memory buffer to the persistent buffer */
+	private final ResultBatch checksToStore;
+	private final BatchSender batchSender;
 	
-	private State state = State.STOPPED;
-	private ScheduledExecutorService scheduler;
-	private long lastRefreshCheckTime = 0;
+	private volatile State state = State.STOPPED;
+	/** Refresh lane, results are sent by the agent thread */
+	private ScheduledExecutorService refresher;
+	/** null if persistent buffer is disabled */
+	private PersistentBuffer persistentBuffer;
+	private BatchSender.Source source;
 	private long lastResultsSendTime;
-	private boolean connected = false;
+	private boolean lastSendFailed = false;
+	private volatile boolean connected = false;
+	private long reportedDropped = 0;
+	private long reportedStoreDropped = 0;
 	
-	public ZabbixActiveAgent(ZabbixAgentConfig config, int serverIndex)
+	public ZabbixActiveAgent(ZabbixAgentConfig config, int serverIndex, CheckScheduler checkScheduler)
 	{
 		this.config = config;
 		this.serverIndex = serverIndex;
+		this.checkScheduler = checkScheduler;
+		this.resultBuffer = checkScheduler.getResultBuffer(serverIndex);
+		this.checksToStore = new ResultBatch(resultBuffer.getKeys());
 		this.serverAddress = config.getActiveServer(serverIndex);
 		this.protocol = new Protocol(serverAddress, config);
+		this.batchSender = new BatchSender(serverAddress, config, resultBuffer.getKeys(), "zabbix-agent-sender-" + (serverIndex + 1));
 	}
 	
 	@Override
@@ -63,74 +69,207 @@ public class ZabbixActiveAgent implements Runnable
 	{
 		state = State.ACTIVE;
 		lastResultsSendTime = System.currentTimeMillis();
-		scheduler = Executors.newScheduledThreadPool(1, new DaemonThreadFactory("zabbix-agent-pool"));
+		checkScheduler.attach(serverIndex);
+		if (config.isEnablePersistentBuffer())
+			openPersistentBuffer();
+		source = (persistentBuffer != null) ? new PersistentSource() : new MemorySource();
+		// checks were dropped by the scheduler when stopped, the whole list is needed
+		protocol.resetConfigRevision();
+		
+		refresher = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("zabbix-agent-refresh-" + (serverIndex + 1)));
+		refresher.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				refreshChecks();
+				if (state == State.ACTIVE)
+					refresher.schedule(this, connected ? config.getRefreshActiveChecks() : 60, TimeUnit.SECONDS); // 60s - timeout while not connected
+			}
+		});
 		
 		while (state == State.ACTIVE)
 		{
-			refreshChecks();
-			sendResults();
+			if (sendResults())
+				continue; // more values are ready
 			
 			try
 			{
-				Thread.sleep(200L);
+				awaitResults();
 			}
 			catch (InterruptedException ex)
 			{
 				Thread.currentThread().interrupt();
+				break;
 			}
 		}
+		
+		refresher.shutdownNow();
+		try
+		{
+			refresher.awaitTermination(config.getTimeout(), TimeUnit.SECONDS);
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+		checkScheduler.detach(serverIndex);
+		batchSender.shutdown();
+		if (persistentBuffer != null)
+			closePersistentBuffer();
+		state = State.STOPPED;
 	}
 	
-	private void sendResults()
+	private void openPersistentBuffer()
 	{
-		if (!connected 
-				|| System.currentTimeMillis() - lastResultsSendTime < config.getBufferSend() * 1000L 
-						&& resultsQueue.size() < config.getBufferSize())
+		File file = new File(config.getPersistentBufferFile() + "." + (serverIndex + 1));
+		try
+		{
+			persistentBuffer = new PersistentBuffer(file, resultBuffer.getKeys(), config.getPersistentBufferPeriod() * 1000L, 
+					config.getPersistentBufferMaxSize() * 1024L * 1024L);
+			log.log(Level.INFO, "Persistent buffer {0} opened, {1} values to send", new Object[] { file, persistentBuffer.size() });
+		}
+		catch (IOException ex)
+		{
+			log.log(Level.SEVERE, "Cannot open persistent buffer {0}: {1}. Memory buffer is used", new Object[] { file, ex.getMessage() });
+			log.log(Level.FINE, ex.getMessage(), ex);
+		}
+	}
+	
+	private void closePersistentBuffer()
+	{
+		storeResults();
+		try
+		{
+			persistentBuffer.close();
+		}
+		catch (IOException ex)
+		{
+			log.log(Level.SEVERE, "Cannot close persistent buffer: {0}", ex.getMessage());
+		}
+		persistentBuffer = null;
+	}
+	
+	/**
+	 * Moves values from the memory buffer to the persistent buffer
+	 */
+	private void storeResults()
+	{
+		if (resultBuffer.size() == 0)
 			return;
+		
+		resultBuffer.drainTo(checksToStore, resultBuffer.capacity());
+		try
+		{
+			persistentBuffer.append(checksToStore);
+		}
+		catch (IOException ex)
+		{
+			log.log(Level.SEVERE, "Cannot write {0} values to persistent buffer: {1}", new Object[] { checksToStore.size(), ex.getMessage() });
+			log.log(Level.FINE, ex.getMessage(), ex);
+		}
+		checksToStore.clear();
+	}
+	
+	/**
+	 * Waits until it is time to send results: <code>BufferSend</code> seconds have passed since the
+	 * last send or the buffer holds <code>BufferSize</code> values. While the server is not available
+	 * only the time counts.
+	 */
+	private void awaitResults() throws InterruptedException
+	{
+		long bufferSend = batchSender.getPolicy().getSendDelay();
+		long timeout = connected ? lastResultsSendTime + bufferSend - System.currentTimeMillis() : bufferSend;
+		if (timeout <= 0)
+			return;
+		
+		int watermark = Integer.MAX_VALUE;
+		if (connected && !lastSendFailed)
+		{
+			long pending = batchSender.size() + (persistentBuffer != null ? persistentBuffer.size() : 0);
+			watermark = (int)Math.max(1, config.getBufferSize() - pending);
+		}
+		resultBuffer.await(watermark, timeout, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * @return true if values were sent and there are enough values to send again right away
+	 */
+	private boolean sendResults()
+	{
+		long dropped = resultBuffer.getDropped();
+		if (dropped != reportedDropped)
+		{
+			log.log(Level.WARNING, "Buffer is full. {0} oldest values dropped", dropped - reportedDropped);
+			reportedDropped = dropped;
+		}
+		
+		if (persistentBuffer != null)
+		{
+			storeResults();
+			long storeDropped = persistentBuffer.getDropped();
+			if (storeDropped != reportedStoreDropped)
+			{
+				log.log(Level.WARNING, "Persistent buffer is full. {0} oldest values dropped", storeDropped - reportedStoreDropped);
+				reportedStoreDropped = storeDropped;
+			}
+		}
+		long now = System.currentTimeMillis();
+		long sendTime = lastResultsSendTime + batchSender.getPolicy().getSendDelay();
+		long pending = getPendingCount();
+		if (!connected 
+				|| now < sendTime && pending < config.getBufferSize())
+			return false;
+		// when the send became due, for latency measurement
+		long dueTime = Math.min(now, sendTime);
 
+		boolean result = false;
 		try
 		{
-			List<CheckResult> checksToSend = new ArrayList<>();
-			checksToSend.addAll(resultsQueue);
-//			if (!resultsQueue.isEmpty())  // one by one
-//				checksToSend.add(resultsQueue.iterator().next());
-			
-			if (!checksToSend.isEmpty())
+			// values not sent last time go first
+			int count = batchSender.send(source);
+			lastSendFailed = batchSender.isFailed();
+			if (count > 0)
 			{
-				log.log(Level.FINE, "{0} items to send", checksToSend.size());
+				long sent = System.currentTimeMillis();
+				log.log(Level.FINE, "{0} items sent in {1} ms, flush latency {2} ms", 
+						new Object[] { count, sent - now, sent - dueTime });
 				
-				protocol.sendCheckResults(checksToSend);
-				resultsQueue.removeAll(checksToSend);
+				result = !lastSendFailed && getPendingCount() >= config.getBufferSize();
 			}
-			else
+			else if (!lastSendFailed)
 				log.finest("No data to send");
 		}
-		catch (ZabbixException ex) 
-		{
-			log.severe(ex.getMessage());
-		}
 		catch (Exception ex)
 		{
 			log.log(Level.SEVERE, "{0}: {1}", new Object[] { ex.getClass().getName(), ex.getMessage() });
 			log.log(Level.FINE, ex.getMessage(), ex);
+			lastSendFailed = true;
 		}
 		
 		lastResultsSendTime = System.currentTimeMillis();
+		return result;
 	}
 
-	private void refreshChecks()
+	/**
+	 * @return number of values waiting to be sent
+	 */
+	private long getPendingCount()
 	{
-		long t = 60000; // 60s - timeout while not connected
-		if (connected) 
-			t = config.getRefreshActiveChecks() * 1000L;
-		if (System.currentTimeMillis() - lastRefreshCheckTime < t)
-			return;
+		return (persistentBuffer != null ? persistentBuffer.size() : resultBuffer.size()) + batchSender.size();
+	}
 
+	private void refreshChecks()
+	{
 		try
 		{
 			Set<CheckItem> checkItems = protocol.refreshActiveChecks();
 			connected = true;
-			scheduleChecks(checkItems);
+			if (checkItems == null)
+				return; // not changed
+			log.log(Level.FINE, "Got {0} checks", checkItems.size());
+			checkScheduler.updateChecks(serverIndex, checkItems);
+			protocol.commitConfigRevision();
 		}
 		catch (ZabbixException ex) 
 		{
@@ -147,65 +286,6 @@ public class ZabbixActiveAgent implements Runnable
 			}
 			connected = false;
 		}
-		
-		lastRefreshCheckTime = System.currentTimeMillis();
-	}
-
-	private void scheduleChecks(Set<CheckItem> checkItems)
-	{
-		log.log(Level.FINE, "Schedule {0} checks", checkItems.size());
-		
-		Map<Integer, Set<CheckItem>> map = new HashMap<>();
-		for (CheckItem item : checkItems)
-		{
-			Set<CheckItem> set = map.get(item.getDelay());
-			if (set == null)
-			{
-				set = new HashSet<>();
-				map.put(item.getDelay(), set);
-			}
-			set.add(item);
-		}
-		
-		// delete
-		Set<Integer> toDelete = new HashSet<>();
-		for (Map.Entry<Integer, Pair<CheckerTask, ScheduledFuture<?>>> entry : checkerTasks.entrySet())
-		{
-			if (!map.containsKey(entry.getKey()))
-			{
-				// stop task
-				log.log(Level.FINE, "Stop task with delay {0}", entry.getKey());
-				
-				entry.getValue().getValue().cancel(false);
-				toDelete.add(entry.getKey());
-			}
-			else if (entry.getValue().getValue().isCancelled()) // something happened
-			{
-				log.log(Level.FINE, "Something wrong. Task with delay {0} already canceled", entry.getKey());
-				
-				toDelete.add(entry.getKey());
-			}
-		}
-		for (Integer d : toDelete)
-		{
-			Pair<CheckerTask, ScheduledFuture<?>> pair = checkerTasks.remove(d);
-			pair.value.cancel(true);
-		}
-		
-		// insert, update
-		for (Map.Entry<Integer, Set<CheckItem>> entry : map.entrySet())
-		{
-			Pair<CheckerTask, ScheduledFuture<?>> task = checkerTasks.get(entry.getKey());
-			if (task == null) // insert
-			{
-				log.log(Level.FINE, "Start {0} checks with delay {1}s", new Object[] {entry.getValue().size(), entry.getKey()});
-				task = new Pair<>();
-				task.setKey(new CheckerTask(entry.getValue(), config, resultsQueue, entry.getKey()));
-				task.setValue(scheduler.scheduleAtFixedRate(task.getKey(), 1, entry.getKey(), TimeUnit.SECONDS));
-			}
-			else // update
-				task.getKey().updateCheckItems(entry.getValue());
-		}
 	}
 
 	public void stop()
@@ -213,6 +293,7 @@ public class ZabbixActiveAgent implements Runnable
 		log.info("ZabbixActiveAgent is stopping...");
 		
 		state = State.STOPPING;
+		resultBuffer.wakeUp();
 	}
 
 	public String getName()
@@ -220,13 +301,44 @@ public class ZabbixActiveAgent implements Runnable
 		return "zabbix-agent-main-" + (serverIndex + 1);
 	}
 	
-	private class Pair<K,V>
+	private class MemorySource implements BatchSender.Source
+	{
+		@Override
+		public int read(ResultBatch batch, int maxValues)
+		{
+			return resultBuffer.drainTo(batch, maxValues);
+		}
+
+		@Override
+		public long getPosition()
+		{
+			return -1;
+		}
+
+		@Override
+		public void commit(long position)
+		{
+		}
+	}
+	
+	private class PersistentSource implements BatchSender.Source
 	{
-		@Getter
-		@Setter
-	    private K key;
-		@Getter
-		@Setter
-	    private V value;
+		@Override
+		public int read(ResultBatch batch, int maxValues) throws IOException
+		{
+			return persistentBuffer.read(batch, maxValues, System.currentTimeMillis());
+		}
+
+		@Override
+		public long getPosition()
+		{
+			return persistentBuffer.getPosition();
+		}
+
+		@Override
+		public void commit(long position) throws IOException
+		{
+			persistentBuffer.commit(position);
+		}
 	}
 }
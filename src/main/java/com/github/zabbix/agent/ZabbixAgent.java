@@ -23,13 +23,18 @@ import lombok.extern.java.Log;
 public class ZabbixAgent
 {
 	private final ZabbixAgentConfig config;
+	/** Shared by active and passive checks */
+	private final AttributeCache attributeCache;
+	private final DiscoveryCache discoveryCache = new DiscoveryCache();
 	
 	private List<ZabbixActiveAgent> activeAgents;
+	private ZabbixPassiveAgent passiveAgent;
 	
 	public ZabbixAgent(String configFilePath)
 	{
 		config = new ZabbixAgentConfig(configFilePath);
 		initLogger();
+		attributeCache = new AttributeCache(config.getAttributeCacheTtl(), config.getAttributeCacheSize(), config.getTimeout() * 1000L);
 		log.log(Level.FINE, "{0}", config);
 	}
 	
@@ -113,14 +118,17 @@ public class ZabbixAgent
 	{
 		activeAgents = new ArrayList<>();
 		
-		for (int i = 0; i < config.getActiveServersCount(); i++)
+		int serverCount = config.getActiveServersCount();
+		if (serverCount > CheckScheduler.MAX_SERVERS)
 		{
-			if (i > 0) // start only one agent for now.
-			{
-				log.warning("Only first active server address was used");
-				break;
-			}
-			ZabbixActiveAgent a = new ZabbixActiveAgent(config, i);
+			log.log(Level.WARNING, "Only first {0} active server addresses were used", CheckScheduler.MAX_SERVERS);
+			serverCount = CheckScheduler.MAX_SERVERS;
+		}
+		// every MBean is read once for all servers
+		CheckScheduler checkScheduler = new CheckScheduler(config, serverCount, 500000, attributeCache, discoveryCache); // <15Mb per server
+		for (int i = 0; i < serverCount; i++)
+		{
+			ZabbixActiveAgent a = new ZabbixActiveAgent(config, i, checkScheduler);
 			activeAgents.add(a);
 			Thread thread = new Thread(a);
 			thread.setName(a.getName());
@@ -133,8 +141,20 @@ public class ZabbixAgent
 	
 	private boolean startPassiveAgent()
 	{
-		log.warning("Passive mode is not implemented yet");
+		try
+		{
+			passiveAgent = new ZabbixPassiveAgent(config, attributeCache, discoveryCache);
+		}
+		catch (IllegalArgumentException ex)
+		{
+			log.log(Level.SEVERE, "Wrong parameter 'Server': {0}", ex.getMessage());
+			return false;
+		}
+		Thread thread = new Thread(passiveAgent);
+		thread.setName(passiveAgent.getName());
+		thread.setDaemon(true);
+		thread.start();
 		
-		return false;
+		return true;
 	}
 }
@@ -29,6 +29,17 @@ public class ZabbixAgentConfig
 	private static final int DEFAULT_BUFFER_SIZE = 100;
 	private static final int DEFAULT_TIMEOUT = 3;
 	private static final int DEFAULT_DEBUG_LEVEL = 3;
+	private static final int DEFAULT_START_AGENTS = 3;
+	private static final int DEFAULT_ATTRIBUTE_CACHE_TTL = 1000;
+	private static final int DEFAULT_ATTRIBUTE_CACHE_SIZE = 10000;
+	private static final int DEFAULT_DISCOVERY_MAX_ROWS = 10000;
+	private static final int DEFAULT_DISCOVERY_MAX_TIME = 2000;
+	private static final int DEFAULT_DISCOVERY_MAX_DEPTH = 5;
+	private static final int DEFAULT_START_COLLECTORS = Math.min(4, Runtime.getRuntime().availableProcessors());
+	private static final int DEFAULT_PERSISTENT_BUFFER_PERIOD = 3600;
+	private static final int DEFAULT_PERSISTENT_BUFFER_MAX_SIZE = 1024;
+	private static final int DEFAULT_MAX_BATCH_SIZE = 10000;
+	private static final int DEFAULT_MAX_INFLIGHT_BATCHES = 2;
 
 	public static final int DEFAULT_SERVER_PORT = 10051;
 
@@ -71,12 +82,99 @@ public class ZabbixAgentConfig
 	 */
 	@Getter
 	private int bufferSize;
+	/**
+	 * Maximum number of values in one "agent data" request<br>
+	 * Range: 1-100000
+	 */
+	@Getter
+	private int maxBatchSize;
+	/**
+	 * Maximum number of "agent data" requests sent at the same time<br>
+	 * Range: 1-16
+	 */
+	@Getter
+	private int maxInflightBatches;
 	/**
 	 * Spend no more than Timeout seconds on processing<br>
 	 * Range: 1-30
 	 */
 	@Getter
 	private int timeout;
+	/**
+	 * Number of collector threads reading active checks in parallel<br>
+	 * Range: 1-100
+	 */
+	@Getter
+	private int startCollectors;
+	/**
+	 * Number of worker threads answering passive checks. Passive checks are disabled if 0<br>
+	 * Range: 0-100
+	 */
+	@Getter
+	private int startAgents;
+	/**
+	 * How long values of MBean attributes are cached, in milliseconds. Only concurrent reads are shared if 0<br>
+	 * Range: 0-60000
+	 */
+	@Getter
+	private int attributeCacheTtl;
+	/**
+	 * Maximum number of cached values of MBean attributes<br>
+	 * Range: 100-1000000
+	 */
+	@Getter
+	private int attributeCacheSize;
+	/**
+	 * Maximum number of rows of attributes discovery<br>
+	 * Range: 1-1000000
+	 */
+	@Getter
+	private int discoveryMaxRows;
+	/**
+	 * Maximum time of attributes discovery, in milliseconds<br>
+	 * Range: 100-30000
+	 */
+	@Getter
+	private int discoveryMaxTime;
+	/**
+	 * How deep attributes discovery goes into composite data<br>
+	 * Range: 1-32
+	 */
+	@Getter
+	private int discoveryMaxDepth;
+	/**
+	 * A value equal to the last one sent is not sent again unless this many seconds passed, 0 to send all values<br>
+	 * Range: 0-86400
+	 */
+	@Getter
+	private int discardUnchangedHeartbeat;
+	/**
+	 * Compress values sent to the server, Zabbix 4.0+ accepts compressed data
+	 */
+	@Getter
+	private boolean enableCompression;
+	/**
+	 * Keep values not sent yet in a file instead of the memory buffer
+	 */
+	@Getter
+	private boolean enablePersistentBuffer;
+	/**
+	 * Base name of persistent buffer files. Mandatory if {@link #enablePersistentBuffer} is set
+	 */
+	@Getter
+	private String persistentBufferFile;
+	/**
+	 * Do not keep data longer than N seconds in persistent buffer<br>
+	 * Range: 60-31536000
+	 */
+	@Getter
+	private int persistentBufferPeriod;
+	/**
+	 * Max size of persistent buffer files of one server, in MB. The oldest values are deleted beyond it<br>
+	 * Range: 16-1048576
+	 */
+	@Getter
+	private int persistentBufferMaxSize;
 	/**
 	 * Specifies debug level:
 	 * <ul>
@@ -138,8 +236,55 @@ public class ZabbixAgentConfig
 		refreshActiveChecks = getIntParam(configItems, "RefreshActiveChecks", DEFAULT_REFRESH_ACTIVE_CHECKS);
 		bufferSend = getIntParam(configItems, "BufferSend", DEFAULT_BUFFER_SEND);
 		bufferSize = getIntParam(configItems, "BufferSize", DEFAULT_BUFFER_SIZE);
+		maxBatchSize = getIntParam(configItems, "MaxBatchSize", DEFAULT_MAX_BATCH_SIZE);
+		if (maxBatchSize < 1 || maxBatchSize > 100000)
+			throw new IllegalArgumentException("Parameter 'MaxBatchSize' must be in range 1-100000");
+		maxInflightBatches = getIntParam(configItems, "MaxInflightBatches", DEFAULT_MAX_INFLIGHT_BATCHES);
+		if (maxInflightBatches < 1 || maxInflightBatches > 16)
+			throw new IllegalArgumentException("Parameter 'MaxInflightBatches' must be in range 1-16");
 		activeServers = ServerAddress.parse(getStringParam(configItems, "ServerActive"));
 		timeout = getIntParam(configItems, "Timeout", DEFAULT_TIMEOUT);
+		startCollectors = getIntParam(configItems, "StartCollectors", DEFAULT_START_COLLECTORS);
+		if (startCollectors < 1 || startCollectors > 100)
+			throw new IllegalArgumentException("Parameter 'StartCollectors' must be in range 1-100");
+		startAgents = getIntParam(configItems, "StartAgents", DEFAULT_START_AGENTS);
+		if (startAgents < 0 || startAgents > 100)
+			throw new IllegalArgumentException("Parameter 'StartAgents' must be in range 0-100");
+		attributeCacheTtl = getIntParam(configItems, "AttributeCacheTtl", DEFAULT_ATTRIBUTE_CACHE_TTL);
+		if (attributeCacheTtl < 0 || attributeCacheTtl > 60000)
+			throw new IllegalArgumentException("Parameter 'AttributeCacheTtl' must be in range 0-60000");
+		attributeCacheSize = getIntParam(configItems, "AttributeCacheSize", DEFAULT_ATTRIBUTE_CACHE_SIZE);
+		if (attributeCacheSize < 100 || attributeCacheSize > 1000000)
+			throw new IllegalArgumentException("Parameter 'AttributeCacheSize' must be in range 100-1000000");
+		discoveryMaxRows = getIntParam(configItems, "DiscoveryMaxRows", DEFAULT_DISCOVERY_MAX_ROWS);
+		if (discoveryMaxRows < 1 || discoveryMaxRows > 1000000)
+			throw new IllegalArgumentException("Parameter 'DiscoveryMaxRows' must be in range 1-1000000");
+		discoveryMaxTime = getIntParam(configItems, "DiscoveryMaxTime", DEFAULT_DISCOVERY_MAX_TIME);
+		if (discoveryMaxTime < 100 || discoveryMaxTime > 30000)
+			throw new IllegalArgumentException("Parameter 'DiscoveryMaxTime' must be in range 100-30000");
+		discoveryMaxDepth = getIntParam(configItems, "DiscoveryMaxDepth", DEFAULT_DISCOVERY_MAX_DEPTH);
+		if (discoveryMaxDepth < 1 || discoveryMaxDepth > 32)
+			throw new IllegalArgumentException("Parameter 'DiscoveryMaxDepth' must be in range 1-32");
+		discardUnchangedHeartbeat = getIntParam(configItems, "DiscardUnchangedHeartbeat", 0);
+		if (discardUnchangedHeartbeat < 0 || discardUnchangedHeartbeat > 86400)
+			throw new IllegalArgumentException("Parameter 'DiscardUnchangedHeartbeat' must be in range 0-86400");
+		int compression = getIntParam(configItems, "EnableCompression", 1);
+		if (compression != 0 && compression != 1)
+			throw new IllegalArgumentException("Parameter 'EnableCompression' must be 0 or 1");
+		enableCompression = (compression == 1);
+		int enable = getIntParam(configItems, "EnablePersistentBuffer", 0);
+		if (enable != 0 && enable != 1)
+			throw new IllegalArgumentException("Parameter 'EnablePersistentBuffer' must be 0 or 1");
+		enablePersistentBuffer = (enable == 1);
+		persistentBufferFile = getStringParam(configItems, "PersistentBufferFile");
+		if (enablePersistentBuffer && (persistentBufferFile == null || "".equals(persistentBufferFile)))
+			throw new IllegalArgumentException("Missing required config parameter 'PersistentBufferFile'");
+		persistentBufferPeriod = getIntParam(configItems, "PersistentBufferPeriod", DEFAULT_PERSISTENT_BUFFER_PERIOD);
+		if (persistentBufferPeriod < 60 || persistentBufferPeriod > 31536000)
+			throw new IllegalArgumentException("Parameter 'PersistentBufferPeriod' must be in range 60-31536000");
+		persistentBufferMaxSize = getIntParam(configItems, "PersistentBufferMaxSize", DEFAULT_PERSISTENT_BUFFER_MAX_SIZE);
+		if (persistentBufferMaxSize < 16 || persistentBufferMaxSize > 1048576)
+			throw new IllegalArgumentException("Parameter 'PersistentBufferMaxSize' must be in range 16-1048576");
 		debugLevel = getIntParam(configItems, "DebugLevel", DEFAULT_DEBUG_LEVEL);
 		logType = LogType.valueOf(getStringParam(configItems, "LogType", LogType.FILE.name()).toUpperCase());
 		logFile = getStringParam(configItems, "LogFile");
@@ -236,7 +381,7 @@ public class ZabbixAgentConfig
 
 	public boolean isPassiveMode()
 	{
-		return !servers.isEmpty();
+		return !servers.isEmpty() && startAgents > 0;
 	}
 	
 	public int getActiveServersCount()
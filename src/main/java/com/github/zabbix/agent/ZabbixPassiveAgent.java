@@ -0,0 +1,579 @@
+package com.github.zabbix.agent;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.github.zabbix.agent.data.CheckItem;
+import com.github.zabbix.agent.data.ResultBuffer;
+import com.github.zabbix.agent.data.ServerAddress;
+import com.github.zabbix.agent.data.ZabbixKey;
+import com.github.zabbix.agent.util.AllowList;
+import com.github.zabbix.agent.util.DaemonThreadFactory;
+
+import lombok.extern.java.Log;
+
+/**
+ * Answers passive checks of Zabbix servers and proxies listed in <code>Server</code>.<br>
+ * One selector thread accepts connections on <code>ListenPort</code>, reads requests and writes
+ * answers without blocking, so slow or idle clients do not hold any thread. Values are read by
+ * <code>StartAgents</code> worker threads, which hand reads to a pool of as many reader threads and
+ * wait for them no longer than the deadline of the connection, so a hung read does not hold a worker.
+ * DNS names of allowed hosts are resolved by a thread of their own. A request is a key in a Zabbix packet or a line of
+ * plain text, the answer is a Zabbix packet with the value or with
+ * <code>ZBX_NOTSUPPORTED\0</code> and the reason. The connection is closed after the answer.<br>
+ * Reading, processing and writing must fit in <code>Timeout</code> seconds since accept,
+ * otherwise the connection is closed. Requests exceeding the worker queue are answered as not
+ * supported right away.
+ *
+ * @author Victor Kadachigov
+ */
+@Log(topic="com.github.zabbix.agent")
+public class ZabbixPassiveAgent implements Runnable
+{
+	/** Enough for a key of max length in UTF-8 and most values */
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final int MAX_POOLED_BUFFERS = 256;
+	private static final int MAX_CONNECTIONS = 4096;
+	private static final int MAX_QUEUED_REQUESTS = 1024;
+	private static final int BACKLOG = 1024;
+	private static final int HEADER_SIZE = 13;
+	private static final byte[] SIGNATURE = {'Z', 'B', 'X', 'D'};
+	private static final byte[] NOT_SUPPORTED = "ZBX_NOTSUPPORTED\0".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] NO_PREFIX = new byte[0];
+	/** Time left to write the answer after a read was given up, ms */
+	private static final long ANSWER_TIME = 100;
+
+	private final ZabbixAgentConfig config;
+	private final AllowList allowList;
+	/** Reads values of passive checks, never scheduled */
+	private final CheckerTask evaluator;
+	/** Open connections in accept order, which is the order of their deadlines */
+	private final Set<Connection> connections = new LinkedHashSet<>();
+	/** Connections with an answer, filled by workers */
+	private final Queue<Connection> answered = new ConcurrentLinkedQueue<>();
+	private final Deque<ByteBuffer> bufferPool = new ArrayDeque<>();
+
+	private volatile boolean active;
+	private Selector selector;
+	private ThreadPoolExecutor workers;
+	/** Reads values for workers */
+	private CollectorPool readers;
+	/** Resolves DNS names of the allow list, null if there are none */
+	private ScheduledExecutorService resolver;
+
+	public ZabbixPassiveAgent(ZabbixAgentConfig config, AttributeCache attributeCache, DiscoveryCache discoveryCache)
+	{
+		this.config = config;
+		List<String> hosts = new ArrayList<>();
+		for (ServerAddress server : config.getServers())
+			hosts.add(server.getHost());
+		this.allowList = new AllowList(hosts);
+		this.evaluator = new CheckerTask(Collections.<CheckPlan>emptyList(), config, new ResultBuffer[] { new ResultBuffer(1) }, 0, null, attributeCache, discoveryCache);
+	}
+
+	@Override
+	public void run()
+	{
+		ServerSocketChannel serverChannel = null;
+		try
+		{
+			selector = Selector.open();
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.socket().bind(new InetSocketAddress(config.getListenPort()), BACKLOG);
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		}
+		catch (IOException ex)
+		{
+			log.log(Level.SEVERE, "Cannot listen on port {0}: {1}", new Object[] { config.getListenPort(), ex.getMessage() });
+			close(serverChannel);
+			close(selector);
+			return;
+		}
+
+		int threads = config.getStartAgents();
+		workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+						new ArrayBlockingQueue<Runnable>(MAX_QUEUED_REQUESTS), new DaemonThreadFactory("zabbix-agent-passive"));
+		readers = new CollectorPool(threads);
+		if (allowList.hasHostNames())
+		{
+			allowList.resolve();
+			resolver = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("zabbix-agent-resolver"));
+			resolver.scheduleWithFixedDelay(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					allowList.resolve();
+				}
+			}, AllowList.RESOLVE_INTERVAL, AllowList.RESOLVE_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+		log.log(Level.INFO, "Listening on port {0}, allowed hosts: {1}", new Object[] { config.getListenPort(), allowList });
+
+		active = true;
+		while (active)
+		{
+			try
+			{
+				selector.select(getSelectTimeout());
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext())
+				{
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept(serverChannel);
+					else
+					{
+						Connection connection = (Connection)key.attachment();
+						try
+						{
+							if (key.isReadable())
+								read(connection);
+							else if (key.isWritable())
+								write(connection);
+						}
+						catch (IOException ex)
+						{
+							log.log(Level.FINE, "Connection from {0} failed: {1}", new Object[] { connection.address, ex.getMessage() });
+							close(connection);
+						}
+						catch (RuntimeException ex)
+						{
+							log.log(Level.WARNING, "Connection from " + connection.address + " failed", ex);
+							close(connection);
+						}
+					}
+				}
+				writeAnswers();
+				expire(System.currentTimeMillis());
+			}
+			catch (IOException | RuntimeException ex)
+			{
+				// the selector thread must survive anything
+				log.log(Level.SEVERE, ex.getMessage(), ex);
+			}
+		}
+
+		if (resolver != null)
+			resolver.shutdownNow();
+		workers.shutdownNow();
+		readers.shutdown();
+		for (Connection connection : new ArrayList<>(connections))
+			close(connection);
+		close(serverChannel);
+		close(selector);
+		log.info("Passive agent stopped");
+	}
+
+	public void stop()
+	{
+		active = false;
+		if (selector != null)
+			selector.wakeup();
+	}
+
+	public String getName()
+	{
+		return "zabbix-agent-listener";
+	}
+
+	/**
+	 * @return time to the nearest deadline, 0 to wait until woken up
+	 */
+	private long getSelectTimeout()
+	{
+		if (connections.isEmpty())
+			return 0;
+		long timeout = connections.iterator().next().deadline - System.currentTimeMillis();
+		return Math.max(1, timeout);
+	}
+
+	private void accept(ServerSocketChannel serverChannel) throws IOException
+	{
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null)
+		{
+			InetAddress address = ((InetSocketAddress)channel.socket().getRemoteSocketAddress()).getAddress();
+			if (!allowList.isAllowed(address))
+			{
+				log.log(Level.WARNING, "Connection from \"{0}\" rejected, allowed hosts: \"{1}\"", new Object[] { address.getHostAddress(), allowList });
+				close(channel);
+				continue;
+			}
+			if (connections.size() >= MAX_CONNECTIONS)
+			{
+				log.log(Level.FINE, "Connection from \"{0}\" rejected, too many connections", address.getHostAddress());
+				close(channel);
+				continue;
+			}
+
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			Connection connection = new Connection(channel, address.getHostAddress(), takeBuffer(),
+								System.currentTimeMillis() + config.getTimeout() * 1000L);
+			connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+			connections.add(connection);
+		}
+	}
+
+	private void read(Connection connection) throws IOException
+	{
+		boolean eof = connection.channel.read(connection.buffer) < 0;
+		if (!connection.parse(eof))
+		{
+			if (eof)
+				close(connection);
+			else if (!connection.buffer.hasRemaining())
+				throw new IOException("Request is too large");
+			return;
+		}
+
+		connection.key.interestOps(0);
+		connection.processing = true;
+		try
+		{
+			workers.execute(new Request(connection));
+		}
+		catch (RejectedExecutionException ex)
+		{
+			log.log(Level.FINE, "Request from {0} rejected, too many requests", connection.address);
+			connection.processing = false;
+			connection.setAnswer(NOT_SUPPORTED, "Too many requests.".getBytes(StandardCharsets.UTF_8));
+			connection.key.interestOps(SelectionKey.OP_WRITE);
+		}
+	}
+
+	private void write(Connection connection) throws IOException
+	{
+		connection.channel.write(connection.answer);
+		if (!connection.answer.hasRemaining())
+			close(connection);
+	}
+
+	private void writeAnswers()
+	{
+		Connection connection;
+		while ((connection = answered.poll()) != null)
+		{
+			connection.processing = false;
+			if (!connection.key.isValid())
+				continue; // expired while processing, the buffer is dropped
+			try
+			{
+				write(connection); // most answers fit into the socket buffer
+				if (connection.key.isValid())
+					connection.key.interestOps(SelectionKey.OP_WRITE);
+			}
+			catch (IOException ex)
+			{
+				log.log(Level.FINE, "Connection from {0} failed: {1}", new Object[] { connection.address, ex.getMessage() });
+				close(connection);
+			}
+		}
+	}
+
+	private void expire(long now)
+	{
+		Iterator<Connection> it = connections.iterator();
+		while (it.hasNext())
+		{
+			Connection connection = it.next();
+			if (connection.deadline > now)
+				break;
+			log.log(Level.FINE, "Connection from {0} timed out", connection.address);
+			it.remove();
+			closeChannel(connection);
+		}
+	}
+
+	private void close(Connection connection)
+	{
+		connections.remove(connection);
+		closeChannel(connection);
+	}
+
+	private void closeChannel(Connection connection)
+	{
+		connection.key.cancel();
+		close(connection.channel);
+		// a worker may still write into the buffer
+		if (!connection.processing && bufferPool.size() < MAX_POOLED_BUFFERS)
+		{
+			connection.buffer.clear();
+			bufferPool.push(connection.buffer);
+		}
+	}
+
+	private ByteBuffer takeBuffer()
+	{
+		ByteBuffer result = bufferPool.poll();
+		if (result == null)
+			result = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		return result;
+	}
+
+	private static void close(AutoCloseable closeable)
+	{
+		if (closeable == null)
+			return;
+		try
+		{
+			closeable.close();
+		}
+		catch (Exception ex)
+		{
+			// DO NOTHING
+		}
+	}
+
+	/**
+	 * @param deadline time to give up waiting for the value, in ms
+	 */
+	String getValue(String request, long deadline) throws ZabbixException
+	{
+		ZabbixKey key;
+		try
+		{
+			key = new ZabbixKey(request);
+		}
+		catch (IllegalArgumentException ex)
+		{
+			throw new ZabbixException("Invalid item key format.");
+		}
+
+		if ("agent.ping".equals(key.getKeyId()))
+			return "1";
+		if ("agent.hostname".equals(key.getKeyId()))
+			return config.getHostname();
+
+		final CheckPlan plan = CheckPlan.compile(CheckItem.builder().key(key).build());
+		ForkJoinTask<String> task = ForkJoinTask.adapt(new Callable<String>()
+		{
+			@Override
+			public String call() throws Exception
+			{
+				return evaluator.getStringValue(plan);
+			}
+		});
+		String result;
+		try
+		{
+			readers.submit(task);
+			result = task.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException ex)
+		{
+			// a read not started yet is not done at all, a hung one keeps its reader
+			task.cancel(false);
+			throw new ZabbixException("Timeout while getting value.");
+		}
+		catch (RejectedExecutionException ex)
+		{
+			throw new ZabbixException("Agent is stopping.");
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new ZabbixException("Agent is stopping.");
+		}
+		catch (ExecutionException ex)
+		{
+			log.log(Level.FINE, ex.getCause().getMessage(), ex.getCause());
+			result = null;
+		}
+		if (result == null)
+			throw new ZabbixException("Cannot obtain value.");
+		return result;
+	}
+
+	private class Request implements Runnable
+	{
+		private final Connection connection;
+
+		private Request(Connection connection)
+		{
+			this.connection = connection;
+		}
+
+		@Override
+		public void run()
+		{
+			String request = null;
+			try
+			{
+				request = connection.getRequest();
+				log.log(Level.FINE, "Requested [{0}] by {1}", new Object[] { request, connection.address });
+				connection.setAnswer(NO_PREFIX, getValue(request, connection.deadline - ANSWER_TIME).getBytes(StandardCharsets.UTF_8));
+			}
+			catch (ZabbixException ex)
+			{
+				log.log(Level.FINE, "Item [{0}] is not supported: {1}", new Object[] { request, ex.getMessage() });
+				connection.setAnswer(NOT_SUPPORTED, ex.getMessage().getBytes(StandardCharsets.UTF_8));
+			}
+			catch (RuntimeException ex)
+			{
+				log.log(Level.WARNING, ex.getMessage(), ex);
+				connection.setAnswer(NOT_SUPPORTED, String.valueOf(ex.getMessage()).getBytes(StandardCharsets.UTF_8));
+			}
+			answered.add(connection);
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Buffer and state of one connection. Owned by the selector thread, except the buffer
+	 * and the answer while a worker processes the request
+	 */
+	private static class Connection
+	{
+		private final SocketChannel channel;
+		private final String address;
+		private final ByteBuffer buffer;
+		private final long deadline;
+		private SelectionKey key;
+		private volatile boolean processing;
+
+		private int flags;
+		private int dataOffset;
+		private int dataLength;
+		private int uncompressedLength;
+		private ByteBuffer answer;
+
+		private Connection(SocketChannel channel, String address, ByteBuffer buffer, long deadline)
+		{
+			this.channel = channel;
+			this.address = address;
+			this.buffer = buffer;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * @return true if the whole request is in the buffer
+		 */
+		private boolean parse(boolean eof) throws IOException
+		{
+			int size = buffer.position();
+			int n = Math.min(size, SIGNATURE.length);
+			boolean packet = true;
+			for (int i = 0; i < n && packet; i++)
+				packet = buffer.get(i) == SIGNATURE[i];
+
+			if (packet && size <= SIGNATURE.length)
+				return false;
+			if (packet)
+			{
+				flags = buffer.get(SIGNATURE.length);
+				if ((flags & ~(Protocol.FLAG_COMPRESSED | Protocol.FLAG_LARGE)) != Protocol.FLAG_PROTOCOL)
+					throw new IOException("Unsupported protocol flags: " + flags);
+				boolean large = (flags & Protocol.FLAG_LARGE) != 0;
+				int headerSize = large ? Protocol.MAX_HEADER_SIZE : HEADER_SIZE;
+				if (size < headerSize)
+					return false;
+				long length = large ? buffer.getLong(5) : buffer.getInt(5) & 0xFFFFFFFFL;
+				long reserved = large ? buffer.getLong(13) : buffer.getInt(9) & 0xFFFFFFFFL;
+				if (length > buffer.capacity() - headerSize || reserved > buffer.capacity())
+					throw new IOException("Request is too large");
+				dataOffset = headerSize;
+				dataLength = (int)length;
+				uncompressedLength = (int)reserved;
+				return size >= headerSize + length;
+			}
+
+			// plain text up to the end of line
+			flags = 0;
+			dataOffset = 0;
+			for (int i = 0; i < size; i++)
+			{
+				if (buffer.get(i) == '\n')
+				{
+					dataLength = i;
+					return true;
+				}
+			}
+			dataLength = size;
+			return eof && size > 0;
+		}
+
+		/**
+		 * Called by worker
+		 */
+		private String getRequest() throws ZabbixException
+		{
+			byte[] data = new byte[dataLength];
+			ByteBuffer source = buffer.duplicate();
+			source.position(dataOffset);
+			source.get(data);
+			if ((flags & Protocol.FLAG_COMPRESSED) != 0)
+			{
+				Inflater inflater = new Inflater();
+				try
+				{
+					inflater.setInput(data);
+					byte[] result = new byte[uncompressedLength];
+					int n = 0;
+					while (n < result.length && !inflater.finished() && !inflater.needsInput())
+						n += inflater.inflate(result, n, result.length - n);
+					if (n != result.length)
+						throw new ZabbixException("Cannot decompress request.");
+					data = result;
+				}
+				catch (DataFormatException ex)
+				{
+					throw new ZabbixException("Cannot decompress request.");
+				}
+				finally
+				{
+					inflater.end();
+				}
+			}
+			return new String(data, StandardCharsets.UTF_8).trim();
+		}
+
+		private void setAnswer(byte[] prefix, byte[] data)
+		{
+			int length = prefix.length + data.length;
+			ByteBuffer result = HEADER_SIZE + length <= buffer.capacity() ? buffer : ByteBuffer.allocate(HEADER_SIZE + length);
+			result.clear();
+			Protocol.putHeader(result, Protocol.FLAG_PROTOCOL, length, 0);
+			result.put(prefix);
+			result.put(data);
+			result.flip();
+			answer = result;
+		}
+	}
+}
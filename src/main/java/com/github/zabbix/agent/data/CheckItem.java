@@ -20,10 +20,22 @@ public class CheckItem
     /** Item iterval (seconds) */
 	@Getter
 	private int delay;
+    /** Item interval with flexible and scheduling intervals, null for {@link #delay} only */
+	private ItemSchedule schedule;
     /** Last position (if applicable) */
 	@Getter
 	private int lastlogsize;
     /** Last item modification time */
 	@Getter
 	private int mtime;
+
+	/**
+	 * @return null if the item has no interval
+	 */
+	public ItemSchedule getSchedule()
+	{
+		if (schedule == null && delay > 0)
+			return ItemSchedule.every(delay);
+		return schedule;
+	}
 }
@@ -0,0 +1,459 @@
+package com.github.zabbix.agent.data;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Update interval of an item in Zabbix syntax:
+ * <code>&lt;update interval&gt;[;&lt;flexible interval&gt;|&lt;scheduling interval&gt;]...</code>,
+ * e.g. <code>1m;10s/1-5,09:00-18:00;wd1-5h9</code>.<br>
+ * Intervals may have suffixes <code>s</code>, <code>m</code>, <code>h</code>, <code>d</code>, <code>w</code>.
+ * A flexible interval <code>&lt;interval&gt;/&lt;period&gt;</code> replaces the update interval
+ * during the period <code>&lt;d&gt;[-&lt;d&gt;],&lt;hh:mm&gt;-&lt;hh:mm&gt;</code>, days are 1 (Monday) - 7.
+ * If several flexible intervals are active, the smallest one is used.
+ * A scheduling interval checks at the times matching filters <code>md</code> (month days),
+ * <code>wd</code> (week days), <code>h</code>, <code>m</code> and <code>s</code>, each a list of
+ * <code>&lt;from&gt;[-&lt;to&gt;][/&lt;step&gt;]</code>. Time units not given match 0 if they are finer than
+ * a time unit given, e.g. <code>h9</code> is 09:00:00, and any value otherwise.<br>
+ * Checks by interval are spread over the interval by a seed, as the server does with item ids, so
+ * items of the same interval are not all checked at once. Times are in the local time zone.<br>
+ * Immutable.
+ *
+ * @author Victor Kadachigov
+ */
+public class ItemSchedule
+{
+	private static final int MAX_INTERVAL = 86400;
+	private static final int MINUTES_PER_WEEK = 7 * 1440;
+	/** How far scheduling intervals are looked for */
+	private static final int MAX_DAYS = 366;
+
+	private final String text;
+	/** Update interval, s */
+	private final int interval;
+	private final List<Flexible> flexibles;
+	private final List<Scheduling> schedulings;
+
+	private ItemSchedule(String text, int interval, List<Flexible> flexibles, List<Scheduling> schedulings)
+	{
+		this.text = text;
+		this.interval = interval;
+		this.flexibles = flexibles;
+		this.schedulings = schedulings;
+	}
+
+	/**
+	 * @param interval update interval, s
+	 */
+	public static ItemSchedule every(int interval)
+	{
+		return parse(String.valueOf(interval));
+	}
+
+	public static ItemSchedule parse(String text)
+	{
+		String[] parts = text.trim().split(";");
+		int interval = parseInterval(parts[0].trim(), text);
+		List<Flexible> flexibles = new ArrayList<>();
+		List<Scheduling> schedulings = new ArrayList<>();
+		for (int i = 1; i < parts.length; i++)
+		{
+			String part = parts[i].trim();
+			if (part.isEmpty())
+				throw new IllegalArgumentException("Empty interval in \"" + text + "\"");
+			if (Character.isDigit(part.charAt(0)))
+				flexibles.add(Flexible.parse(part, text));
+			else
+				schedulings.add(Scheduling.parse(part, text));
+		}
+
+		if (interval == 0 && schedulings.isEmpty())
+		{
+			boolean any = false;
+			for (Flexible flexible : flexibles)
+				any |= flexible.interval > 0;
+			if (!any)
+				throw new IllegalArgumentException("Item is never checked: \"" + text + "\"");
+		}
+		return new ItemSchedule(text.trim(), interval, flexibles, schedulings);
+	}
+
+	/**
+	 * @return update interval without flexible intervals, s. 0 if the item is checked by flexible or scheduling intervals only
+	 */
+	public int getInterval()
+	{
+		return interval;
+	}
+
+	/**
+	 * @return update interval at the time, s. 0 if the item is not checked by interval then
+	 */
+	public int getInterval(long time)
+	{
+		if (flexibles.isEmpty())
+			return interval;
+		int minute = minuteOfWeek(time);
+		int result = -1;
+		for (Flexible flexible : flexibles)
+			if (flexible.isActive(minute) && (result < 0 || flexible.interval < result))
+				result = flexible.interval;
+		return result >= 0 ? result : interval;
+	}
+
+	/**
+	 * @param seed spreads checks by interval, the same seed gives the same time
+	 * @return time of the next check after <code>time</code>, ms. Long.MAX_VALUE if there is none
+	 */
+	public long nextCheck(long time, int seed)
+	{
+		long result = nextIntervalCheck(time, seed & 0x7FFFFFFF);
+		for (Scheduling scheduling : schedulings)
+			result = Math.min(result, scheduling.next(time));
+		return result;
+	}
+
+	private long nextIntervalCheck(long time, int seed)
+	{
+		long t = time;
+		boolean inclusive = false;
+		// interval may change at the bounds of flexible periods
+		for (int i = 0; i < 2 * flexibles.size() * 7 + 1; i++)
+		{
+			int current = getInterval(t);
+			long bound = flexibles.isEmpty() ? Long.MAX_VALUE : nextBound(t);
+			if (current > 0)
+			{
+				long period = TimeUnit.SECONDS.toMillis(current);
+				long next = t - mod(t, period) + seed % period;
+				if (inclusive ? next < t : next <= t)
+					next += period;
+				if (next < bound)
+					return next;
+			}
+			if (bound == Long.MAX_VALUE)
+				break;
+			t = bound;
+			inclusive = true;
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * @return start of the next minute some flexible period starts or ends at
+	 */
+	private long nextBound(long time)
+	{
+		int minute = minuteOfWeek(time);
+		int min = Integer.MAX_VALUE;
+		for (Flexible flexible : flexibles)
+		{
+			for (int day = flexible.fromDay; day <= flexible.toDay; day++)
+			{
+				for (int bound : new int[] { flexible.fromMinute, flexible.toMinute })
+				{
+					int distance = (int)mod((day - 1) * 1440 + bound - minute, MINUTES_PER_WEEK);
+					if (distance == 0)
+						distance = MINUTES_PER_WEEK;
+					min = Math.min(min, distance);
+				}
+			}
+		}
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		calendar.add(Calendar.MINUTE, min);
+		return calendar.getTimeInMillis();
+	}
+
+	private static long mod(long a, long b)
+	{
+		long result = a % b;
+		return result < 0 ? result + b : result;
+	}
+
+	/**
+	 * @return minutes since Monday 00:00
+	 */
+	private static int minuteOfWeek(long time)
+	{
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		int day = (calendar.get(Calendar.DAY_OF_WEEK) + 5) % 7; // Monday is 0
+		return day * 1440 + calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+	}
+
+	/**
+	 * @return seconds
+	 */
+	private static int parseInterval(String s, String text)
+	{
+		int multiplier = 1;
+		if (!s.isEmpty())
+		{
+			switch (s.charAt(s.length() - 1))
+			{
+				case 's': multiplier = 1; break;
+				case 'm': multiplier = 60; break;
+				case 'h': multiplier = 3600; break;
+				case 'd': multiplier = 86400; break;
+				case 'w': multiplier = 7 * 86400; break;
+				default:
+					multiplier = 0;
+			}
+			if (multiplier != 0)
+				s = s.substring(0, s.length() - 1);
+			else
+				multiplier = 1;
+		}
+		long result;
+		try
+		{
+			result = Long.parseLong(s) * multiplier;
+		}
+		catch (NumberFormatException ex)
+		{
+			result = -1;
+		}
+		if (result < 0 || result > MAX_INTERVAL)
+			throw new IllegalArgumentException("Invalid interval \"" + s + "\" in \"" + text + "\"");
+		return (int)result;
+	}
+
+	private static int parseNumber(String s, int min, int max, String text)
+	{
+		int result;
+		try
+		{
+			result = Integer.parseInt(s);
+		}
+		catch (NumberFormatException ex)
+		{
+			result = min - 1;
+		}
+		if (result < min || result > max)
+			throw new IllegalArgumentException("Invalid value \"" + s + "\" in \"" + text + "\"");
+		return result;
+	}
+
+	/**
+	 * @return minutes since 00:00
+	 */
+	private static int parseTime(String s, String text)
+	{
+		int n = s.indexOf(':');
+		if (n < 1 || s.length() - n != 3)
+			throw new IllegalArgumentException("Invalid time \"" + s + "\" in \"" + text + "\"");
+		int result = parseNumber(s.substring(0, n), 0, 24, text) * 60 + parseNumber(s.substring(n + 1), 0, 59, text);
+		if (result > 1440)
+			throw new IllegalArgumentException("Invalid time \"" + s + "\" in \"" + text + "\"");
+		return result;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return text.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		return obj instanceof ItemSchedule && text.equals(((ItemSchedule)obj).text);
+	}
+
+	@Override
+	public String toString()
+	{
+		return text;
+	}
+
+	/**
+	 * Interval replacing the update interval during a period of the week
+	 */
+	private static class Flexible
+	{
+		private final int interval;
+		private final int fromDay;
+		private final int toDay;
+		/** Minutes since 00:00 */
+		private final int fromMinute;
+		private final int toMinute;
+
+		private Flexible(int interval, int fromDay, int toDay, int fromMinute, int toMinute)
+		{
+			this.interval = interval;
+			this.fromDay = fromDay;
+			this.toDay = toDay;
+			this.fromMinute = fromMinute;
+			this.toMinute = toMinute;
+		}
+
+		private static Flexible parse(String s, String text)
+		{
+			int slash = s.indexOf('/');
+			int comma = s.indexOf(',');
+			if (slash < 0 || comma < slash)
+				throw new IllegalArgumentException("Invalid flexible interval \"" + s + "\" in \"" + text + "\"");
+			int interval = parseInterval(s.substring(0, slash), text);
+
+			String days = s.substring(slash + 1, comma);
+			int dash = days.indexOf('-');
+			int fromDay = parseNumber(dash < 0 ? days : days.substring(0, dash), 1, 7, text);
+			int toDay = dash < 0 ? fromDay : parseNumber(days.substring(dash + 1), fromDay, 7, text);
+
+			String times = s.substring(comma + 1);
+			dash = times.indexOf('-');
+			if (dash < 0)
+				throw new IllegalArgumentException("Invalid period \"" + s + "\" in \"" + text + "\"");
+			int fromMinute = parseTime(times.substring(0, dash), text);
+			int toMinute = parseTime(times.substring(dash + 1), text);
+			if (toMinute <= fromMinute)
+				throw new IllegalArgumentException("Invalid period \"" + s + "\" in \"" + text + "\"");
+			return new Flexible(interval, fromDay, toDay, fromMinute, toMinute);
+		}
+
+		private boolean isActive(int minuteOfWeek)
+		{
+			int day = minuteOfWeek / 1440 + 1;
+			int minute = minuteOfWeek % 1440;
+			return day >= fromDay && day <= toDay && minute >= fromMinute && minute < toMinute;
+		}
+	}
+
+	/**
+	 * Checks at times matching filters of time units
+	 */
+	private static class Scheduling
+	{
+		private static final String[] UNITS = { "md", "wd", "h", "m", "s" };
+		private static final int[] MINS = { 1, 1, 0, 0, 0 };
+		private static final int[] MAXS = { 31, 7, 23, 59, 59 };
+
+		/** Allowed values of every unit, indexed by value */
+		private final boolean[][] allowed = new boolean[UNITS.length][];
+
+		private static Scheduling parse(String s, String text)
+		{
+			Scheduling result = new Scheduling();
+			int pos = 0;
+			int last = -1;
+			while (pos < s.length())
+			{
+				int unit = -1;
+				for (int u = last + 1; u < UNITS.length && unit < 0; u++)
+					if (s.startsWith(UNITS[u], pos))
+						unit = u;
+				if (unit < 0)
+					throw new IllegalArgumentException("Invalid scheduling interval \"" + s + "\" in \"" + text + "\"");
+				pos += UNITS[unit].length();
+				int end = pos;
+				while (end < s.length() && !Character.isLetter(s.charAt(end)))
+					end++;
+				result.allowed[unit] = parseFilter(s.substring(pos, end), MINS[unit], MAXS[unit], text);
+				pos = end;
+				last = unit;
+			}
+
+			// time units finer than the coarsest one given are 0, coarser ones and days are any
+			int coarsest = result.allowed[0] != null || result.allowed[1] != null ? 1 : UNITS.length;
+			for (int u = 2; u < UNITS.length && coarsest > u; u++)
+				if (result.allowed[u] != null)
+					coarsest = u;
+			for (int u = 0; u < UNITS.length; u++)
+			{
+				if (result.allowed[u] == null)
+				{
+					result.allowed[u] = new boolean[MAXS[u] + 1];
+					if (u > coarsest)
+						result.allowed[u][MINS[u]] = true;
+					else
+						for (int v = MINS[u]; v <= MAXS[u]; v++)
+							result.allowed[u][v] = true;
+				}
+			}
+			return result;
+		}
+
+		private static boolean[] parseFilter(String s, int min, int max, String text)
+		{
+			boolean[] result = new boolean[max + 1];
+			if (s.isEmpty())
+				throw new IllegalArgumentException("Empty filter in \"" + text + "\"");
+			for (String item : s.split(","))
+			{
+				int step = 1;
+				int slash = item.indexOf('/');
+				if (slash >= 0)
+				{
+					step = parseNumber(item.substring(slash + 1), 1, max, text);
+					item = item.substring(0, slash);
+				}
+				int from = min;
+				int to = max;
+				if (!item.isEmpty())
+				{
+					int dash = item.indexOf('-');
+					from = parseNumber(dash < 0 ? item : item.substring(0, dash), min, max, text);
+					to = dash < 0 ? (slash >= 0 ? max : from) : parseNumber(item.substring(dash + 1), from, max, text);
+				}
+				for (int v = from; v <= to; v += step)
+					result[v] = true;
+			}
+			return result;
+		}
+
+		/**
+		 * @return first matching time after <code>time</code>, Long.MAX_VALUE if there is none within a year
+		 */
+		private long next(long time)
+		{
+			Calendar calendar = Calendar.getInstance();
+			calendar.setTimeInMillis(time);
+			calendar.set(Calendar.MILLISECOND, 0);
+			calendar.add(Calendar.SECOND, 1);
+			int h0 = calendar.get(Calendar.HOUR_OF_DAY);
+			int m0 = calendar.get(Calendar.MINUTE);
+			int s0 = calendar.get(Calendar.SECOND);
+			calendar.set(Calendar.HOUR_OF_DAY, 0);
+			calendar.set(Calendar.MINUTE, 0);
+			calendar.set(Calendar.SECOND, 0);
+
+			for (int day = 0; day <= MAX_DAYS; day++)
+			{
+				int weekDay = (calendar.get(Calendar.DAY_OF_WEEK) + 5) % 7 + 1;
+				if (allowed[0][calendar.get(Calendar.DAY_OF_MONTH)] && allowed[1][weekDay])
+				{
+					for (int h = h0; h < 24; h++)
+					{
+						if (!allowed[2][h])
+							continue;
+						for (int m = h == h0 ? m0 : 0; m < 60; m++)
+						{
+							if (!allowed[3][m])
+								continue;
+							for (int s = h == h0 && m == m0 ? s0 : 0; s < 60; s++)
+							{
+								if (allowed[4][s])
+								{
+									calendar.set(Calendar.HOUR_OF_DAY, h);
+									calendar.set(Calendar.MINUTE, m);
+									calendar.set(Calendar.SECOND, s);
+									return calendar.getTimeInMillis();
+								}
+							}
+						}
+					}
+				}
+				calendar.add(Calendar.DAY_OF_MONTH, 1);
+				h0 = 0;
+				m0 = 0;
+				s0 = 0;
+			}
+			return Long.MAX_VALUE;
+		}
+	}
+}
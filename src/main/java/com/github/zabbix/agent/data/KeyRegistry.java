@@ -0,0 +1,49 @@
+package com.github.zabbix.agent.data;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns item keys to int ids, so buffered values keep an int instead of a key reference.
+ * Ids are never reused, so only keys of active checks are interned, not keys of passive requests.
+ * 
+ * @author Victor Kadachigov
+ */
+public class KeyRegistry
+{
+	private final ConcurrentHashMap<ZabbixKey, Integer> ids = new ConcurrentHashMap<>();
+	private volatile ZabbixKey[] keys = new ZabbixKey[256];
+	private int count;
+	
+	public int intern(ZabbixKey key)
+	{
+		Integer id = ids.get(key);
+		if (id != null)
+			return id;
+		
+		synchronized (this)
+		{
+			id = ids.get(key);
+			if (id != null)
+				return id;
+			
+			ZabbixKey[] a = keys;
+			if (count == a.length)
+				a = Arrays.copyOf(a, count * 2);
+			a[count] = key;
+			keys = a;
+			ids.put(key, count);
+			return count++;
+		}
+	}
+	
+	public ZabbixKey get(int id)
+	{
+		return keys[id];
+	}
+	
+	public int size()
+	{
+		return ids.size();
+	}
+}
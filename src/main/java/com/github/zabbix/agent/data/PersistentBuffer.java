@@ -0,0 +1,502 @@
+package com.github.zabbix.agent.data;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import lombok.Getter;
+
+/**
+ * Append-only on-disk log of check results, used when <code>EnablePersistentBuffer=1</code>.<br>
+ * Values are appended to preallocated segment files (<code>&lt;file&gt;.0000000001</code>, ...)
+ * through a {@link MappedByteBuffer}, so they survive server outages and agent restarts without
+ * taking heap. Values are read back in batches of limited size. A read position is saved to
+ * <code>&lt;file&gt;.checkpoint</code> only by {@link #commit(long)}, i.e. after the server has accepted
+ * the values before it, everything after the checkpoint is sent again after restart. Values older than
+ * the period are skipped on read, segments before the checkpoint are deleted. Disk use is bounded while
+ * the server is not available: when a segment is full, segments holding only values older than the period
+ * and the oldest segments beyond the max size are deleted whether their values were sent or not.<br>
+ * Record format: int length, int crc32, long clock, byte type, long number,
+ * unsigned short key length, key, int string length (-1 for null), string.<br>
+ * Not thread safe.
+ *
+ * @author Victor Kadachigov
+ */
+public class PersistentBuffer implements Closeable
+{
+	static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+	/** length and crc */
+	private static final int HEADER_SIZE = 8;
+	private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+	private final File file;
+	private final KeyRegistry keys;
+	/** in ms */
+	private final long period;
+	/** Max size of all segments, in bytes */
+	private final long maxSize;
+	private final int segmentSize;
+	private final TreeMap<Long, Segment> segments = new TreeMap<>();
+	/** Key ids of key texts read from disk */
+	private final Map<String, Integer> keyIds = new HashMap<>();
+	/** Encoded key texts by key id */
+	private byte[][] keyBytes = new byte[256][];
+	private final CRC32 crc = new CRC32();
+	private byte[] scratch = new byte[4096];
+
+	private Segment writeSegment;
+	private MappedByteBuffer writeBuffer;
+	private Segment readSegment;
+	private ByteBuffer readBuffer;
+	private int readOffset;
+	/** Number of records read from the read segment */
+	private int readCount;
+	/** Number of records not read yet */
+	private long size;
+	/**
+	 * @return number of values skipped because they were older than the period
+	 */
+	@Getter
+	private long expired;
+	/**
+	 * @return number of values not sent and deleted because the files reached the max size
+	 */
+	@Getter
+	private long dropped;
+
+	/**
+	 * @param period max age of values to send, in ms
+	 * @param maxSize max size of all files, in bytes
+	 */
+	public PersistentBuffer(File file, KeyRegistry keys, long period, long maxSize) throws IOException
+	{
+		this(file, keys, period, maxSize, DEFAULT_SEGMENT_SIZE);
+	}
+
+	PersistentBuffer(File file, KeyRegistry keys, long period, long maxSize, int segmentSize) throws IOException
+	{
+		this.file = file.getAbsoluteFile();
+		this.keys = keys;
+		this.period = period;
+		this.maxSize = maxSize;
+		this.segmentSize = segmentSize;
+		open();
+	}
+
+	private void open() throws IOException
+	{
+		File dir = file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create directory " + dir);
+
+		long checkpointSegment = 0;
+		int checkpointOffset = 0;
+		File checkpointFile = new File(file.getPath() + CHECKPOINT_SUFFIX);
+		if (checkpointFile.length() == 12)
+		{
+			try (DataInputStream in = new DataInputStream(new FileInputStream(checkpointFile)))
+			{
+				checkpointSegment = in.readLong();
+				checkpointOffset = in.readInt();
+			}
+		}
+
+		String prefix = file.getName() + ".";
+		File[] files = dir.listFiles();
+		for (int i = 0; files != null && i < files.length; i++)
+		{
+			String name = files[i].getName();
+			if (!name.startsWith(prefix) || !isDigits(name, prefix.length()))
+				continue;
+			long id = Long.parseLong(name.substring(prefix.length()));
+			if (id < checkpointSegment)
+				files[i].delete(); // already sent
+			else
+				segments.put(id, new Segment(id, files[i]));
+		}
+
+		if (!segments.containsKey(checkpointSegment))
+			checkpointOffset = 0; // start from the first segment
+		boolean corrupted = false;
+		for (Segment segment : segments.values())
+		{
+			corrupted = !scan(segment, checkpointOffset);
+			size += segment.count - segment.countBefore;
+			checkpointOffset = 0;
+		}
+
+		if (segments.isEmpty() || corrupted)
+			roll(0); // do not append after a damaged record
+		else
+		{
+			writeSegment = segments.lastEntry().getValue();
+			writeBuffer = map(writeSegment.file, FileChannel.MapMode.READ_WRITE);
+			writeBuffer.position(writeSegment.end);
+		}
+
+		readSegment = segments.firstEntry().getValue();
+		readOffset = readSegment.start;
+		readCount = readSegment.countBefore;
+		// the agent may have been stopped for long
+		purge(System.currentTimeMillis() - period, maxSize);
+	}
+
+	/**
+	 * Finds the end of valid records in the segment
+	 *
+	 * @param start offset of the first not sent record
+	 * @return false if a damaged record was found
+	 */
+	private boolean scan(Segment segment, int start) throws IOException
+	{
+		ByteBuffer buffer = map(segment.file, FileChannel.MapMode.READ_ONLY);
+		boolean result = true;
+		int offset = 0;
+		while (offset + HEADER_SIZE <= buffer.limit())
+		{
+			int length = buffer.getInt(offset);
+			if (length == 0)
+				break; // end of data
+			if (length < 0 || offset + HEADER_SIZE + length > buffer.limit())
+			{
+				result = false;
+				break;
+			}
+			ensureScratch(length);
+			buffer.position(offset + HEADER_SIZE);
+			buffer.get(scratch, 0, length);
+			crc.reset();
+			crc.update(scratch, 0, length);
+			if ((int)crc.getValue() != buffer.getInt(offset + 4))
+			{
+				result = false;
+				break;
+			}
+
+			if (offset < start)
+				segment.countBefore++;
+			segment.count++;
+			segment.lastClock = Math.max(segment.lastClock, buffer.getLong(offset + HEADER_SIZE));
+			offset += HEADER_SIZE + length;
+		}
+		segment.end = offset;
+		segment.start = Math.min(start, offset);
+		return result;
+	}
+
+	/**
+	 * Writes all values of the batch
+	 */
+	public void append(ResultBatch batch) throws IOException
+	{
+		for (int i = 0; i < batch.size(); i++)
+		{
+			byte[] key = getKeyBytes(batch.getKeyId(i));
+			String string = batch.getString(i);
+			byte[] bytes = string != null ? string.getBytes(StandardCharsets.UTF_8) : null;
+			int length = 8 + 1 + 8 + 2 + key.length + 4 + (bytes != null ? bytes.length : 0);
+
+			ensureScratch(length);
+			ByteBuffer record = ByteBuffer.wrap(scratch, 0, length);
+			record.putLong(batch.getClock(i));
+			record.put(batch.getType(i));
+			record.putLong(batch.getNumber(i));
+			record.putShort((short)key.length);
+			record.put(key);
+			if (bytes != null)
+			{
+				record.putInt(bytes.length);
+				record.put(bytes);
+			}
+			else
+				record.putInt(-1);
+			crc.reset();
+			crc.update(scratch, 0, length);
+
+			// a record never crosses segments, the rest of the segment stays zero-filled
+			if (writeBuffer.remaining() < HEADER_SIZE + length)
+				roll(HEADER_SIZE + length);
+			writeBuffer.putInt(length);
+			writeBuffer.putInt((int)crc.getValue());
+			writeBuffer.put(scratch, 0, length);
+
+			writeSegment.end = writeBuffer.position();
+			writeSegment.count++;
+			writeSegment.lastClock = Math.max(writeSegment.lastClock, batch.getClock(i));
+			size++;
+		}
+	}
+
+	/**
+	 * Reads at most <code>maxValues</code> values following the ones read before.
+	 * The values are read again after restart until {@link #commit(long)} is called.
+	 *
+	 * @param now current time in ms
+	 * @return number of values added to the batch
+	 */
+	public int read(ResultBatch batch, int maxValues, long now) throws IOException
+	{
+		long minClock = now - period;
+		int result = 0;
+		while (result < maxValues)
+		{
+			if (readSegment != writeSegment && readSegment.lastClock < minClock)
+			{
+				// whole segment is too old
+				expired += readSegment.count - readCount;
+				size -= readSegment.count - readCount;
+				nextReadSegment();
+				continue;
+			}
+			if (readOffset >= readSegment.end)
+			{
+				if (readSegment == writeSegment)
+					break;
+				nextReadSegment();
+				continue;
+			}
+
+			if (readBuffer == null)
+				readBuffer = (readSegment == writeSegment) ? writeBuffer.duplicate() : map(readSegment.file, FileChannel.MapMode.READ_ONLY);
+			int length = readBuffer.getInt(readOffset);
+			readBuffer.position(readOffset + HEADER_SIZE);
+			readOffset += HEADER_SIZE + length;
+			readCount++;
+			size--;
+
+			long clock = readBuffer.getLong();
+			if (clock < minClock)
+			{
+				expired++;
+				continue;
+			}
+			byte type = readBuffer.get();
+			long number = readBuffer.getLong();
+			int keyId = getKeyId(readString(readBuffer.getShort() & 0xFFFF));
+			int stringLength = readBuffer.getInt();
+			String string = stringLength >= 0 ? readString(stringLength) : null;
+
+			batch.add(keyId, clock, type, number, string);
+			result++;
+		}
+		return result;
+	}
+
+	/**
+	 * @return position after the last value read, for {@link #commit(long)}
+	 */
+	public long getPosition()
+	{
+		return readSegment.id << 32 | readOffset;
+	}
+	
+	/**
+	 * Saves the position, values before it will not be read again after restart.
+	 * 
+	 * @param position value returned by {@link #getPosition()}
+	 */
+	public void commit(long position) throws IOException
+	{
+		long segmentId = position >>> 32;
+		int offset = (int)position;
+		File checkpointFile = new File(file.getPath() + CHECKPOINT_SUFFIX);
+		File tmpFile = new File(file.getPath() + CHECKPOINT_SUFFIX + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(tmpFile))
+		{
+			DataOutputStream out = new DataOutputStream(fos);
+			out.writeLong(segmentId);
+			out.writeInt(offset);
+			out.flush();
+			fos.getFD().sync();
+		}
+		Files.move(tmpFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		// a mapped file may not be deleted on some platforms, try again on next commit
+		Iterator<Segment> it = segments.headMap(segmentId).values().iterator();
+		while (it.hasNext())
+		{
+			File segmentFile = it.next().file;
+			if (segmentFile.delete() || !segmentFile.exists())
+				it.remove();
+		}
+	}
+
+	/**
+	 * @return number of values not read yet
+	 */
+	public long size()
+	{
+		return size;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (writeBuffer != null)
+			writeBuffer.force();
+		writeBuffer = null;
+		readBuffer = null;
+	}
+
+	private void roll(int minSize) throws IOException
+	{
+		int length = Math.max(segmentSize, minSize);
+		if (writeBuffer != null)
+		{
+			writeBuffer.force();
+			purge(System.currentTimeMillis() - period, maxSize - length);
+		}
+
+		long id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		Segment segment = new Segment(id, new File(String.format("%s.%010d", file.getPath(), id)));
+		try (RandomAccessFile raf = new RandomAccessFile(segment.file, "rw"))
+		{
+			raf.setLength(length);
+		}
+		writeBuffer = map(segment.file, FileChannel.MapMode.READ_WRITE);
+		writeSegment = segment;
+		segments.put(id, segment);
+	}
+
+	/**
+	 * Deletes the oldest segments but the one written while their values are older than <code>minClock</code>
+	 * or all segments take more than <code>maxBytes</code>. Values not read yet are lost
+	 */
+	private void purge(long minClock, long maxBytes)
+	{
+		long total = 0;
+		for (Segment segment : segments.values())
+			total += segment.file.length();
+		
+		Iterator<Segment> it = segments.values().iterator();
+		while (it.hasNext())
+		{
+			Segment segment = it.next();
+			if (segment == writeSegment)
+				break;
+			boolean old = segment.lastClock < minClock;
+			if (!old && total <= maxBytes)
+				break;
+			
+			long lost = 0;
+			if (segment == readSegment)
+			{
+				lost = segment.count - readCount;
+				nextReadSegment();
+			}
+			else if (segment.id > readSegment.id)
+				lost = segment.count - segment.countBefore;
+			size -= lost;
+			if (old)
+				expired += lost;
+			else
+				dropped += lost;
+			
+			total -= segment.file.length();
+			// a mapped file may not be deleted on some platforms, it is deleted on commit then
+			if (segment.file.delete() || !segment.file.exists())
+				it.remove();
+		}
+	}
+
+	private void nextReadSegment()
+	{
+		readSegment = segments.higherEntry(readSegment.id).getValue();
+		readBuffer = null;
+		readOffset = 0;
+		readCount = 0;
+	}
+
+	private String readString(int length)
+	{
+		ensureScratch(length);
+		readBuffer.get(scratch, 0, length);
+		return new String(scratch, 0, length, StandardCharsets.UTF_8);
+	}
+
+	private byte[] getKeyBytes(int keyId)
+	{
+		if (keyId >= keyBytes.length)
+			keyBytes = Arrays.copyOf(keyBytes, Math.max(keyId + 1, keyBytes.length * 2));
+		byte[] result = keyBytes[keyId];
+		if (result == null)
+		{
+			result = keys.get(keyId).getKey().getBytes(StandardCharsets.UTF_8);
+			keyBytes[keyId] = result;
+		}
+		return result;
+	}
+
+	private int getKeyId(String key)
+	{
+		Integer result = keyIds.get(key);
+		if (result == null)
+		{
+			result = keys.intern(new ZabbixKey(key));
+			keyIds.put(key, result);
+		}
+		return result;
+	}
+
+	private void ensureScratch(int length)
+	{
+		if (scratch.length < length)
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+	}
+
+	private static MappedByteBuffer map(File file, FileChannel.MapMode mode) throws IOException
+	{
+		// the mapping stays valid after the channel is closed
+		try (RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw"))
+		{
+			return raf.getChannel().map(mode, 0, raf.length());
+		}
+	}
+
+	private static boolean isDigits(String s, int from)
+	{
+		if (from >= s.length())
+			return false;
+		for (int i = from; i < s.length(); i++)
+			if (!Character.isDigit(s.charAt(i)))
+				return false;
+		return true;
+	}
+
+	private static class Segment
+	{
+		private final long id;
+		private final File file;
+		/** Offset of the first not sent record, found on open */
+		private int start;
+		/** Offset after the last record */
+		private int end;
+		private int count;
+		/** Number of records before {@link #start} */
+		private int countBefore;
+		private long lastClock = Long.MIN_VALUE;
+
+		private Segment(long id, File file)
+		{
+			this.id = id;
+			this.file = file;
+		}
+	}
+}
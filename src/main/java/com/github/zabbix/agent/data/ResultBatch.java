@@ -0,0 +1,174 @@
+package com.github.zabbix.agent.data;
+
+import java.util.Arrays;
+
+import lombok.Getter;
+
+/**
+ * Growable columnar list of check results taken from {@link ResultBuffer}.<br>
+ * Numbers are kept as primitives and turned into text only when {@link #getValue(int)} is called.
+ * 
+ * @author Victor Kadachigov
+ */
+public class ResultBatch
+{
+	public static final int STATE_NORMAL = 0;
+	public static final int STATE_NOTSUPPORTED = 1;
+	
+	public static final byte TYPE_STRING = 0;
+	public static final byte TYPE_LONG = 1;
+	public static final byte TYPE_DOUBLE = 2;
+	public static final byte TYPE_FLOAT = 3;
+	public static final byte TYPE_BOOLEAN = 4;
+	/** String with error message */
+	public static final byte TYPE_NOTSUPPORTED = 5;
+	
+	@Getter
+	private final KeyRegistry keys;
+	
+	private int size;
+	private int[] keyIds;
+	private long[] clocks;
+	/** long value or raw bits of double value */
+	private long[] numbers;
+	private byte[] types;
+	private String[] strings;
+	
+	public ResultBatch(KeyRegistry keys)
+	{
+		this(keys, 64);
+	}
+	
+	public ResultBatch(KeyRegistry keys, int initialCapacity)
+	{
+		this.keys = keys;
+		keyIds = new int[initialCapacity];
+		clocks = new long[initialCapacity];
+		numbers = new long[initialCapacity];
+		types = new byte[initialCapacity];
+		strings = new String[initialCapacity];
+	}
+	
+	void add(int keyId, long clock, byte type, long number, String string)
+	{
+		if (size == keyIds.length)
+		{
+			int capacity = Math.max(16, size * 2);
+			keyIds = Arrays.copyOf(keyIds, capacity);
+			clocks = Arrays.copyOf(clocks, capacity);
+			numbers = Arrays.copyOf(numbers, capacity);
+			types = Arrays.copyOf(types, capacity);
+			strings = Arrays.copyOf(strings, capacity);
+		}
+		keyIds[size] = keyId;
+		clocks[size] = clock;
+		numbers[size] = number;
+		types[size] = type;
+		strings[size] = string;
+		size++;
+	}
+	
+	/**
+	 * Appends values <code>from</code> (inclusive) - <code>to</code> (exclusive) of another batch
+	 */
+	public void addAll(ResultBatch batch, int from, int to)
+	{
+		for (int i = from; i < to; i++)
+			add(batch.keyIds[i], batch.clocks[i], batch.types[i], batch.numbers[i], batch.strings[i]);
+	}
+	
+	/**
+	 * Removes values starting from <code>size</code>
+	 */
+	public void truncate(int size)
+	{
+		if (size < this.size)
+		{
+			Arrays.fill(strings, size, this.size, null);
+			this.size = size;
+		}
+	}
+	
+	public int size()
+	{
+		return size;
+	}
+	
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+	
+	public void clear()
+	{
+		Arrays.fill(strings, 0, size, null);
+		size = 0;
+	}
+	
+	public int getKeyId(int index)
+	{
+		return keyIds[index];
+	}
+	
+	public ZabbixKey getKey(int index)
+	{
+		return keys.get(keyIds[index]);
+	}
+	
+	/**
+	 * @return time in ms
+	 */
+	public long getClock(int index)
+	{
+		return clocks[index];
+	}
+	
+	/**
+	 * @return one of <code>TYPE_*</code> constants
+	 */
+	public byte getType(int index)
+	{
+		return types[index];
+	}
+	
+	/**
+	 * @return long value, raw bits of double value or 1/0 for boolean value
+	 */
+	public long getNumber(int index)
+	{
+		return numbers[index];
+	}
+	
+	/**
+	 * @return string value or error message, null for numbers
+	 */
+	public String getString(int index)
+	{
+		return strings[index];
+	}
+	
+	public int getState(int index)
+	{
+		return types[index] == TYPE_NOTSUPPORTED ? STATE_NOTSUPPORTED : STATE_NORMAL;
+	}
+	
+	/**
+	 * @return value as text or error message if item is not supported
+	 */
+	public String getValue(int index)
+	{
+		switch (types[index])
+		{
+			case TYPE_LONG:
+				return Long.toString(numbers[index]);
+			case TYPE_DOUBLE:
+				return Double.toString(Double.longBitsToDouble(numbers[index]));
+			case TYPE_FLOAT:
+				return Float.toString((float)Double.longBitsToDouble(numbers[index]));
+			case TYPE_BOOLEAN:
+				return Boolean.toString(numbers[index] != 0);
+			default:
+				return strings[index];
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package com.github.zabbix.agent.data;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.zabbix.agent.util.RingBuffer;
+
+import lombok.Getter;
+
+/**
+ * Bounded multi-producer/single-consumer buffer of check results.<br>
+ * Results are stored in columns: interned key id, clock, primitive number and type. 
+ * Only string values keep a reference. Columns grow on demand up to the capacity and
+ * shrink back when the buffer is drained empty, so an outage costs heap only while it lasts.<br>
+ * When the buffer is full a new value overwrites the oldest one and the overwritten
+ * value is counted as dropped. {@link #size()} is O(1), the consumer takes values 
+ * with {@link #drainTo(ResultBatch, int)} and may wait for them with {@link #await(int, long, TimeUnit)}.
+ * 
+ * @see RingBuffer
+ * 
+ * @author Victor Kadachigov
+ */
+public class ResultBuffer extends RingBuffer
+{
+	private static final int INITIAL_CAPACITY = 1024;
+	
+	@Getter
+	private final KeyRegistry keys;
+	
+	private int[] keyIds;
+	private long[] clocks;
+	private long[] numbers;
+	private byte[] types;
+	private String[] strings;
+	
+	public ResultBuffer(int capacity)
+	{
+		this(capacity, new KeyRegistry());
+	}
+	
+	public ResultBuffer(int capacity, KeyRegistry keys)
+	{
+		super(capacity);
+		this.keys = keys;
+		allocate(Math.min(capacity, INITIAL_CAPACITY));
+	}
+	
+	/**
+	 * @param value primitive attribute value
+	 */
+	public void offer(int keyId, long clock, Object value)
+	{
+		if (value == null)
+			throw new NullPointerException();
+		
+		if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+				|| value instanceof AtomicLong || value instanceof AtomicInteger)
+			put(keyId, clock, ResultBatch.TYPE_LONG, ((Number)value).longValue(), null);
+		else if (value instanceof Double)
+			put(keyId, clock, ResultBatch.TYPE_DOUBLE, Double.doubleToRawLongBits((Double)value), null);
+		else if (value instanceof Float)
+			put(keyId, clock, ResultBatch.TYPE_FLOAT, Double.doubleToRawLongBits((Float)value), null);
+		else if (value instanceof Boolean)
+			put(keyId, clock, ResultBatch.TYPE_BOOLEAN, ((Boolean)value) ? 1 : 0, null);
+		else if (value instanceof AtomicBoolean)
+			put(keyId, clock, ResultBatch.TYPE_BOOLEAN, ((AtomicBoolean)value).get() ? 1 : 0, null);
+		else
+			put(keyId, clock, ResultBatch.TYPE_STRING, 0, value.toString());
+	}
+	
+	public void offerNotSupported(int keyId, long clock, String message)
+	{
+		put(keyId, clock, ResultBatch.TYPE_NOTSUPPORTED, 0, message);
+	}
+	
+	private void put(int keyId, long clock, byte type, long number, String string)
+	{
+		lock.lock();
+		try
+		{
+			int index = claim();
+			keyIds[index] = keyId;
+			clocks[index] = clock;
+			numbers[index] = number;
+			types[index] = type;
+			strings[index] = string;
+			commit();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Removes at most <code>maxValues</code> oldest values and adds them to the batch.
+	 * 
+	 * @return number of values transferred
+	 */
+	public int drainTo(ResultBatch batch, int maxValues)
+	{
+		lock.lock();
+		try
+		{
+			int n = Math.min(size(), maxValues);
+			for (int i = 0; i < n; i++)
+			{
+				int index = oldest();
+				batch.add(keyIds[index], clocks[index], types[index], numbers[index], strings[index]);
+				remove();
+			}
+			shrink(INITIAL_CAPACITY);
+			return n;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	protected int length()
+	{
+		return keyIds.length;
+	}
+	
+	@Override
+	protected void release(int index)
+	{
+		strings[index] = null;
+	}
+	
+	@Override
+	protected void resize(int length, long from, long to)
+	{
+		int[] oldKeyIds = keyIds;
+		long[] oldClocks = clocks;
+		long[] oldNumbers = numbers;
+		byte[] oldTypes = types;
+		String[] oldStrings = strings;
+		
+		allocate(length);
+		for (long sequence = from; sequence < to; sequence++)
+		{
+			int i = (int)(sequence % oldKeyIds.length);
+			int j = index(sequence);
+			keyIds[j] = oldKeyIds[i];
+			clocks[j] = oldClocks[i];
+			numbers[j] = oldNumbers[i];
+			types[j] = oldTypes[i];
+			strings[j] = oldStrings[i];
+		}
+	}
+	
+	private void allocate(int length)
+	{
+		keyIds = new int[length];
+		clocks = new long[length];
+		numbers = new long[length];
+		types = new byte[length];
+		strings = new String[length];
+	}
+}
@@ -0,0 +1,86 @@
+package com.github.zabbix.agent.data;
+
+import java.util.Arrays;
+
+/**
+ * Drops values equal to the last value sent for the key until the heartbeat interval passes,
+ * as <i>Discard unchanged with heartbeat</i> preprocessing of Zabbix server does.<br>
+ * The last value, the time it was sent and the servers it was sent to are kept in columns
+ * indexed by interned key id. A value is sent anyway if the servers of the key change, and
+ * after {@link #reset(int)}, e.g. when the key was not supported.<br>
+ * Thread safe.
+ *
+ * @author Victor Kadachigov
+ */
+public class ValueThrottle
+{
+	private static final int INITIAL_CAPACITY = 256;
+
+	private final long heartbeat;
+
+	private Object[] values = new Object[INITIAL_CAPACITY];
+	private long[] sent = new long[INITIAL_CAPACITY];
+	private int[] servers = new int[INITIAL_CAPACITY];
+
+	/**
+	 * @param heartbeat max time between two values sent for a key, ms
+	 */
+	public ValueThrottle(long heartbeat)
+	{
+		if (heartbeat < 1)
+			throw new IllegalArgumentException("heartbeat must be greater than 0");
+		this.heartbeat = heartbeat;
+	}
+
+	/**
+	 * @param servers servers the value goes to
+	 * @return true if the value must be sent, false if it is a repeat within the heartbeat interval
+	 */
+	public synchronized boolean offer(int keyId, long clock, Object value, int servers)
+	{
+		if (keyId >= values.length)
+			grow(keyId);
+
+		long elapsed = clock - sent[keyId];
+		if (value.equals(values[keyId]) && servers == this.servers[keyId] && elapsed >= 0 && elapsed < heartbeat)
+			return false;
+
+		values[keyId] = value;
+		sent[keyId] = clock;
+		this.servers[keyId] = servers;
+		return true;
+	}
+
+	/**
+	 * Forgets the last value of the key, so the next one is sent
+	 */
+	public synchronized void reset(int keyId)
+	{
+		if (keyId < values.length)
+			values[keyId] = null;
+	}
+
+	/**
+	 * Forgets the last values of all keys but the given ones
+	 */
+	public synchronized void retain(int[] keyIds)
+	{
+		boolean[] keep = new boolean[values.length];
+		for (int keyId : keyIds)
+			if (keyId < keep.length)
+				keep[keyId] = true;
+		for (int i = 0; i < values.length; i++)
+			if (!keep[i])
+				values[i] = null;
+	}
+
+	private void grow(int keyId)
+	{
+		int capacity = values.length;
+		while (capacity <= keyId)
+			capacity *= 2;
+		values = Arrays.copyOf(values, capacity);
+		sent = Arrays.copyOf(sent, capacity);
+		servers = Arrays.copyOf(servers, capacity);
+	}
+}
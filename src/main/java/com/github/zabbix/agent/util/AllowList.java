@@ -0,0 +1,151 @@
+package com.github.zabbix.agent.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Hosts allowed to connect, as listed in the <code>Server</code> parameter: IP addresses,
+ * IP ranges in CIDR notation and DNS names. {@link #isAllowed(InetAddress)} never blocks, it checks
+ * the addresses of the last {@link #resolve()}, which the owner calls once a {@link #RESOLVE_INTERVAL}
+ * in a thread of its own.
+ *
+ * @author Victor Kadachigov
+ */
+public class AllowList
+{
+	public static final long RESOLVE_INTERVAL = 60000L; // 1 min
+
+	private final List<Network> networks = new ArrayList<>();
+	private final List<String> hostNames = new ArrayList<>();
+	private final String text;
+
+	private volatile List<Network> resolved = Collections.emptyList();
+
+	/**
+	 * @throws IllegalArgumentException if an entry is not valid
+	 */
+	public AllowList(List<String> entries)
+	{
+		for (String entry : entries)
+		{
+			int slash = entry.indexOf('/');
+			String host = slash >= 0 ? entry.substring(0, slash) : entry;
+			if (!isLiteral(host))
+			{
+				if (slash >= 0)
+					throw new IllegalArgumentException("Invalid CIDR notation: " + entry);
+				hostNames.add(host);
+				continue;
+			}
+
+			try
+			{
+				byte[] address = InetAddress.getByName(host).getAddress();
+				int prefix = slash >= 0 ? Integer.parseInt(entry.substring(slash + 1)) : address.length * 8;
+				if (prefix < 0 || prefix > address.length * 8)
+					throw new IllegalArgumentException("Invalid network prefix: " + entry);
+				networks.add(new Network(address, prefix));
+			}
+			catch (UnknownHostException | NumberFormatException ex)
+			{
+				throw new IllegalArgumentException("Invalid address: " + entry);
+			}
+		}
+		text = entries.toString();
+	}
+
+	public boolean isAllowed(InetAddress address)
+	{
+		byte[] bytes = address.getAddress();
+		for (Network network : networks)
+			if (network.contains(bytes))
+				return true;
+
+		for (Network network : resolved)
+			if (network.contains(bytes))
+				return true;
+		return false;
+	}
+
+	public boolean hasHostNames()
+	{
+		return !hostNames.isEmpty();
+	}
+
+	/**
+	 * Resolves DNS names, blocks while DNS answers. Names not resolved are not allowed until the next call
+	 */
+	public void resolve()
+	{
+		List<Network> result = new ArrayList<>();
+		for (String hostName : hostNames)
+		{
+			try
+			{
+				for (InetAddress address : InetAddress.getAllByName(hostName))
+					result.add(new Network(address.getAddress(), address.getAddress().length * 8));
+			}
+			catch (UnknownHostException ex)
+			{
+				// not allowed until resolved
+			}
+		}
+		resolved = result;
+	}
+
+	@Override
+	public String toString()
+	{
+		return text;
+	}
+
+	private static boolean isLiteral(String host)
+	{
+		if (host.indexOf(':') >= 0)
+			return true; // IPv6
+		for (int i = 0; i < host.length(); i++)
+		{
+			char ch = host.charAt(i);
+			if (ch != '.' && !Character.isDigit(ch))
+				return false;
+		}
+		return true;
+	}
+
+	private static class Network
+	{
+		private final byte[] address;
+		private final int prefix;
+
+		private Network(byte[] address, int prefix)
+		{
+			this.address = address;
+			this.prefix = prefix;
+		}
+
+		private boolean contains(byte[] other)
+		{
+			if (other.length != address.length)
+				return false;
+			int bytes = prefix / 8;
+			for (int i = 0; i < bytes; i++)
+				if (other[i] != address[i])
+					return false;
+			int bits = prefix % 8;
+			if (bits == 0)
+				return true;
+			int mask = 0xFF << (8 - bits) & 0xFF;
+			return (other[bytes] & mask) == (address[bytes] & mask);
+		}
+
+		@Override
+		public String toString()
+		{
+			return Arrays.toString(address) + "/" + prefix;
+		}
+	}
+}
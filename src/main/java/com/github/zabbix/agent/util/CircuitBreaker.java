@@ -0,0 +1,74 @@
+package com.github.zabbix.agent.util;
+
+import lombok.Getter;
+
+/**
+ * Quarantines a check that keeps failing.<br>
+ * After {@link #FAILURE_THRESHOLD} consecutive failures the breaker opens for a backoff 
+ * period. The first attempt after the period either closes it or opens it again for 
+ * twice as long, up to the maximum backoff.<br>
+ * Not thread safe.
+ * 
+ * @author Victor Kadachigov
+ */
+public class CircuitBreaker
+{
+	public static final int FAILURE_THRESHOLD = 3;
+	
+	private final long initialBackoff;
+	private final long maxBackoff;
+	
+	@Getter
+	private int failures;
+	private long backoff;
+	private long openUntil;
+	
+	/**
+	 * @param initialBackoff first quarantine period, ms
+	 * @param maxBackoff maximum quarantine period, ms
+	 */
+	public CircuitBreaker(long initialBackoff, long maxBackoff)
+	{
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+	}
+	
+	/**
+	 * @param now current time, ms
+	 * @return <code>true</code> if check is in quarantine
+	 */
+	public boolean isOpen(long now)
+	{
+		return now < openUntil;
+	}
+	
+	public void onSuccess()
+	{
+		failures = 0;
+		backoff = 0;
+		openUntil = 0;
+	}
+	
+	/**
+	 * @param now current time, ms
+	 * @return <code>true</code> if the breaker has opened
+	 */
+	public boolean onFailure(long now)
+	{
+		failures++;
+		if (failures < FAILURE_THRESHOLD)
+			return false;
+		
+		backoff = (backoff == 0) ? initialBackoff : Math.min(backoff * 2, maxBackoff);
+		openUntil = now + backoff;
+		return true;
+	}
+	
+	/**
+	 * @return current quarantine period, ms
+	 */
+	public long getBackoff()
+	{
+		return backoff;
+	}
+}
@@ -1,13 +1,15 @@
 package com.github.zabbix.agent.util;
 
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Victor Kadachigov
  */
-public class DaemonThreadFactory implements ThreadFactory 
+public class DaemonThreadFactory implements ThreadFactory, ForkJoinPool.ForkJoinWorkerThreadFactory 
 {
     private String namePrefix;
     private AtomicInteger counter;
@@ -27,4 +29,13 @@ public class DaemonThreadFactory implements ThreadFactory
         t.setName(namePrefix + "-" + counter.incrementAndGet());
         return t;
     }
+
+    @Override
+    public ForkJoinWorkerThread newThread(ForkJoinPool pool)
+    {
+        ForkJoinWorkerThread t = new ForkJoinWorkerThread(pool) {};
+        t.setDaemon(true);
+        t.setName(namePrefix + "-" + counter.incrementAndGet());
+        return t;
+    }
 }
@@ -0,0 +1,122 @@
+package com.github.zabbix.agent.util;
+
+import lombok.Getter;
+
+/**
+ * Writes low-level discovery data row by row, without building a JSON tree first.<br>
+ * Rows over the limit are not written. If the data is not complete, because of the row limit
+ * or for another reason given to {@link #truncate(String)}, it gets <code>"truncated":true</code>
+ * next to <code>"data"</code>, so the cut is seen by the server instead of being silent.<br>
+ * Not thread safe.
+ *
+ * @author Victor Kadachigov
+ */
+public class DiscoveryWriter
+{
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final StringBuilder sb = new StringBuilder(1024).append("{\"data\":[");
+	private final int maxRows;
+	@Getter
+	private int rows;
+	private int macros;
+	/**
+	 * @return why the data is not complete, null if it is
+	 */
+	@Getter
+	private String truncateReason;
+
+	/**
+	 * @param maxRows max number of rows to write
+	 */
+	public DiscoveryWriter(int maxRows)
+	{
+		this.maxRows = maxRows;
+	}
+
+	/**
+	 * @return false if the row limit is reached, the row must not be written then
+	 */
+	public boolean beginRow()
+	{
+		if (rows >= maxRows)
+		{
+			truncate("more than " + maxRows + " rows");
+			return false;
+		}
+		if (rows > 0)
+			sb.append(',');
+		sb.append('{');
+		macros = 0;
+		return true;
+	}
+
+	public DiscoveryWriter macro(String name, String value)
+	{
+		if (macros++ > 0)
+			sb.append(',');
+		quote(name);
+		sb.append(':');
+		quote(value);
+		return this;
+	}
+
+	public void endRow()
+	{
+		sb.append('}');
+		rows++;
+	}
+
+	/**
+	 * Marks the data as not complete, the first reason is kept
+	 */
+	public void truncate(String reason)
+	{
+		if (truncateReason == null)
+			truncateReason = reason;
+	}
+
+	public boolean isTruncated()
+	{
+		return truncateReason != null;
+	}
+
+	/**
+	 * @return discovery data
+	 */
+	public String finish()
+	{
+		sb.append(']');
+		if (isTruncated())
+			sb.append(",\"truncated\":true");
+		sb.append('}');
+		return sb.toString();
+	}
+
+	private void quote(String s)
+	{
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++)
+		{
+			char ch = s.charAt(i);
+			if (ch == '"' || ch == '\\')
+				sb.append('\\').append(ch);
+			else if (ch < 0x20)
+			{
+				switch (ch)
+				{
+					case '\b': sb.append("\\b"); break;
+					case '\t': sb.append("\\t"); break;
+					case '\n': sb.append("\\n"); break;
+					case '\f': sb.append("\\f"); break;
+					case '\r': sb.append("\\r"); break;
+					default:
+						sb.append("\\u00").append(HEX[ch >> 4]).append(HEX[ch & 0xF]);
+				}
+			}
+			else
+				sb.append(ch);
+		}
+		sb.append('"');
+	}
+}
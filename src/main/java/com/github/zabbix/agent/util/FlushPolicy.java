@@ -0,0 +1,121 @@
+package com.github.zabbix.agent.util;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lombok.Getter;
+
+/**
+ * Adapts size of "agent data" batches and the send delay to the server.<br>
+ * A batch answered within the target round-trip time lets the next batches grow by a quarter,
+ * a slower one shrinks them in proportion to the delay, a failed one halves them. While the
+ * server fails, is slow or does not process all the values it got, the send delay is doubled,
+ * up to {@link #MAX_DELAY_FACTOR} times of the configured one, so a struggling server is not
+ * flooded with retries. The first healthy answer restores the configured delay. Values the server
+ * got but rejected ("failed" in the answer, e.g. of items not configured) say nothing about its
+ * health, they are only counted.<br>
+ * Not thread safe.
+ *
+ * @author Victor Kadachigov
+ */
+public class FlushPolicy
+{
+	public static final int MAX_DELAY_FACTOR = 4;
+	private static final int MIN_BATCH_SIZE = 100;
+	private static final Pattern INFO_PATTERN = Pattern.compile("processed:\\s*(\\d+);\\s*failed:\\s*(\\d+);\\s*total:\\s*(\\d+)");
+
+	private final int minBatchSize;
+	private final int maxBatchSize;
+	private final long sendDelay;
+	private final long targetRtt;
+
+	/**
+	 * @return max number of values in the next batch
+	 */
+	@Getter
+	private int batchSize;
+	private int delayFactor = 1;
+	/**
+	 * @return number of values the server got but did not process
+	 */
+	@Getter
+	private long rejected;
+	/**
+	 * @return number of values sent but not got by the server
+	 */
+	@Getter
+	private long lost;
+
+	/**
+	 * @param maxBatchSize max number of values in one batch
+	 * @param sendDelay configured send delay, ms
+	 * @param targetRtt acceptable round-trip time of a batch, ms
+	 */
+	public FlushPolicy(int maxBatchSize, long sendDelay, long targetRtt)
+	{
+		this.minBatchSize = Math.min(MIN_BATCH_SIZE, maxBatchSize);
+		this.maxBatchSize = maxBatchSize;
+		this.sendDelay = sendDelay;
+		this.targetRtt = targetRtt;
+		this.batchSize = maxBatchSize;
+	}
+
+	/**
+	 * @param count number of values sent
+	 * @param rtt round-trip time, ms
+	 * @param info "info" of the server response, e.g. <code>processed: 9; failed: 1; total: 10; seconds spent: 0.000133</code>
+	 */
+	public void onSuccess(int count, long rtt, String info)
+	{
+		int[] counts = parseInfo(info);
+		int total = counts != null ? counts[2] : count;
+		if (counts != null)
+			rejected += counts[1];
+		if (total < count)
+			lost += count - total;
+
+		if (rtt > targetRtt)
+		{
+			batchSize = (int)Math.max(minBatchSize, batchSize * targetRtt / rtt);
+			slowDown();
+		}
+		else if (total < count) // server dropped values
+			slowDown();
+		else
+		{
+			if (count >= batchSize)
+				batchSize = Math.min(maxBatchSize, batchSize + Math.max(1, batchSize / 4));
+			delayFactor = 1;
+		}
+	}
+
+	public void onFailure()
+	{
+		batchSize = Math.max(minBatchSize, batchSize / 2);
+		slowDown();
+	}
+
+	/**
+	 * @return time between sends, ms
+	 */
+	public long getSendDelay()
+	{
+		return sendDelay * delayFactor;
+	}
+
+	/**
+	 * @return processed, failed and total counts from "info" of the server response, null if there are none
+	 */
+	public static int[] parseInfo(String info)
+	{
+		Matcher m = info != null ? INFO_PATTERN.matcher(info) : null;
+		if (m == null || !m.find())
+			return null;
+		return new int[] { Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3)) };
+	}
+
+	private void slowDown()
+	{
+		delayFactor = Math.min(MAX_DELAY_FACTOR, delayFactor * 2);
+	}
+}
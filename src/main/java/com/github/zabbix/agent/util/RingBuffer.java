@@ -0,0 +1,178 @@
+package com.github.zabbix.agent.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded multi-producer/single-consumer ring buffer, subclasses keep elements in columns of their own.<br>
+ * Elements are numbered by sequence numbers, the slot of an element is its sequence number modulo
+ * the length of the columns. Columns grow on demand up to the capacity. When the buffer is full a new
+ * element overwrites the oldest one and the overwritten element is counted as dropped. {@link #size()}
+ * is O(1), the consumer may wait for elements with {@link #await(int, long, TimeUnit)}.<br>
+ * Subclasses change columns holding {@link #lock}: a producer writes to the slot returned by
+ * {@link #claim()} and calls {@link #commit()}, the consumer reads {@link #oldest()} and calls {@link #remove()}.
+ *
+ * @author Victor Kadachigov
+ */
+public abstract class RingBuffer
+{
+	protected final ReentrantLock lock = new ReentrantLock();
+	private final Condition filled = lock.newCondition();
+	private final int capacity;
+
+	/** Sequence number of the oldest element */
+	private volatile long head;
+	/** Sequence number of the next element to put */
+	private volatile long tail;
+	private volatile long dropped;
+	/** Size the consumer waits for, guarded by lock */
+	private long watermark = Long.MAX_VALUE;
+	private boolean wakeUp;
+
+	protected RingBuffer(int capacity)
+	{
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be greater than 0");
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return current length of the columns
+	 */
+	protected abstract int length();
+
+	/**
+	 * Replaces the columns with ones of the length moving elements from sequence <code>from</code> (inclusive)
+	 * to <code>to</code> (exclusive) to their new slots
+	 */
+	protected abstract void resize(int length, long from, long to);
+
+	/**
+	 * Drops references kept by the slot
+	 */
+	protected abstract void release(int index);
+
+	/**
+	 * Makes room for a new element overwriting the oldest one if the buffer is full
+	 *
+	 * @return slot of the new element
+	 */
+	protected final int claim()
+	{
+		long count = tail - head;
+		if (count == capacity)
+		{
+			// overwrite oldest
+			release(index(head));
+			head++;
+			dropped++;
+		}
+		else if (count == length())
+			resize(Math.min(capacity, length() * 2), head, tail);
+		return index(tail);
+	}
+
+	/**
+	 * Adds the element written to the slot returned by {@link #claim()}
+	 */
+	protected final void commit()
+	{
+		tail++;
+		if (tail - head >= watermark)
+			filled.signal();
+	}
+
+	/**
+	 * @return slot of the oldest element
+	 */
+	protected final int oldest()
+	{
+		return index(head);
+	}
+
+	/**
+	 * Removes the oldest element
+	 */
+	protected final void remove()
+	{
+		release(index(head));
+		head++;
+	}
+
+	/**
+	 * Gives memory back after an outage, the columns get the length if the buffer is empty and they are longer
+	 */
+	protected final void shrink(int length)
+	{
+		if (head == tail && length() > length)
+			resize(length, head, tail);
+	}
+
+	protected final int index(long sequence)
+	{
+		return (int)(sequence % length());
+	}
+
+	/**
+	 * Waits until the buffer holds at least <code>minSize</code> elements, the timeout elapses
+	 * or {@link #wakeUp()} is called.
+	 *
+	 * @return true if the buffer holds at least <code>minSize</code> elements
+	 */
+	public boolean await(int minSize, long timeout, TimeUnit unit) throws InterruptedException
+	{
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try
+		{
+			watermark = minSize;
+			while (tail - head < minSize && !wakeUp && nanos > 0)
+				nanos = filled.awaitNanos(nanos);
+			return tail - head >= minSize;
+		}
+		finally
+		{
+			watermark = Long.MAX_VALUE;
+			wakeUp = false;
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Makes the thread waiting in {@link #await(int, long, TimeUnit)} return
+	 */
+	public void wakeUp()
+	{
+		lock.lock();
+		try
+		{
+			wakeUp = true;
+			filled.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	public int size()
+	{
+		long h = head;
+		long t = tail;
+		return (int)Math.max(0, t - h);
+	}
+
+	public int capacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * @return number of elements overwritten because the buffer was full
+	 */
+	public long getDropped()
+	{
+		return dropped;
+	}
+}
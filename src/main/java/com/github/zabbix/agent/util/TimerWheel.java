@@ -0,0 +1,226 @@
+package com.github.zabbix.agent.util;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import lombok.extern.java.Log;
+
+/**
+ * Hashed timer wheel firing many timers with one thread.<br>
+ * A timer is an int id of a {@link Target} due at a time. It is put to the slot of its tick,
+ * timers of later rounds wait in the slot until their tick comes, so scheduling and firing
+ * are O(1) whatever the number of timers. All timers of a target expired in one tick are given
+ * to it with one call, so it can handle them together.<br>
+ * Ticks follow {@link System#nanoTime()}, so a change of the wall clock neither fires timers early
+ * nor holds them. Times of the API are wall clock times, they are converted when a timer is scheduled
+ * or fired.<br>
+ * Targets are called by the wheel thread and must not block. If the thread falls behind,
+ * the ticks it missed are handled at once and counted by {@link #getLateTicks()}.<br>
+ * Thread safe.
+ *
+ * @author Victor Kadachigov
+ */
+@Log(topic="com.github.zabbix.agent")
+public class TimerWheel implements Runnable
+{
+	/**
+	 * Handles expired timers
+	 */
+	public interface Target
+	{
+		/**
+		 * @param ids ids of expired timers, the first <code>count</code> are valid
+		 * @param time wall clock time the timers were due at, ms
+		 */
+		void expired(int[] ids, int count, long time);
+	}
+
+	private final long tickDuration;
+	private final Timer[] slots;
+	private final int mask;
+	/** {@link #clock()} of tick 0 */
+	private final long startTime;
+	private final AtomicLong lateTicks = new AtomicLong();
+	/** Last handled tick, guarded by this */
+	private long tick;
+	private Thread thread;
+	private volatile boolean stopped;
+
+	/**
+	 * @param tickDuration ms
+	 * @param wheelSize number of slots, rounded up to a power of 2
+	 */
+	public TimerWheel(long tickDuration, int wheelSize)
+	{
+		this.tickDuration = tickDuration;
+		int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		this.slots = new Timer[size];
+		this.mask = size - 1;
+		this.startTime = clock();
+	}
+
+	public synchronized void start(String name)
+	{
+		if (thread != null)
+			return;
+		thread = new DaemonThreadFactory(name).newThread(this);
+		thread.start();
+	}
+
+	public synchronized void stop()
+	{
+		stopped = true;
+		if (thread != null)
+			thread.interrupt();
+		Arrays.fill(slots, null);
+	}
+
+	/**
+	 * @param time wall clock time, ms. A time already passed fires on the next tick
+	 */
+	public synchronized void schedule(Target target, int id, long time)
+	{
+		if (stopped)
+			return;
+		long delay = time - System.currentTimeMillis();
+		long due = (clock() + delay - startTime + tickDuration - 1) / tickDuration;
+		if (due <= tick)
+			due = tick + 1;
+		int slot = (int)(due & mask);
+		slots[slot] = new Timer(target, id, due, slots[slot]);
+	}
+
+	/**
+	 * @return number of ticks handled later than they were due
+	 */
+	public long getLateTicks()
+	{
+		return lateTicks.get();
+	}
+
+	@Override
+	public void run()
+	{
+		while (!stopped)
+		{
+			long next;
+			synchronized (this)
+			{
+				next = startTime + (tick + 1) * tickDuration;
+			}
+			long sleep = next - clock();
+			if (sleep > 0)
+			{
+				try
+				{
+					Thread.sleep(sleep);
+				}
+				catch (InterruptedException ex)
+				{
+					break;
+				}
+			}
+			try
+			{
+				advance(clock());
+			}
+			catch (RuntimeException ex)
+			{
+				log.log(Level.SEVERE, ex.getMessage(), ex);
+			}
+		}
+	}
+
+	/**
+	 * @return monotonic time, ms
+	 */
+	static long clock()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+
+	/**
+	 * Fires timers of all ticks up to the time
+	 * 
+	 * @param now {@link #clock()}
+	 */
+	void advance(long now)
+	{
+		long wallClockOffset = System.currentTimeMillis() - clock();
+		long target = (now - startTime) / tickDuration;
+		long handled;
+		synchronized (this)
+		{
+			handled = tick;
+		}
+		if (target - handled > 1)
+			lateTicks.addAndGet(target - handled - 1);
+
+		Map<Target, int[]> expired = new LinkedHashMap<>();
+		Map<Target, Integer> counts = new LinkedHashMap<>();
+		while (!stopped)
+		{
+			long current;
+			synchronized (this)
+			{
+				if (tick >= target)
+					break;
+				current = ++tick;
+				int slot = (int)(current & mask);
+				Timer previous = null;
+				for (Timer timer = slots[slot]; timer != null; timer = timer.next)
+				{
+					if (timer.due > current)
+					{
+						previous = timer;
+						continue;
+					}
+					if (previous == null)
+						slots[slot] = timer.next;
+					else
+						previous.next = timer.next;
+
+					int[] ids = expired.get(timer.target);
+					Integer count = counts.get(timer.target);
+					if (ids == null)
+					{
+						ids = new int[16];
+						count = 0;
+					}
+					else if (count == ids.length)
+						ids = Arrays.copyOf(ids, count * 2);
+					ids[count] = timer.id;
+					expired.put(timer.target, ids);
+					counts.put(timer.target, count + 1);
+				}
+			}
+
+			// targets may schedule again, so they are called out of the lock
+			for (Map.Entry<Target, int[]> entry : expired.entrySet())
+				entry.getKey().expired(entry.getValue(), counts.get(entry.getKey()), startTime + current * tickDuration + wallClockOffset);
+			expired.clear();
+			counts.clear();
+		}
+	}
+
+	private static class Timer
+	{
+		private final Target target;
+		private final int id;
+		/** Tick the timer fires at */
+		private final long due;
+		private Timer next;
+
+		private Timer(Target target, int id, long due, Timer next)
+		{
+			this.target = target;
+			this.id = id;
+			this.due = due;
+			this.next = next;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package com.github.zabbix.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import org.assertj.core.api.Assertions;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.github.zabbix.agent.data.ResultBatch;
+import com.github.zabbix.agent.data.ResultBuffer;
+import com.github.zabbix.agent.data.ZabbixKey;
+
+/**
+ * @author Victor Kadachigov
+ */
+public class AgentDataEncoderTest
+{
+	@Test
+	public void testEncode() throws Exception
+	{
+		String text = "quote \" backslash \\ tab \t ctrl \u0001 cyrillic ж euro € emoji 😀";
+		ResultBuffer buffer = new ResultBuffer(100);
+		int key1 = buffer.getKeys().intern(new ZabbixKey("jmx[\"java.lang:type=Memory\",HeapMemoryUsage.used]"));
+		int key2 = buffer.getKeys().intern(new ZabbixKey("test"));
+		buffer.offer(key1, 1500L, Long.MIN_VALUE);
+		buffer.offer(key2, 2000L, -25);
+		buffer.offer(key2, 3000L, 0.5d);
+		buffer.offer(key2, 4000L, false);
+		buffer.offer(key2, 5000L, text);
+		buffer.offerNotSupported(key1, 6000L, "error");
+		ResultBatch batch = new ResultBatch(buffer.getKeys());
+		buffer.drainTo(batch, 100);
+		
+		AgentDataEncoder encoder = new AgentDataEncoder();
+		JSONObject json = decode(encoder.encode(batch, "host \"1\"", 7000L));
+		
+		Assertions.assertThat(json.getString("request")).isEqualTo("agent data");
+		Assertions.assertThat(json.getLong("clock")).isEqualTo(7);
+		JSONArray data = json.getJSONArray("data");
+		Assertions.assertThat(data.length()).isEqualTo(batch.size());
+		for (int i = 0; i < batch.size(); i++)
+		{
+			JSONObject item = data.getJSONObject(i);
+			Assertions.assertThat(item.getString("host")).isEqualTo("host \"1\"");
+			Assertions.assertThat(item.getString("key")).isEqualTo(batch.getKey(i).getKey());
+			Assertions.assertThat(item.getString("value")).isEqualTo(batch.getValue(i));
+			Assertions.assertThat(item.getLong("clock")).isEqualTo(batch.getClock(i) / 1000);
+			Assertions.assertThat(item.optInt("state")).isEqualTo(batch.getState(i));
+		}
+		Assertions.assertThat(data.getJSONObject(4).getString("value")).isEqualTo(text);
+		Assertions.assertThat(data.getJSONObject(5).getInt("state")).isEqualTo(ResultBatch.STATE_NOTSUPPORTED);
+	}
+
+	@Test
+	public void testGrow() throws Exception
+	{
+		ResultBuffer buffer = new ResultBuffer(100000);
+		int keyId = buffer.getKeys().intern(new ZabbixKey("test"));
+		for (int i = 0; i < 100000; i++)
+			buffer.offer(keyId, i * 1000L, "value " + i);
+		ResultBatch batch = new ResultBatch(buffer.getKeys());
+		buffer.drainTo(batch, 100000);
+		
+		JSONArray data = decode(new AgentDataEncoder().encode(batch, "host", 0)).getJSONArray("data");
+		Assertions.assertThat(data.length()).isEqualTo(100000);
+		Assertions.assertThat(data.getJSONObject(99999).getString("value")).isEqualTo("value 99999");
+	}
+	
+	@Test
+	public void testCompression() throws Exception
+	{
+		ResultBuffer buffer = new ResultBuffer(1000);
+		int keyId = buffer.getKeys().intern(new ZabbixKey("test"));
+		buffer.offer(keyId, 0, 1);
+		ResultBatch batch = new ResultBatch(buffer.getKeys());
+		buffer.drainTo(batch, 1000);
+		
+		AgentDataEncoder encoder = new AgentDataEncoder();
+		ByteBuffer[] message = encoder.encode(batch, "host", 0);
+		Assertions.assertThat(message[0].get(4)).isEqualTo((byte)Protocol.FLAG_PROTOCOL);
+		
+		for (int i = 0; i < 100; i++)
+			buffer.offer(keyId, i * 1000L, i);
+		buffer.drainTo(batch, 1000);
+		message = encoder.encode(batch, "host", 0);
+		ByteBuffer header = message[0].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		Assertions.assertThat(header.get(4)).isEqualTo((byte)(Protocol.FLAG_PROTOCOL | Protocol.FLAG_COMPRESSED));
+		Assertions.assertThat(header.getInt(5)).isEqualTo(message[1].remaining());
+		Assertions.assertThat(header.getInt(9)).isEqualTo(encoder.getText().getBytes(StandardCharsets.UTF_8).length);
+		Assertions.assertThat(message[1].remaining()).isLessThan(header.getInt(9) / 5);
+		Assertions.assertThat(decode(message).getJSONArray("data").length()).isEqualTo(101);
+	}
+	
+	@Test
+	public void testCompressionDisabled() throws Exception
+	{
+		ResultBuffer buffer = new ResultBuffer(1000);
+		int keyId = buffer.getKeys().intern(new ZabbixKey("test"));
+		for (int i = 0; i < 100; i++)
+			buffer.offer(keyId, i * 1000L, i);
+		ResultBatch batch = new ResultBatch(buffer.getKeys());
+		buffer.drainTo(batch, 1000);
+		
+		AgentDataEncoder encoder = new AgentDataEncoder(false);
+		ByteBuffer[] message = encoder.encode(batch, "host", 0);
+		ByteBuffer header = message[0].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		Assertions.assertThat(header.get(4)).isEqualTo((byte)Protocol.FLAG_PROTOCOL);
+		Assertions.assertThat(header.getInt(5)).isEqualTo(message[1].remaining());
+		Assertions.assertThat(header.getInt(9)).isEqualTo(0);
+		Assertions.assertThat(decode(message).getJSONArray("data").length()).isEqualTo(100);
+	}
+	
+	private JSONObject decode(ByteBuffer[] message) throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (ByteBuffer buffer : message)
+		{
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.duplicate().get(bytes);
+			out.write(bytes);
+		}
+		return new JSONObject(new Protocol(null, null).read(new ByteArrayInputStream(out.toByteArray())));
+	}
+}
@@ -0,0 +1,71 @@
+package com.github.zabbix.agent;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * @author Victor Kadachigov
+ */
+public class AggregationTest
+{
+	@Test
+	public void testIntegral() throws Exception
+	{
+		Assertions.assertThat(reduce("sum", 1, 2, 3, 4)).isEqualTo(10L);
+		Assertions.assertThat(reduce("min", 3, 1, 4)).isEqualTo(1L);
+		Assertions.assertThat(reduce("max", 3, 1, 4)).isEqualTo(4L);
+		Assertions.assertThat(reduce("avg", 1, 2)).isEqualTo(1.5);
+		Assertions.assertThat(reduce("count", 5, 6, 7)).isEqualTo(3);
+		Assertions.assertThat(reduce("count")).isEqualTo(0);
+		Assertions.assertThat(reduce("sum")).isEqualTo(0L);
+		Assertions.assertThat(reduce("max")).isNull();
+	}
+	
+	@Test
+	public void testMixed() throws Exception
+	{
+		Assertions.assertThat(reduce("sum", 1, 2.5)).isEqualTo(3.5);
+		Assertions.assertThat(reduce("max", 1, 0.5)).isEqualTo(1.0);
+		// overflow goes to floating point
+		Assertions.assertThat(reduce("sum", Long.MAX_VALUE, 1L)).isInstanceOf(Double.class);
+	}
+	
+	@Test
+	public void testPercentile() throws Exception
+	{
+		Number[] values = new Number[100];
+		for (int i = 0; i < values.length; i++)
+			values[i] = 100 - i;
+		Assertions.assertThat(reduce("p95", values)).isEqualTo(95L);
+		Assertions.assertThat(reduce("p100", values)).isEqualTo(100L);
+		Assertions.assertThat(reduce("p0", values)).isEqualTo(1L);
+		Assertions.assertThat(reduce("p50", 1.5, 2.5, 3.5)).isEqualTo(2.5);
+		Assertions.assertThat(reduce("P95", values)).isEqualTo(95L);
+	}
+	
+	@Test(expected=ZabbixException.class)
+	public void testBadFunction() throws Exception
+	{
+		Aggregation.parse("median");
+	}
+	
+	@Test(expected=ZabbixException.class)
+	public void testBadPercentile() throws Exception
+	{
+		Aggregation.parse("p101");
+	}
+	
+	@Test(expected=ZabbixException.class)
+	public void testNaNPercentile() throws Exception
+	{
+		Aggregation.parse("pNaN");
+	}
+	
+	private Number reduce(String function, Number... values) throws ZabbixException
+	{
+		Aggregation.Accumulator accumulator = Aggregation.parse(function).newAccumulator();
+		for (Number value : values)
+			accumulator.add(value);
+		return accumulator.getResult();
+	}
+}
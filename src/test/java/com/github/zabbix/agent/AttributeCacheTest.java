@@ -0,0 +1,186 @@
+package com.github.zabbix.agent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectName;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * @author Victor Kadachigov
+ */
+public class AttributeCacheTest
+{
+	private static final String[] NAMES = { "A", "B" };
+	
+	@Test
+	public void testTtl() throws Exception
+	{
+		ObjectName name = new ObjectName("test:type=Test");
+		CountingLoader loader = new CountingLoader(null);
+		AttributeCache cache = new AttributeCache(200, 100, 5000);
+		
+		Assertions.assertThat(cache.get(name, NAMES, null, loader)).containsExactly("A1", "B1");
+		Assertions.assertThat(cache.get(name, NAMES, null, loader)).containsExactly("A1", "B1");
+		Assertions.assertThat(cache.get(name, NAMES, new boolean[] { false, true }, loader)).containsExactly(null, "B1");
+		Assertions.assertThat(loader.calls.get()).isEqualTo(1);
+		Assertions.assertThat(cache.getMisses()).isEqualTo(2);
+		Assertions.assertThat(cache.getHits()).isEqualTo(3);
+		
+		Thread.sleep(300);
+		Assertions.assertThat(cache.get(name, NAMES, null, loader)).containsExactly("A2", "B2");
+		Assertions.assertThat(loader.calls.get()).isEqualTo(2);
+	}
+	
+	@Test
+	public void testLoadTimes() throws Exception
+	{
+		ObjectName name = new ObjectName("test:type=Test");
+		CountingLoader loader = new CountingLoader(null);
+		AttributeCache cache = new AttributeCache(60000, 100, 5000);
+		
+		long start = System.nanoTime();
+		long[] first = new long[2];
+		cache.get(name, NAMES, null, loader, first);
+		Assertions.assertThat(first[0]).isGreaterThanOrEqualTo(start).isEqualTo(first[1]);
+		
+		Thread.sleep(20);
+		long[] second = new long[2];
+		Assertions.assertThat(cache.get(name, NAMES, null, loader, second)).containsExactly("A1", "B1");
+		// a cached value keeps the time of its read
+		Assertions.assertThat(second).containsExactly(first[0], first[1]);
+	}
+	
+	@Test
+	public void testSingleFlight() throws Exception
+	{
+		final ObjectName name = new ObjectName("test:type=Test");
+		CountDownLatch release = new CountDownLatch(1);
+		final CountingLoader loader = new CountingLoader(release);
+		final AttributeCache cache = new AttributeCache(0, 100, 5000);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try
+		{
+			Future<?>[] futures = new Future<?>[4];
+			for (int i = 0; i < futures.length; i++)
+			{
+				futures[i] = executor.submit(new Callable<Object[]>()
+				{
+					@Override
+					public Object[] call() throws Exception
+					{
+						return cache.get(name, NAMES, null, loader);
+					}
+				});
+				// the first caller holds both attributes
+				while (loader.calls.get() == 0)
+					Thread.sleep(10);
+			}
+			while (cache.getWaits() < 2 * (futures.length - 1))
+				Thread.sleep(10);
+			release.countDown();
+			for (Future<?> future : futures)
+				Assertions.assertThat((Object[])future.get(5, TimeUnit.SECONDS)).containsExactly("A1", "B1");
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		Assertions.assertThat(loader.calls.get()).isEqualTo(1);
+		
+		// no TTL, the next read goes to the MBean again
+		Assertions.assertThat(cache.get(name, NAMES, null, loader)).containsExactly("A2", "B2");
+	}
+	
+	@Test
+	public void testWaitTimeout() throws Exception
+	{
+		final ObjectName name = new ObjectName("test:type=Test");
+		CountDownLatch release = new CountDownLatch(1);
+		final CountingLoader loader = new CountingLoader(release);
+		final AttributeCache cache = new AttributeCache(0, 100, 100);
+		
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			// hangs
+			Future<Object[]> first = executor.submit(new Callable<Object[]>()
+			{
+				@Override
+				public Object[] call() throws Exception
+				{
+					return cache.get(name, NAMES, null, loader);
+				}
+			});
+			while (loader.calls.get() == 0)
+				Thread.sleep(10);
+			
+			long start = System.nanoTime();
+			Assertions.assertThat(cache.get(name, NAMES, null, loader)).containsExactly("timeout A", "timeout B");
+			Assertions.assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(1));
+			Assertions.assertThat(cache.getTimeouts()).isEqualTo(2);
+			
+			release.countDown();
+			Assertions.assertThat(first.get(5, TimeUnit.SECONDS)).containsExactly("A1", "B1");
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void testEviction() throws Exception
+	{
+		AttributeCache cache = new AttributeCache(60000, 100, 5000);
+		CountingLoader loader = new CountingLoader(null);
+		for (int i = 0; i < 200; i++)
+			cache.get(new ObjectName("test:type=Test,n=" + i), NAMES, null, loader);
+		Assertions.assertThat(cache.size()).isLessThanOrEqualTo(100);
+		Assertions.assertThat(cache.getEvictions()).isGreaterThan(0);
+	}
+	
+	private static class CountingLoader implements AttributeCache.Loader
+	{
+		private final AtomicInteger calls = new AtomicInteger();
+		private final CountDownLatch release;
+		
+		CountingLoader(CountDownLatch release)
+		{
+			this.release = release;
+		}
+		
+		@Override
+		public Object[] load(ObjectName objectName, String[] names)
+		{
+			int call = calls.incrementAndGet();
+			try
+			{
+				if (release != null)
+					release.await();
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+			Object[] result = new Object[names.length];
+			for (int i = 0; i < names.length; i++)
+				result[i] = names[i] + call;
+			return result;
+		}
+		
+		@Override
+		public Object timedOut(ObjectName objectName, String name)
+		{
+			return "timeout " + name;
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package com.github.zabbix.agent;
+
+import javax.management.ObjectName;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.github.zabbix.agent.data.CheckItem;
+import com.github.zabbix.agent.data.ZabbixKey;
+
+/**
+ * @author Victor Kadachigov
+ */
+public class CheckPlanTest
+{
+	@Test
+	public void testSplitAttributePath() throws Exception
+	{
+		Assertions.assertThat(CheckPlan.splitAttributePath("Count"))
+			.containsExactly("Count");
+		Assertions.assertThat(CheckPlan.splitAttributePath("HeapMemoryUsage.used"))
+			.containsExactly("HeapMemoryUsage", "used");
+		Assertions.assertThat(CheckPlan.splitAttributePath("a\\.b.c\\\\d.e"))
+			.containsExactly("a.b", "c\\d", "e");
+		Assertions.assertThat(CheckPlan.splitAttributePath("Usage."))
+			.containsExactly("Usage");
+	}
+
+	@Test
+	public void testCompileJmx() throws Exception
+	{
+		CheckPlan plan = compile("jmx[\"java.lang:type=Memory\",HeapMemoryUsage.used]");
+
+		Assertions.assertThat(plan.getType()).isEqualTo(CheckPlan.Type.JMX);
+		Assertions.assertThat(plan.getObjectName().getCanonicalName()).isEqualTo("java.lang:type=Memory");
+		Assertions.assertThat(plan.getAttributeName()).isEqualTo("HeapMemoryUsage");
+		Assertions.assertThat(plan.getFieldPath()).containsExactly("used");
+	}
+
+	@Test
+	public void testCompileCounter() throws Exception
+	{
+		Assertions.assertThat(compile("jmx[\"java.lang:type=Runtime\",Uptime]").getCounter()).isNull();
+		
+		CheckPlan plan = compile("jmx.rate[\"java.lang:type=GarbageCollector,name=G1 Young Generation\",CollectionCount]");
+		Assertions.assertThat(plan.getType()).isEqualTo(CheckPlan.Type.JMX);
+		Assertions.assertThat(plan.getCounter()).isEqualTo(CheckPlan.Counter.RATE);
+		Assertions.assertThat(plan.getAttributeName()).isEqualTo("CollectionCount");
+		
+		Assertions.assertThat(compile("jmx.delta[\"java.lang:type=Threading\",TotalStartedThreadCount]").getCounter())
+			.isEqualTo(CheckPlan.Counter.DELTA);
+	}
+
+	@Test
+	public void testCompileSample() throws Exception
+	{
+		CheckPlan plan = compile("jmx.sample[\"java.lang:type=Threading\",ThreadCount,p99,50]");
+		Assertions.assertThat(plan.getType()).isEqualTo(CheckPlan.Type.SAMPLE);
+		Assertions.assertThat(plan.getAggregation().getFunction()).isEqualTo(Aggregation.Function.PERCENTILE);
+		Assertions.assertThat(plan.getSampleInterval()).isEqualTo(50);
+		
+		plan = compile("jmx.sample[\"java.lang:type=Memory\",HeapMemoryUsage.used]");
+		Assertions.assertThat(plan.getAggregation()).isNull();
+		Assertions.assertThat(plan.getSampleInterval()).isEqualTo(100);
+		Assertions.assertThat(plan.getFieldPath()).containsExactly("used");
+	}
+
+	@Test(expected=ZabbixException.class)
+	public void testBadSampleInterval() throws Exception
+	{
+		compile("jmx.sample[\"java.lang:type=Threading\",ThreadCount,max,1]");
+	}
+
+	@Test
+	public void testCompileDiscovery() throws Exception
+	{
+		CheckPlan plan = compile("jmx.discovery[beans, \"java.lang:type=MemoryPool,name=*\"]");
+
+		Assertions.assertThat(plan.getType()).isEqualTo(CheckPlan.Type.DISCOVERY);
+		Assertions.assertThat(plan.getDiscoveryMode()).isEqualTo(CheckPlan.DiscoveryMode.BEANS);
+		Assertions.assertThat(plan.getObjectName().isPattern()).isTrue();
+
+		plan = compile("jmx.discovery");
+		Assertions.assertThat(plan.getDiscoveryMode()).isEqualTo(CheckPlan.DiscoveryMode.ATTRIBUTES);
+		Assertions.assertThat(plan.getObjectName()).isNull();
+	}
+
+	@Test
+	public void testCompileDiscoveryFilter() throws Exception
+	{
+		CheckPlan plan = compile("jmx.discovery[beans, \"kafka.cluster:type=Partition,*\", \"topic=^orders\", \"partition=^1\\d\", 100]");
+
+		Assertions.assertThat(plan.getMaxRows()).isEqualTo(100);
+		DiscoveryFilter filter = plan.getDiscoveryFilter();
+		Assertions.assertThat(filter.accept(new ObjectName("kafka.cluster:type=Partition,topic=orders.eu,partition=2"))).isTrue();
+		Assertions.assertThat(filter.accept(new ObjectName("kafka.cluster:type=Partition,topic=orders.eu,partition=12"))).isFalse();
+		Assertions.assertThat(filter.accept(new ObjectName("kafka.cluster:type=Partition,topic=payments,partition=2"))).isFalse();
+		Assertions.assertThat(filter.accept(new ObjectName("kafka.cluster:type=Partition,partition=2"))).isFalse();
+
+		filter = compile("jmx.discovery[beans, \"kafka.cluster:*\",, \"topic=^__\"]").getDiscoveryFilter();
+		Assertions.assertThat(filter.accept(new ObjectName("kafka.cluster:type=Partition,topic=__consumer_offsets"))).isFalse();
+		Assertions.assertThat(filter.accept(new ObjectName("kafka.cluster:type=Partition,topic=orders"))).isTrue();
+		Assertions.assertThat(filter.accept(new ObjectName("kafka.cluster:type=Log"))).isTrue();
+		
+		Assertions.assertThat(compile("jmx.discovery[beans, \"kafka.cluster:*\"]").getDiscoveryFilter().isAll()).isTrue();
+	}
+
+	@Test
+	public void testCompileBean() throws Exception
+	{
+		CheckPlan plan = compile("jmx.bean[\"java.lang:type=Memory\"]");
+		Assertions.assertThat(plan.getType()).isEqualTo(CheckPlan.Type.BEAN);
+		Assertions.assertThat(plan.getObjectName()).isEqualTo(new ObjectName("java.lang:type=Memory"));
+		Assertions.assertThat(plan.getAttributeNames()).isNull();
+		
+		plan = compile("jmx.bean[\"java.lang:type=Memory\",HeapMemoryUsage,Verbose]");
+		Assertions.assertThat(plan.getAttributeNames()).containsExactly("HeapMemoryUsage", "Verbose");
+	}
+
+	@Test(expected=ZabbixException.class)
+	public void testBeanPattern() throws Exception
+	{
+		compile("jmx.bean[\"java.lang:type=MemoryPool,*\"]");
+	}
+
+	@Test(expected=ZabbixException.class)
+	public void testBadDiscoveryRegex() throws Exception
+	{
+		compile("jmx.discovery[beans, \"kafka.cluster:*\", \"topic=(\"]");
+	}
+
+	@Test(expected=ZabbixException.class)
+	public void testUnsupportedKey() throws Exception
+	{
+		compile("system.cpu.load");
+	}
+
+	@Test(expected=ZabbixException.class)
+	public void testBadObjectName() throws Exception
+	{
+		compile("jmx[\"java.lang\",Count]");
+	}
+
+	private CheckPlan compile(String key) throws ZabbixException
+	{
+		return CheckPlan.compile(CheckItem.builder().key(new ZabbixKey(key)).build());
+	}
+}
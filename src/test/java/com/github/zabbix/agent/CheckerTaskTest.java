@@ -1,19 +1,27 @@
 package com.github.zabbix.agent;
 
-import java.util.HashSet;
-import java.util.Queue;
-import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.assertj.core.api.Assertions;
+import org.json.JSONObject;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.github.zabbix.agent.data.CheckItem;
-import com.github.zabbix.agent.data.CheckResult;
+import com.github.zabbix.agent.data.KeyRegistry;
+import com.github.zabbix.agent.data.ResultBatch;
+import com.github.zabbix.agent.data.ResultBuffer;
 import com.github.zabbix.agent.data.ZabbixKey;
+import com.github.zabbix.agent.util.CircuitBreaker;
 
 import lombok.extern.java.Log;
 
@@ -38,8 +46,8 @@ public class CheckerTaskTest
 	@Test
 	public void testJmx() throws Exception
 	{
-		Queue<CheckResult> resultsQueue = new ArrayBlockingQueue<>(1000);
-		Set<CheckItem> checkItems = new HashSet<>();
+		ResultBuffer resultBuffer = new ResultBuffer(1000);
+		List<CheckPlan> checkPlans = new ArrayList<>();
 
 		String keys[] = new String[] 
 				{
@@ -101,21 +109,231 @@ public class CheckerTaskTest
 				};
 
 		for (String key : keys)
-			checkItems.add(
-					CheckItem.builder().key(new ZabbixKey(key)).build()
+			checkPlans.add(
+					CheckPlan.compile(CheckItem.builder().key(new ZabbixKey(key)).build())
 			);
 		
-		CheckerTask checkerTask = new CheckerTask(checkItems, null, resultsQueue, 0);
+		CheckerTask checkerTask = new CheckerTask(checkPlans, null, resultBuffer, 0);
 		checkerTask.run();
 
 		//FIXME: do checks
 	}
 	
+	@Test
+	public void testJmxBatch() throws Exception
+	{
+		ResultBuffer resultBuffer = new ResultBuffer(1000);
+		List<CheckPlan> checkPlans = new ArrayList<>();
+
+		String keys[] = new String[] 
+				{
+					"jmx[\"java.lang:type=Memory\",HeapMemoryUsage.committed]", 
+					"jmx[\"java.lang:type=Memory\",HeapMemoryUsage.used]", 
+					"jmx[\"java.lang:type=Memory\",NonHeapMemoryUsage.used]", 
+					"jmx[\"java.lang:type=Memory\",Unknown]", 
+					"jmx[\"java.lang:type=Runtime\",VmName]", 
+				};
+
+		for (String key : keys)
+			checkPlans.add(
+					CheckPlan.compile(CheckItem.builder().key(new ZabbixKey(key)).build())
+			);
+		
+		List<AttributeBatch> batches = AttributeBatch.group(checkPlans);
+		Assertions.assertThat(batches).hasSize(2);
+		Assertions.assertThat(batches.get(0).getAttributeNames())
+			.containsExactly("HeapMemoryUsage", "NonHeapMemoryUsage", "Unknown");
+		
+		CheckerTask checkerTask = new CheckerTask(checkPlans, null, resultBuffer, 0);
+		checkerTask.run();
+
+		ResultBatch results = drain(resultBuffer);
+		Assertions.assertThat(results.size()).isEqualTo(5);
+		Assertions.assertThat(results.getKey(0).getKey()).isEqualTo(keys[0]);
+		for (int i = 0; i < results.size(); i++)
+		{
+			int state = results.getKey(i).getKey().equals(keys[3]) ? ResultBatch.STATE_NOTSUPPORTED : ResultBatch.STATE_NORMAL;
+			Assertions.assertThat(results.getState(i)).isEqualTo(state);
+		}
+		
+		// unknown attribute goes to quarantine
+		for (int i = 1; i < CircuitBreaker.FAILURE_THRESHOLD; i++)
+			checkerTask.run();
+		drain(resultBuffer);
+		checkerTask.run();
+		Assertions.assertThat(resultBuffer.size()).isEqualTo(4);
+	}
+	
+	@Test
+	public void testJmxDeadline() throws Exception
+	{
+		ObjectName objectName = new ObjectName("com.github.zabbix.agent:type=Slow");
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new Slow(), objectName);
+		try
+		{
+			ResultBuffer resultBuffer = new ResultBuffer(1000);
+			List<CheckPlan> checkPlans = new ArrayList<>();
+			checkPlans.add(CheckPlan.compile(CheckItem.builder().key(new ZabbixKey("jmx[\"com.github.zabbix.agent:type=Slow\",Value]")).build()));
+			checkPlans.add(CheckPlan.compile(CheckItem.builder().key(new ZabbixKey("jmx[\"java.lang:type=Runtime\",VmName]")).build()));
+			
+			CollectorPool pool = new CollectorPool(2);
+			CheckerTask checkerTask = new CheckerTask(checkPlans, null, resultBuffer, 1, pool);
+			checkerTask.run();
+			// the hung read still holds its bean, the other one is read again
+			checkerTask.run();
+			Assertions.assertThat(checkerTask.getMissedChecks()).isEqualTo(1);
+			pool.shutdown();
+			
+			ResultBatch results = drain(resultBuffer);
+			Assertions.assertThat(results.size()).isEqualTo(3);
+			for (int i = 0; i < results.size(); i++)
+			{
+				if (results.getKey(i).getKey().contains("Slow"))
+					Assertions.assertThat(results.getState(i)).isEqualTo(ResultBatch.STATE_NOTSUPPORTED);
+				else
+					Assertions.assertThat(results.getState(i)).isEqualTo(ResultBatch.STATE_NORMAL);
+			}
+		}
+		finally
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		}
+	}
+	
+	@Test
+	public void testJmxDeadlineUpdate() throws Exception
+	{
+		ObjectName objectName = new ObjectName("com.github.zabbix.agent:type=Slow");
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new Slow(), objectName);
+		try
+		{
+			ResultBuffer resultBuffer = new ResultBuffer(1000);
+			List<CheckPlan> checkPlans = new ArrayList<>();
+			checkPlans.add(CheckPlan.compile(CheckItem.builder().key(new ZabbixKey("jmx[\"com.github.zabbix.agent:type=Slow\",Value]")).build()));
+			checkPlans.add(CheckPlan.compile(CheckItem.builder().key(new ZabbixKey("jmx[\"java.lang:type=Runtime\",VmName]")).build()));
+			
+			CollectorPool pool = new CollectorPool(2);
+			CheckerTask checkerTask = new CheckerTask(checkPlans, null, resultBuffer, 1, pool);
+			checkerTask.run();
+			// new checks of the same bean are not read while the old read hangs
+			checkPlans.add(CheckPlan.compile(CheckItem.builder().key(new ZabbixKey("jmx[\"java.lang:type=Threading\",ThreadCount]")).build()));
+			checkerTask.updateCheckPlans(checkPlans);
+			checkerTask.run();
+			Assertions.assertThat(checkerTask.getMissedChecks()).isEqualTo(1);
+			pool.shutdown();
+			
+			ResultBatch results = drain(resultBuffer);
+			Assertions.assertThat(results.size()).isEqualTo(4);
+			for (int i = 0; i < results.size(); i++)
+			{
+				if (results.getKey(i).getKey().contains("Slow"))
+					Assertions.assertThat(results.getState(i)).isEqualTo(ResultBatch.STATE_NOTSUPPORTED);
+				else
+					Assertions.assertThat(results.getState(i)).isEqualTo(ResultBatch.STATE_NORMAL);
+			}
+		}
+		finally
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		}
+	}
+	
+	@Test
+	public void testError() throws Exception
+	{
+		ResultBuffer resultBuffer = new ResultBuffer(1000);
+		CheckItem item = CheckItem.builder().key(new ZabbixKey("jmx.discovery[unknown]")).build();
+		String message = null;
+		try
+		{
+			CheckPlan.compile(item);
+		}
+		catch (ZabbixException ex)
+		{
+			message = ex.getMessage();
+		}
+		Assertions.assertThat(message).isNotNull();
+		
+		List<CheckPlan> checkPlans = new ArrayList<>();
+		checkPlans.add(CheckPlan.error(item, message));
+		CheckerTask checkerTask = new CheckerTask(checkPlans, null, resultBuffer, 0);
+		// reported every cycle, never quarantined
+		for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD + 1; i++)
+			checkerTask.run();
+		
+		ResultBatch results = drain(resultBuffer);
+		Assertions.assertThat(results.size()).isEqualTo(CircuitBreaker.FAILURE_THRESHOLD + 1);
+		for (int i = 0; i < results.size(); i++)
+		{
+			Assertions.assertThat(results.getState(i)).isEqualTo(ResultBatch.STATE_NOTSUPPORTED);
+			Assertions.assertThat(results.getValue(i)).isEqualTo(message);
+		}
+	}
+	
+	@Test
+	public void testJmxParallel() throws Exception
+	{
+		ResultBuffer resultBuffer = new ResultBuffer(1000);
+		List<CheckPlan> checkPlans = new ArrayList<>();
+
+		String keys[] = new String[] 
+				{
+					"jmx[\"java.lang:type=Memory\",HeapMemoryUsage.used]", 
+					"jmx[\"java.lang:type=Runtime\",VmName]", 
+					"jmx[\"java.lang:type=Runtime\",Uptime]", 
+					"jmx[\"java.lang:type=Threading\",ThreadCount]", 
+					"jmx[\"java.lang:type=ClassLoading\",LoadedClassCount]", 
+					"jmx[\"java.lang:type=OperatingSystem\",AvailableProcessors]", 
+					"jmx.discovery[beans, \"java.lang:type=MemoryPool,name=*\"]", 
+				};
+
+		for (String key : keys)
+			checkPlans.add(
+					CheckPlan.compile(CheckItem.builder().key(new ZabbixKey(key)).build())
+			);
+		
+		CollectorPool pool = new CollectorPool(4);
+		CheckerTask checkerTask = new CheckerTask(checkPlans, null, resultBuffer, 0, pool);
+		checkerTask.run();
+		for (int i = 0; i < 100 && resultBuffer.size() < keys.length; i++)
+			Thread.sleep(100L);
+		pool.shutdown();
+
+		ResultBatch results = drain(resultBuffer);
+		Assertions.assertThat(results.size()).isEqualTo(keys.length);
+		for (int i = 0; i < results.size(); i++)
+			Assertions.assertThat(results.getClock(i)).isEqualTo(results.getClock(0));
+	}
+	
+	@Test
+	public void testFanOut() throws Exception
+	{
+		KeyRegistry keys = new KeyRegistry();
+		ResultBuffer[] resultBuffers = { new ResultBuffer(100, keys), new ResultBuffer(100, keys) };
+		List<CheckPlan> checkPlans = new ArrayList<>();
+		checkPlans.add(CheckPlan.compile(CheckItem.builder().key(new ZabbixKey("jmx[\"java.lang:type=Runtime\",VmName]")).build()));
+		checkPlans.add(CheckPlan.compile(CheckItem.builder().key(new ZabbixKey("jmx[\"java.lang:type=Runtime\",Uptime]")).build())
+				.withServers(3));
+		checkPlans.add(CheckPlan.compile(CheckItem.builder().key(new ZabbixKey("jmx[\"java.lang:type=Runtime\",VmVendor]")).build())
+				.withServers(2));
+		
+		new CheckerTask(checkPlans, null, resultBuffers, 0, null).run();
+		
+		ResultBatch results = drain(resultBuffers[0]);
+		Assertions.assertThat(results.size()).isEqualTo(2);
+		Assertions.assertThat(results.getKey(0).getKey()).contains("VmName");
+		Assertions.assertThat(results.getKey(1).getKey()).contains("Uptime");
+		results = drain(resultBuffers[1]);
+		Assertions.assertThat(results.size()).isEqualTo(2);
+		Assertions.assertThat(results.getKey(0).getKey()).contains("Uptime");
+		Assertions.assertThat(results.getKey(1).getKey()).contains("VmVendor");
+	}
+	
 	@Test
 	public void testJmxDiscovery() throws Exception
 	{
-		Queue<CheckResult> resultsQueue = new ArrayBlockingQueue<>(1000);
-		Set<CheckItem> checkItems = new HashSet<>();
+		ResultBuffer resultBuffer = new ResultBuffer(1000);
+		List<CheckPlan> checkPlans = new ArrayList<>();
 
 		String keys[] = new String[] 
 				{
@@ -123,11 +341,11 @@ public class CheckerTaskTest
 				};
 
 		for (String key : keys)
-			checkItems.add(
-					CheckItem.builder().key(new ZabbixKey(key)).build()
+			checkPlans.add(
+					CheckPlan.compile(CheckItem.builder().key(new ZabbixKey(key)).build())
 			);
 		
-		CheckerTask checkerTask = new CheckerTask(checkItems, null, resultsQueue, 0);
+		CheckerTask checkerTask = new CheckerTask(checkPlans, null, resultBuffer, 0);
 		checkerTask.run();
 
 		//FIXME: do checks
@@ -136,11 +354,11 @@ public class CheckerTaskTest
 	@Test
 	public void testJmxDiscoveryAttributes() throws Exception
 	{
-		Queue<CheckResult> resultsQueue = new ArrayBlockingQueue<>(1000);
-		Set<CheckItem> checkItems = new HashSet<>();
+		ResultBuffer resultBuffer = new ResultBuffer(1000);
+		List<CheckPlan> checkPlans = new ArrayList<>();
 
 		ZabbixKey key = new ZabbixKey("jmx.discovery[attributes, \"java.lang:type=MemoryPool,name=PS*\"]");
-		CheckerTask checkerTask = new CheckerTask(checkItems, null, resultsQueue, 0);
+		CheckerTask checkerTask = new CheckerTask(checkPlans, null, resultBuffer, 0);
 		
 		String s = checkerTask.getStringValue(key);
 		log.info("Result: " + s);
@@ -148,18 +366,245 @@ public class CheckerTaskTest
 		//FIXME: do checks
 	}
 	
+	@Test
+	public void testJmxDiscoveryComposite() throws Exception
+	{
+		ZabbixKey key = new ZabbixKey("jmx.discovery[attributes, \"java.lang:type=Memory\"]");
+		CheckerTask checkerTask = new CheckerTask(new ArrayList<CheckPlan>(), null, new ResultBuffer(1000), 0);
+		
+		String s = checkerTask.getStringValue(key);
+		Assertions.assertThat(s).contains("\"{#JMXATTR}\":\"HeapMemoryUsage.used\"").doesNotContain("truncated");
+	}
+	
+	@Test
+	public void testJmxAggregate() throws Exception
+	{
+		CheckerTask checkerTask = new CheckerTask(new ArrayList<CheckPlan>(), null, new ResultBuffer(1000), 0);
+		int pools = ManagementFactory.getMemoryPoolMXBeans().size();
+		
+		Assertions.assertThat(checkerTask.getStringValue(new ZabbixKey("jmx.aggregate[\"java.lang:type=MemoryPool,*\",Usage.committed,count]")))
+					.isEqualTo(String.valueOf(pools));
+		Assertions.assertThat(Long.parseLong(checkerTask.getStringValue(new ZabbixKey("jmx.aggregate[\"java.lang:type=MemoryPool,*\",Usage.committed,sum]"))))
+					.isGreaterThan(0);
+		// not numbers are skipped
+		Assertions.assertThat(checkerTask.getStringValue(new ZabbixKey("jmx.aggregate[\"java.lang:type=MemoryPool,*\",Name,count]")))
+					.isEqualTo("0");
+	}
+	
+	@Test
+	public void testJmxBean() throws Exception
+	{
+		CheckerTask checkerTask = new CheckerTask(new ArrayList<CheckPlan>(), null, new ResultBuffer(1000), 0);
+		
+		JSONObject bean = new JSONObject(checkerTask.getStringValue(new ZabbixKey("jmx.bean[\"java.lang:type=Memory\"]")));
+		Assertions.assertThat(bean.getJSONObject("HeapMemoryUsage").getLong("used")).isGreaterThan(0);
+		Assertions.assertThat(bean.get("Verbose")).isInstanceOf(Boolean.class);
+		Assertions.assertThat(bean.getString("ObjectName")).isEqualTo("java.lang:type=Memory");
+		
+		bean = new JSONObject(checkerTask.getStringValue(new ZabbixKey("jmx.bean[\"java.lang:type=Memory\",HeapMemoryUsage,NoSuchAttribute]")));
+		Assertions.assertThat(bean.length()).isEqualTo(1);
+		Assertions.assertThat(bean.has("HeapMemoryUsage")).isTrue();
+		
+		Assertions.assertThat(checkerTask.getStringValue(new ZabbixKey("jmx.bean[\"java.lang:type=Memory\",NoSuchAttribute]"))).isNull();
+	}
+	
+	@Test
+	public void testJmxDelta() throws Exception
+	{
+		ObjectName objectName = new ObjectName("com.github.zabbix.agent:type=Counter");
+		Counter counter = new Counter();
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(counter, CounterMBean.class), objectName);
+		try
+		{
+			ResultBuffer resultBuffer = new ResultBuffer(1000);
+			List<CheckPlan> checkPlans = new ArrayList<>();
+			checkPlans.add(CheckPlan.compile(CheckItem.builder().key(new ZabbixKey("jmx.delta[\"com.github.zabbix.agent:type=Counter\",Count]")).build()));
+			checkPlans.add(CheckPlan.compile(CheckItem.builder().key(new ZabbixKey("jmx.rate[\"com.github.zabbix.agent:type=Counter\",Count]")).build()));
+			CheckerTask checkerTask = new CheckerTask(checkPlans, null, resultBuffer, 0);
+			
+			// the first value has nothing to compare with
+			counter.count = 100;
+			checkerTask.run();
+			Assertions.assertThat(resultBuffer.size()).isEqualTo(0);
+			
+			counter.count = 150;
+			checkerTask.run();
+			ResultBatch results = drain(resultBuffer);
+			Assertions.assertThat(results.size()).isEqualTo(2);
+			Assertions.assertThat(results.getValue(0)).isEqualTo("50");
+			Assertions.assertThat(Double.parseDouble(results.getValue(1))).isGreaterThan(0);
+			
+			// reset
+			counter.count = 10;
+			checkerTask.run();
+			Assertions.assertThat(resultBuffer.size()).isEqualTo(0);
+			counter.count = 15;
+			checkerTask.run();
+			Assertions.assertThat(drain(resultBuffer).getValue(0)).isEqualTo("5");
+			
+			// passive checks of the same key keep their own counters and do not intern keys
+			ZabbixKey key = new ZabbixKey("jmx.delta[\"com.github.zabbix.agent:type=Counter\",Count]");
+			Assertions.assertThat(checkerTask.getStringValue(key)).isNull();
+			counter.count = 20;
+			checkerTask.run();
+			Assertions.assertThat(drain(resultBuffer).getValue(0)).isEqualTo("5");
+			Assertions.assertThat(checkerTask.getStringValue(key)).isEqualTo("5");
+			Assertions.assertThat(resultBuffer.getKeys().size()).isEqualTo(2);
+		}
+		finally
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		}
+	}
+	
+	@Test
+	public void testJmxSample() throws Exception
+	{
+		ObjectName objectName = new ObjectName("com.github.zabbix.agent:type=Gauge");
+		Counter gauge = new Counter();
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(gauge, CounterMBean.class), objectName);
+		try
+		{
+			CheckerTask checkerTask = new CheckerTask(new ArrayList<CheckPlan>(), null, new ResultBuffer(1000), 0);
+			ZabbixKey max = new ZabbixKey("jmx.sample[\"com.github.zabbix.agent:type=Gauge\",Count,max,10]");
+			ZabbixKey all = new ZabbixKey("jmx.sample[\"com.github.zabbix.agent:type=Gauge\",Count,,10]");
+			
+			// the first check starts sampling
+			gauge.count = 1;
+			Assertions.assertThat(checkerTask.getStringValue(max)).isNull();
+			Assertions.assertThat(checkerTask.getStringValue(all)).isNull();
+			
+			// a spike between two checks
+			gauge.count = 42;
+			Thread.sleep(200L);
+			gauge.count = 1;
+			Thread.sleep(200L);
+			Assertions.assertThat(checkerTask.getStringValue(max)).isEqualTo("42");
+			JSONObject json = new JSONObject(checkerTask.getStringValue(all));
+			Assertions.assertThat(json.getLong("max")).isEqualTo(42);
+			Assertions.assertThat(json.getLong("min")).isEqualTo(1);
+			Assertions.assertThat(json.getInt("count")).isGreaterThan(1);
+			
+			checkerTask.updateCheckPlans(new ArrayList<CheckPlan>());
+		}
+		finally
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		}
+	}
+	
+	public interface CounterMBean
+	{
+		long getCount();
+	}
+	
+	public static class Counter implements CounterMBean
+	{
+		private volatile long count;
+		
+		@Override
+		public long getCount()
+		{
+			return count;
+		}
+	}
+	
+	public interface RateMBean
+	{
+		double getOneMinuteRate();
+	}
+	
+	public static class Rate implements RateMBean
+	{
+		private volatile double value;
+		
+		Rate(double value)
+		{
+			this.value = value;
+		}
+		
+		@Override
+		public double getOneMinuteRate()
+		{
+			return value;
+		}
+	}
+	
+	@Test
+	public void testJmxDiscoveryTop() throws Exception
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		Rate[] rates = new Rate[5];
+		for (int i = 0; i < rates.length; i++)
+		{
+			rates[i] = new Rate(i * 10);
+			server.registerMBean(new StandardMBean(rates[i], RateMBean.class), new ObjectName("top.test:type=Topic,name=t" + i));
+		}
+		try
+		{
+			ZabbixKey key = new ZabbixKey("jmx.discovery[top, \"top.test:type=Topic,*\",,, 2, OneMinuteRate]");
+			CheckerTask checkerTask = new CheckerTask(new ArrayList<CheckPlan>(), null, new ResultBuffer(1000), 0);
+			
+			String s = checkerTask.getStringValue(key);
+			Assertions.assertThat(s).contains("\"{#JMXNAME}\":\"t3\"").contains("\"{#JMXNAME}\":\"t4\"").doesNotContain("t2");
+			
+			// a short spike does not change the top
+			rates[2].value = 45;
+			Assertions.assertThat(checkerTask.getStringValue(key)).isEqualTo(s);
+			
+			// a lasting one does
+			for (int i = 0; i < 10; i++)
+				checkerTask.getStringValue(key);
+			Assertions.assertThat(checkerTask.getStringValue(key)).contains("\"{#JMXNAME}\":\"t2\"").doesNotContain("t3");
+		}
+		finally
+		{
+			for (ObjectName name : server.queryNames(new ObjectName("top.test:*"), null))
+				server.unregisterMBean(name);
+		}
+	}
+	
 	@Test
 	public void testJmxDiscoveryBeans() throws Exception
 	{
-		Queue<CheckResult> resultsQueue = new ArrayBlockingQueue<>(1000);
-		Set<CheckItem> checkItems = new HashSet<>();
+		ResultBuffer resultBuffer = new ResultBuffer(1000);
+		List<CheckPlan> checkPlans = new ArrayList<>();
 
 		ZabbixKey key = new ZabbixKey("jmx.discovery[beans, \"java.lang:type=MemoryPool,name=PS*\"]");
-		CheckerTask checkerTask = new CheckerTask(checkItems, null, resultsQueue, 0);
+		CheckerTask checkerTask = new CheckerTask(checkPlans, null, resultBuffer, 0);
 		
 		String s = checkerTask.getStringValue(key);
 		log.info("Result: " + s);
 
 		//FIXME: do checks
 	}
+	
+	private ResultBatch drain(ResultBuffer resultBuffer)
+	{
+		ResultBatch result = new ResultBatch(resultBuffer.getKeys());
+		resultBuffer.drainTo(result, Integer.MAX_VALUE);
+		return result;
+	}
+	
+	public interface SlowMBean
+	{
+		int getValue();
+	}
+	
+	public static class Slow implements SlowMBean
+	{
+		@Override
+		public int getValue()
+		{
+			try
+			{
+				Thread.sleep(5000L);
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+			return 0;
+		}
+	}
 }
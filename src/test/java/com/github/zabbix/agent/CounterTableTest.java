@@ -0,0 +1,39 @@
+package com.github.zabbix.agent;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * @author Victor Kadachigov
+ */
+public class CounterTableTest
+{
+	private static final long SECOND = 1000000000L;
+
+	@Test
+	public void testDelta() throws Exception
+	{
+		CounterTable counters = new CounterTable();
+
+		Assertions.assertThat(counters.update(0, CheckPlan.Counter.DELTA, SECOND, 100L)).isNull();
+		Assertions.assertThat(counters.update(0, CheckPlan.Counter.DELTA, 2 * SECOND, 130L)).isEqualTo(30L);
+		// the same sample
+		Assertions.assertThat(counters.update(0, CheckPlan.Counter.DELTA, 2 * SECOND, 130L)).isNull();
+		// reset
+		Assertions.assertThat(counters.update(0, CheckPlan.Counter.DELTA, 3 * SECOND, 5L)).isNull();
+		Assertions.assertThat(counters.update(0, CheckPlan.Counter.DELTA, 4 * SECOND, 7.5)).isEqualTo(2.5);
+		Assertions.assertThat(counters.update(0, CheckPlan.Counter.DELTA, 5 * SECOND, 10)).isEqualTo(2.5);
+	}
+
+	@Test
+	public void testRate() throws Exception
+	{
+		CounterTable counters = new CounterTable();
+
+		Assertions.assertThat(counters.update(700, CheckPlan.Counter.RATE, 10 * SECOND, 1000)).isNull();
+		Assertions.assertThat(counters.update(700, CheckPlan.Counter.RATE, 12 * SECOND, 1500)).isEqualTo(250.0);
+
+		counters.retain(new int[0]);
+		Assertions.assertThat(counters.update(700, CheckPlan.Counter.RATE, 14 * SECOND, 2000)).isNull();
+	}
+}
@@ -0,0 +1,93 @@
+package com.github.zabbix.agent;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author Victor Kadachigov
+ */
+public class DiscoveryCacheTest
+{
+	private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	
+	public interface CounterMBean
+	{
+		int getValue();
+	}
+	
+	public static class Counter implements CounterMBean
+	{
+		@Override
+		public int getValue()
+		{
+			return 1;
+		}
+	}
+	
+	@After
+	public void cleanUp() throws Exception
+	{
+		for (ObjectName name : server.queryNames(new ObjectName("discovery.test:*"), null))
+			server.unregisterMBean(name);
+	}
+	
+	@Test
+	public void testNotifications() throws Exception
+	{
+		ObjectName pattern = new ObjectName("discovery.test:type=Counter,*");
+		ObjectName first = new ObjectName("discovery.test:type=Counter,name=1");
+		ObjectName second = new ObjectName("discovery.test:type=Counter,name=2");
+		register(first);
+		
+		DiscoveryCache cache = new DiscoveryCache();
+		Assertions.assertThat(cache.queryNames(pattern)).containsExactly(first);
+		
+		register(second);
+		register(new ObjectName("discovery.test:type=Other"));
+		Assertions.assertThat(cache.queryNames(pattern)).containsExactly(first, second);
+		
+		server.unregisterMBean(first);
+		Assertions.assertThat(cache.queryNames(pattern)).containsExactly(second);
+		Assertions.assertThat(cache.getMBeanInfo(second).getAttributes()).hasSize(1);
+	}
+	
+	@Test
+	public void testRender() throws Exception
+	{
+		ObjectName pattern = new ObjectName("discovery.test:type=Counter,*");
+		register(new ObjectName("discovery.test:type=Counter,name=1"));
+		
+		final AtomicInteger renders = new AtomicInteger();
+		DiscoveryCache.Renderer renderer = new DiscoveryCache.Renderer()
+		{
+			@Override
+			public String render(List<ObjectName> names)
+			{
+				renders.incrementAndGet();
+				return String.valueOf(names.size());
+			}
+		};
+		DiscoveryCache cache = new DiscoveryCache();
+		Assertions.assertThat(cache.render(pattern, "key", renderer)).isEqualTo("1");
+		Assertions.assertThat(cache.render(pattern, "key", renderer)).isEqualTo("1");
+		Assertions.assertThat(renders.get()).isEqualTo(1);
+		
+		register(new ObjectName("discovery.test:type=Counter,name=2"));
+		Assertions.assertThat(cache.render(pattern, "key", renderer)).isEqualTo("2");
+		Assertions.assertThat(renders.get()).isEqualTo(2);
+	}
+	
+	private void register(ObjectName name) throws Exception
+	{
+		server.registerMBean(new StandardMBean(new Counter(), CounterMBean.class), name);
+	}
+}
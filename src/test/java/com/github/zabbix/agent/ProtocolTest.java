@@ -0,0 +1,89 @@
+package com.github.zabbix.agent;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import org.assertj.core.api.Assertions;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.github.zabbix.agent.data.CheckItem;
+
+/**
+ * @author Victor Kadachigov
+ */
+public class ProtocolTest
+{
+	private static final String MESSAGE = "{\"response\":\"success\",\"data\":[]}";
+	
+	@Test
+	public void testRead() throws Exception
+	{
+		Protocol protocol = new Protocol(null, null);
+		for (int flags = 1; flags <= 7; flags += 2)
+			Assertions.assertThat(protocol.read(packet(flags))).isEqualTo(MESSAGE);
+	}
+	
+	@Test(expected=RuntimeException.class)
+	public void testBadFlags() throws Exception
+	{
+		new Protocol(null, null).read(packet(Protocol.FLAG_COMPRESSED));
+	}
+	
+	@Test
+	public void testConfigRevision() throws Exception
+	{
+		Protocol protocol = new Protocol(null, new ZabbixAgentConfig());
+		JSONObject request = protocol.activeChecksRequest();
+		Assertions.assertThat(request.getLong("config_revision")).isEqualTo(0);
+		Assertions.assertThat(request.getString("session")).hasSize(32);
+		
+		Set<CheckItem> items = protocol.parseActiveChecks(
+				"{\"response\":\"success\",\"config_revision\":7,\"data\":[{\"key\":\"jmx[\\\"java.lang:type=Threading\\\",ThreadCount]\",\"delay\":\"1m\"}]}");
+		Assertions.assertThat(items).hasSize(1);
+		Assertions.assertThat(items.iterator().next().getDelay()).isEqualTo(60);
+		// not applied yet
+		Assertions.assertThat(protocol.activeChecksRequest().getLong("config_revision")).isEqualTo(0);
+		protocol.commitConfigRevision();
+		Assertions.assertThat(protocol.activeChecksRequest().getLong("config_revision")).isEqualTo(7);
+		Assertions.assertThat(protocol.activeChecksRequest().getString("session")).isEqualTo(request.getString("session"));
+		
+		// not changed
+		Assertions.assertThat(protocol.parseActiveChecks("{\"response\":\"success\",\"config_revision\":7}")).isNull();
+		
+		// the server before 6.4 always sends the list
+		Assertions.assertThat(protocol.parseActiveChecks("{\"response\":\"success\",\"data\":[]}")).isEmpty();
+		protocol.commitConfigRevision();
+		Assertions.assertThat(protocol.activeChecksRequest().getLong("config_revision")).isEqualTo(0);
+		
+		protocol.parseActiveChecks("{\"response\":\"success\",\"config_revision\":8,\"data\":[]}");
+		protocol.commitConfigRevision();
+		Assertions.assertThat(protocol.activeChecksRequest().getLong("config_revision")).isEqualTo(8);
+		protocol.resetConfigRevision();
+		Assertions.assertThat(protocol.activeChecksRequest().getLong("config_revision")).isEqualTo(0);
+	}
+	
+	private ByteArrayInputStream packet(int flags)
+	{
+		byte[] data = MESSAGE.getBytes(StandardCharsets.UTF_8);
+		long length = data.length;
+		if ((flags & Protocol.FLAG_COMPRESSED) != 0)
+		{
+			Deflater deflater = new Deflater();
+			deflater.setInput(data);
+			deflater.finish();
+			byte[] compressed = new byte[1024];
+			int n = deflater.deflate(compressed);
+			data = new byte[n];
+			System.arraycopy(compressed, 0, data, 0, n);
+		}
+		
+		ByteBuffer buffer = ByteBuffer.allocate(Protocol.MAX_HEADER_SIZE + data.length);
+		Protocol.putHeader(buffer, flags, data.length, (flags & Protocol.FLAG_COMPRESSED) != 0 ? length : 0);
+		buffer.put(data);
+		return new ByteArrayInputStream(buffer.array(), 0, buffer.position());
+	}
+}
@@ -0,0 +1,82 @@
+package com.github.zabbix.agent;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * @author Victor Kadachigov
+ */
+public class SamplerTest
+{
+	@Test
+	public void testDrain() throws Exception
+	{
+		Sampler sampler = new Sampler("test", 3, 60000L, 3000L, null);
+		for (int i = 1; i <= 5; i++)
+			sampler.add(i);
+
+		// the oldest samples are overwritten
+		Aggregation.Accumulator min = Aggregation.parse("min").newAccumulator();
+		Aggregation.Accumulator count = Aggregation.parse("count").newAccumulator();
+		Assertions.assertThat(sampler.drainTo(min, count)).isEqualTo(3);
+		Assertions.assertThat(min.getResult()).isEqualTo(3L);
+		Assertions.assertThat(count.getResult()).isEqualTo(3);
+
+		Assertions.assertThat(sampler.drainTo(Aggregation.parse("max").newAccumulator())).isEqualTo(0);
+
+		sampler.add(1);
+		sampler.add(2.5);
+		sampler.add(Double.NaN);
+		Aggregation.Accumulator max = Aggregation.parse("max").newAccumulator();
+		Assertions.assertThat(sampler.drainTo(max)).isEqualTo(2);
+		Assertions.assertThat(max.getResult()).isEqualTo(2.5);
+	}
+
+	@Test
+	public void testHungRead() throws Exception
+	{
+		final CountDownLatch release = new CountDownLatch(1);
+		Sampler hung = new Sampler("hung", 100, 60000L, 100L, new Sampler.Reader()
+		{
+			@Override
+			public Number read() throws Exception
+			{
+				release.await();
+				return 1;
+			}
+		});
+		Sampler healthy = new Sampler("healthy", 100, 60000L, 100L, new Sampler.Reader()
+		{
+			@Override
+			public Number read() throws Exception
+			{
+				return 2;
+			}
+		});
+		try
+		{
+			hung.start(10L);
+			healthy.start(10L);
+			Thread.sleep(300L);
+			
+			// the hung read does not hold the samples of others
+			Aggregation.Accumulator count = Aggregation.parse("count").newAccumulator();
+			Assertions.assertThat(healthy.drainTo(count)).isGreaterThan(1);
+			Assertions.assertThat(hung.drainTo(count)).isEqualTo(0);
+			Assertions.assertThat(hung.getError()).isEqualTo("Timeout while reading the value");
+			
+			release.countDown();
+			Thread.sleep(100L);
+			Assertions.assertThat(hung.drainTo(count)).isGreaterThan(0);
+			Assertions.assertThat(hung.getError()).isNull();
+		}
+		finally
+		{
+			release.countDown();
+			hung.stop();
+			healthy.stop();
+		}
+	}
+}
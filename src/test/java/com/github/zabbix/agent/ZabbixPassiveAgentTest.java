@@ -0,0 +1,145 @@
+package com.github.zabbix.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import javax.management.ObjectName;
+
+import org.assertj.core.api.Assertions;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * @author Victor Kadachigov
+ */
+public class ZabbixPassiveAgentTest
+{
+	private static ZabbixPassiveAgent agent;
+	private static int port;
+	
+	@BeforeClass
+	public static void start() throws Exception
+	{
+		try (ServerSocket socket = new ServerSocket(0))
+		{
+			port = socket.getLocalPort();
+		}
+		File file = File.createTempFile("zabbix_agentd", ".conf");
+		file.deleteOnExit();
+		try (FileWriter writer = new FileWriter(file))
+		{
+			writer.write("Server=127.0.0.1,::1\nListenPort=" + port + "\nHostname=test\nLogType=console\nTimeout=1\n");
+		}
+		agent = new ZabbixPassiveAgent(new ZabbixAgentConfig(file.getPath()), new AttributeCache(1000, 100, 1000), new DiscoveryCache());
+		Thread thread = new Thread(agent);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	@AfterClass
+	public static void stop()
+	{
+		agent.stop();
+	}
+	
+	@Test
+	public void testPacket() throws Exception
+	{
+		Assertions.assertThat(request(packet("agent.ping"))).isEqualTo("1");
+		Assertions.assertThat(request(packet("jmx[\"java.lang:type=Runtime\",VmName]")))
+					.isEqualTo(System.getProperty("java.vm.name"));
+	}
+
+	@Test
+	public void testPlainText() throws Exception
+	{
+		Assertions.assertThat(request("agent.hostname\n".getBytes(StandardCharsets.UTF_8))).isEqualTo("test");
+	}
+	
+	@Test
+	public void testNotSupported() throws Exception
+	{
+		Assertions.assertThat(request(packet("jmx[\"java.lang:type=Runtime\",NoSuchAttribute]")))
+					.startsWith("ZBX_NOTSUPPORTED\0");
+		Assertions.assertThat(request(packet("unknown.key"))).startsWith("ZBX_NOTSUPPORTED\0");
+	}
+	
+	@Test
+	public void testTimeout() throws Exception
+	{
+		ObjectName objectName = new ObjectName("test:type=SlowPassive");
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new CheckerTaskTest.Slow(), objectName);
+		try
+		{
+			long start = System.currentTimeMillis();
+			Assertions.assertThat(request(packet("jmx[\"test:type=SlowPassive\",Value]")))
+						.isEqualTo("ZBX_NOTSUPPORTED\0Timeout while getting value.");
+			Assertions.assertThat(System.currentTimeMillis() - start).isLessThan(2000L);
+			// the worker is free
+			Assertions.assertThat(request(packet("agent.ping"))).isEqualTo("1");
+		}
+		finally
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		}
+	}
+	
+	private static byte[] packet(String key)
+	{
+		byte[] data = key.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocate(Protocol.MAX_HEADER_SIZE + data.length);
+		Protocol.putHeader(buffer, Protocol.FLAG_PROTOCOL, data.length, 0);
+		buffer.put(data);
+		byte[] result = new byte[buffer.position()];
+		System.arraycopy(buffer.array(), 0, result, 0, result.length);
+		return result;
+	}
+	
+	private static String request(byte[] request) throws Exception
+	{
+		try (Socket socket = connect())
+		{
+			socket.setSoTimeout(5000);
+			OutputStream out = socket.getOutputStream();
+			out.write(request);
+			out.flush();
+			
+			InputStream in = socket.getInputStream();
+			ByteArrayOutputStream answer = new ByteArrayOutputStream();
+			byte[] buf = new byte[1024];
+			int n;
+			while ((n = in.read(buf)) >= 0)
+				answer.write(buf, 0, n);
+			byte[] bytes = answer.toByteArray();
+			Assertions.assertThat(new String(bytes, 0, 4, StandardCharsets.US_ASCII)).isEqualTo("ZBXD");
+			return new String(bytes, 13, bytes.length - 13, StandardCharsets.UTF_8);
+		}
+	}
+	
+	private static Socket connect() throws Exception
+	{
+		for (int i = 0; ; i++)
+		{
+			try
+			{
+				return new Socket("127.0.0.1", port);
+			}
+			catch (ConnectException ex)
+			{
+				if (i == 50)
+					throw ex;
+				Thread.sleep(100);
+			}
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.github.zabbix.agent.data;
+
+import java.util.Calendar;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * @author Victor Kadachigov
+ */
+public class ItemScheduleTest
+{
+	@Test
+	public void testInterval() throws Exception
+	{
+		Assertions.assertThat(ItemSchedule.parse("30").getInterval()).isEqualTo(30);
+		Assertions.assertThat(ItemSchedule.parse("5m").getInterval()).isEqualTo(300);
+		Assertions.assertThat(ItemSchedule.parse("1h").getInterval()).isEqualTo(3600);
+
+		// spread by the seed, the same for the same seed
+		ItemSchedule schedule = ItemSchedule.every(60);
+		long now = time(2024, Calendar.MARCH, 4, 10, 0, 0);
+		long next = schedule.nextCheck(now, 12345);
+		Assertions.assertThat(next).isGreaterThan(now).isLessThanOrEqualTo(now + 60000);
+		Assertions.assertThat(next % 60000).isEqualTo(12345);
+		Assertions.assertThat(schedule.nextCheck(next, 12345)).isEqualTo(next + 60000);
+		Assertions.assertThat(schedule.nextCheck(now, 54321)).isNotEqualTo(next);
+	}
+
+	@Test
+	public void testFlexible() throws Exception
+	{
+		// Monday
+		ItemSchedule schedule = ItemSchedule.parse("1m;10s/1-5,09:00-18:00");
+		Assertions.assertThat(schedule.getInterval(time(2024, Calendar.MARCH, 4, 10, 0, 0))).isEqualTo(10);
+		Assertions.assertThat(schedule.getInterval(time(2024, Calendar.MARCH, 4, 8, 0, 0))).isEqualTo(60);
+		Assertions.assertThat(schedule.getInterval(time(2024, Calendar.MARCH, 9, 10, 0, 0))).isEqualTo(60);
+
+		// no checks out of the period
+		schedule = ItemSchedule.parse("0;30s/1-5,09:00-18:00");
+		long next = schedule.nextCheck(time(2024, Calendar.MARCH, 4, 18, 30, 0), 0);
+		Assertions.assertThat(next).isEqualTo(time(2024, Calendar.MARCH, 5, 9, 0, 0));
+	}
+
+	@Test
+	public void testScheduling() throws Exception
+	{
+		ItemSchedule schedule = ItemSchedule.parse("0;wd1-5h9");
+		Assertions.assertThat(schedule.nextCheck(time(2024, Calendar.MARCH, 4, 10, 0, 0), 0))
+			.isEqualTo(time(2024, Calendar.MARCH, 5, 9, 0, 0));
+		// Friday to Monday
+		Assertions.assertThat(schedule.nextCheck(time(2024, Calendar.MARCH, 8, 9, 0, 0), 0))
+			.isEqualTo(time(2024, Calendar.MARCH, 11, 9, 0, 0));
+
+		schedule = ItemSchedule.parse("0;m/15");
+		Assertions.assertThat(schedule.nextCheck(time(2024, Calendar.MARCH, 4, 10, 7, 30), 0))
+			.isEqualTo(time(2024, Calendar.MARCH, 4, 10, 15, 0));
+
+		schedule = ItemSchedule.parse("1h;h9-18/3m0,30");
+		Assertions.assertThat(schedule.nextCheck(time(2024, Calendar.MARCH, 4, 12, 0, 0), 0))
+			.isEqualTo(time(2024, Calendar.MARCH, 4, 12, 30, 0));
+	}
+
+	@Test
+	public void testInvalid() throws Exception
+	{
+		for (String text : new String[] { "", "abc", "-1", "2d", "0", "0;0/1-7,00:00-24:00", "1m;10s/8,09:00-18:00", 
+											"1m;10s/1-5,18:00-09:00", "1m;h25", "1m;s/0", "1m;hm1" })
+		{
+			try
+			{
+				ItemSchedule.parse(text);
+				Assertions.fail("\"" + text + "\" must be invalid");
+			}
+			catch (IllegalArgumentException ex)
+			{
+				// ok
+			}
+		}
+	}
+
+	private long time(int year, int month, int day, int hour, int minute, int second)
+	{
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(year, month, day, hour, minute, second);
+		return calendar.getTimeInMillis();
+	}
+}
@@ -0,0 +1,190 @@
+package com.github.zabbix.agent.data;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Victor Kadachigov
+ */
+public class PersistentBufferTest
+{
+	private static final long PERIOD = 3600000L;
+	private static final long MAX_SIZE = 1024L * 1024L;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void testReplay() throws Exception
+	{
+		File file = new File(folder.getRoot(), "buffer");
+		KeyRegistry keys = new KeyRegistry();
+		long now = System.currentTimeMillis();
+		
+		PersistentBuffer buffer = new PersistentBuffer(file, keys, PERIOD, MAX_SIZE, 1024);
+		buffer.append(batch(keys, now, 0, 100));
+		Assertions.assertThat(buffer.size()).isEqualTo(100);
+		
+		ResultBatch result = new ResultBatch(keys);
+		Assertions.assertThat(buffer.read(result, 30, now)).isEqualTo(30);
+		buffer.commit(buffer.getPosition());
+		result.clear();
+		Assertions.assertThat(buffer.read(result, 30, now)).isEqualTo(30); // not committed
+		buffer.close();
+		
+		// restart
+		keys = new KeyRegistry();
+		buffer = new PersistentBuffer(file, keys, PERIOD, MAX_SIZE, 1024);
+		Assertions.assertThat(buffer.size()).isEqualTo(70);
+		buffer.append(batch(keys, now, 100, 10));
+		
+		result = new ResultBatch(keys);
+		Assertions.assertThat(buffer.read(result, 1000, now)).isEqualTo(80);
+		for (int i = 0; i < result.size(); i++)
+		{
+			Assertions.assertThat(result.getKey(i).getKey()).isEqualTo("key[" + (30 + i) % 3 + "]");
+			Assertions.assertThat(result.getValue(i)).isEqualTo(value(30 + i));
+			Assertions.assertThat(result.getClock(i)).isEqualTo(now + 30 + i);
+		}
+		Assertions.assertThat(result.getState(79)).isEqualTo(ResultBatch.STATE_NOTSUPPORTED);
+		buffer.commit(buffer.getPosition());
+		buffer.close();
+		
+		// only the last segment is left
+		Assertions.assertThat(folder.getRoot().list()).hasSize(2);
+		buffer = new PersistentBuffer(file, new KeyRegistry(), PERIOD, MAX_SIZE, 1024);
+		Assertions.assertThat(buffer.size()).isEqualTo(0);
+		buffer.close();
+	}
+	
+	@Test
+	public void testPeriod() throws Exception
+	{
+		File file = new File(folder.getRoot(), "buffer");
+		KeyRegistry keys = new KeyRegistry();
+		long now = System.currentTimeMillis();
+		
+		PersistentBuffer buffer = new PersistentBuffer(file, keys, PERIOD, MAX_SIZE, 1024);
+		buffer.append(batch(keys, now - 2 * PERIOD, 0, 50));
+		buffer.append(batch(keys, now, 50, 5));
+		
+		ResultBatch result = new ResultBatch(keys);
+		Assertions.assertThat(buffer.read(result, 1000, now)).isEqualTo(5);
+		Assertions.assertThat(buffer.getExpired()).isEqualTo(50);
+		Assertions.assertThat(result.getValue(0)).isEqualTo(value(50));
+		buffer.close();
+	}
+	
+	@Test
+	public void testPurgeExpired() throws Exception
+	{
+		File file = new File(folder.getRoot(), "buffer");
+		KeyRegistry keys = new KeyRegistry();
+		long now = System.currentTimeMillis();
+		
+		PersistentBuffer buffer = new PersistentBuffer(file, keys, PERIOD, MAX_SIZE, 1024);
+		// never read, the server is not available
+		buffer.append(batch(keys, now - 2 * PERIOD, 0, 100));
+		Assertions.assertThat(buffer.getExpired()).isGreaterThan(0);
+		Assertions.assertThat(buffer.size() + buffer.getExpired()).isEqualTo(100);
+		// only the segment written and the one filled before it are left
+		Assertions.assertThat(folder.getRoot().list()).hasSize(2).doesNotContain("buffer.0000000001");
+		
+		buffer.append(batch(keys, now, 100, 100));
+		Assertions.assertThat(buffer.getDropped()).isEqualTo(0);
+		Assertions.assertThat(buffer.size() + buffer.getExpired()).isEqualTo(200);
+		
+		ResultBatch result = new ResultBatch(keys);
+		Assertions.assertThat(buffer.read(result, 1000, now)).isEqualTo(100);
+		Assertions.assertThat(result.getValue(0)).isEqualTo(value(100));
+		buffer.close();
+	}
+	
+	@Test
+	public void testMaxSize() throws Exception
+	{
+		File file = new File(folder.getRoot(), "buffer");
+		KeyRegistry keys = new KeyRegistry();
+		long now = System.currentTimeMillis();
+		
+		PersistentBuffer buffer = new PersistentBuffer(file, keys, PERIOD, 4096, 1024);
+		buffer.append(batch(keys, now, 0, 500));
+		Assertions.assertThat(folder.getRoot().list()).hasSize(4);
+		Assertions.assertThat(buffer.getDropped()).isGreaterThan(0);
+		Assertions.assertThat(buffer.size() + buffer.getDropped()).isEqualTo(500);
+		
+		// the newest values are kept
+		ResultBatch result = new ResultBatch(keys);
+		int count = buffer.read(result, 1000, now);
+		Assertions.assertThat(count).isEqualTo(buffer.size() + count);
+		Assertions.assertThat(result.getValue(count - 1)).isEqualTo(value(499));
+		buffer.close();
+		
+		// the cap applies to files left by a bigger buffer
+		buffer = new PersistentBuffer(file, new KeyRegistry(), PERIOD, 2048, 1024);
+		Assertions.assertThat(folder.getRoot().list().length).isLessThanOrEqualTo(3);
+		buffer.close();
+	}
+	
+	@Test
+	public void testDamagedRecord() throws Exception
+	{
+		File file = new File(folder.getRoot(), "buffer");
+		KeyRegistry keys = new KeyRegistry();
+		long now = System.currentTimeMillis();
+		
+		PersistentBuffer buffer = new PersistentBuffer(file, keys, PERIOD, MAX_SIZE, 4096);
+		buffer.append(batch(keys, now, 0, 3));
+		buffer.close();
+		
+		// corrupt the last record
+		try (RandomAccessFile raf = new RandomAccessFile(new File(file.getPath() + ".0000000001"), "rw"))
+		{
+			int offset = 0;
+			for (int i = 0; i < 2; i++)
+			{
+				raf.seek(offset);
+				offset += 8 + raf.readInt();
+			}
+			raf.seek(offset + 8 + 3);
+			raf.write(0xFF);
+		}
+		
+		buffer = new PersistentBuffer(file, keys, PERIOD, MAX_SIZE, 4096);
+		Assertions.assertThat(buffer.size()).isEqualTo(2);
+		buffer.append(batch(keys, now, 3, 1));
+		
+		ResultBatch result = new ResultBatch(keys);
+		Assertions.assertThat(buffer.read(result, 1000, now)).isEqualTo(3);
+		Assertions.assertThat(result.getValue(2)).isEqualTo(value(3));
+		buffer.close();
+	}
+	
+	private ResultBatch batch(KeyRegistry keys, long clock, int from, int count)
+	{
+		ResultBuffer buffer = new ResultBuffer(1000, keys);
+		for (int i = from; i < from + count; i++)
+		{
+			int keyId = keys.intern(new ZabbixKey("key[" + i % 3 + "]"));
+			if (i % 10 == 9)
+				buffer.offerNotSupported(keyId, clock + i, value(i));
+			else if (i % 2 == 0)
+				buffer.offer(keyId, clock + i, (long)i);
+			else
+				buffer.offer(keyId, clock + i, value(i));
+		}
+		ResultBatch result = new ResultBatch(keys);
+		buffer.drainTo(result, count);
+		return result;
+	}
+	
+	private String value(int i)
+	{
+		return (i % 2 == 0 && i % 10 != 9) ? Long.toString(i) : "value " + i;
+	}
+}
@@ -0,0 +1,140 @@
+package com.github.zabbix.agent.data;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * @author Victor Kadachigov
+ */
+public class ResultBufferTest
+{
+	@Test(expected=IllegalArgumentException.class)
+	public void testZero() throws Exception
+	{
+		new ResultBuffer(0);
+	}
+
+	@Test
+	public void testOffer() throws Exception
+	{
+		ResultBuffer buffer = new ResultBuffer(5);
+		int keyId = buffer.getKeys().intern(new ZabbixKey("test"));
+		for (int i = 0; i < 10; i++)
+			buffer.offer(keyId, i, i + 1);
+		
+		Assertions.assertThat(buffer.size()).isEqualTo(5);
+		Assertions.assertThat(buffer.getDropped()).isEqualTo(5);
+		
+		ResultBatch batch = new ResultBatch(buffer.getKeys());
+		Assertions.assertThat(buffer.drainTo(batch, 100)).isEqualTo(5);
+		Assertions.assertThat(batch.getValue(0)).isEqualTo("6");
+		Assertions.assertThat(batch.getValue(4)).isEqualTo("10");
+		Assertions.assertThat(batch.getClock(4)).isEqualTo(9);
+		Assertions.assertThat(batch.getKey(0).getKey()).isEqualTo("test");
+		Assertions.assertThat(buffer.size()).isEqualTo(0);
+	}
+
+	@Test
+	public void testOfferExt() throws Exception
+	{
+		ResultBuffer buffer = new ResultBuffer(1);
+		buffer.offer(0, 0, 1);
+		buffer.offer(0, 0, 2);
+		
+		ResultBatch batch = new ResultBatch(buffer.getKeys());
+		buffer.drainTo(batch, 10);
+		Assertions.assertThat(batch.size()).isEqualTo(1);
+		Assertions.assertThat(batch.getValue(0)).isEqualTo("2");
+	}
+
+	@Test
+	public void testGrow() throws Exception
+	{
+		ResultBuffer buffer = new ResultBuffer(5000);
+		ResultBatch batch = new ResultBatch(buffer.getKeys());
+		for (int i = 0; i < 700; i++)
+			buffer.offer(0, i, i);
+		buffer.drainTo(batch, 500);
+		for (int i = 700; i < 6000; i++)
+			buffer.offer(0, i, i);
+		
+		Assertions.assertThat(buffer.size()).isEqualTo(5000);
+		batch.clear();
+		buffer.drainTo(batch, 10000);
+		Assertions.assertThat(batch.size()).isEqualTo(5000);
+		for (int i = 0; i < batch.size(); i++)
+			Assertions.assertThat(batch.getClock(i)).isEqualTo(1000 + i);
+	}
+
+	@Test
+	public void testValueTypes() throws Exception
+	{
+		ResultBuffer buffer = new ResultBuffer(10);
+		Object[] values = { 1, 2L, 0.1f, 0.1d, true, "text", new AtomicLong(3) };
+		for (Object value : values)
+			buffer.offer(0, 0, value);
+		buffer.offerNotSupported(0, 0, "error");
+		
+		ResultBatch batch = new ResultBatch(buffer.getKeys());
+		buffer.drainTo(batch, 100);
+		for (int i = 0; i < values.length; i++)
+		{
+			Assertions.assertThat(batch.getValue(i)).isEqualTo(values[i].toString());
+			Assertions.assertThat(batch.getState(i)).isEqualTo(ResultBatch.STATE_NORMAL);
+		}
+		Assertions.assertThat(batch.getValue(values.length)).isEqualTo("error");
+		Assertions.assertThat(batch.getState(values.length)).isEqualTo(ResultBatch.STATE_NOTSUPPORTED);
+	}
+
+	@Test
+	public void testAwait() throws Exception
+	{
+		final ResultBuffer buffer = new ResultBuffer(100);
+		Assertions.assertThat(buffer.await(1, 10, TimeUnit.MILLISECONDS)).isFalse();
+		
+		Thread producer = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				for (int i = 0; i < 10; i++)
+					buffer.offer(0, i, i);
+			}
+		};
+		producer.start();
+		long start = System.nanoTime();
+		Assertions.assertThat(buffer.await(10, 10, TimeUnit.SECONDS)).isTrue();
+		Assertions.assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(5));
+		
+		buffer.wakeUp();
+		Assertions.assertThat(buffer.await(100, 10, TimeUnit.SECONDS)).isFalse();
+	}
+
+	@Test
+	public void testConcurrentOffer() throws Exception
+	{
+		final ResultBuffer buffer = new ResultBuffer(1000);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++)
+		{
+			threads[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					for (int i = 0; i < 10000; i++)
+						buffer.offer(0, i, i);
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		
+		Assertions.assertThat(buffer.size()).isEqualTo(1000);
+		Assertions.assertThat(buffer.getDropped()).isEqualTo(39000);
+	}
+}
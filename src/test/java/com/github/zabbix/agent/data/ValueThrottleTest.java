@@ -0,0 +1,45 @@
+package com.github.zabbix.agent.data;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * @author Victor Kadachigov
+ */
+public class ValueThrottleTest
+{
+	@Test
+	public void testHeartbeat() throws Exception
+	{
+		ValueThrottle throttle = new ValueThrottle(60000);
+
+		Assertions.assertThat(throttle.offer(0, 1000, "Oracle", 1)).isTrue();
+		Assertions.assertThat(throttle.offer(0, 31000, "Oracle", 1)).isFalse();
+		// the heartbeat counts from the last value sent
+		Assertions.assertThat(throttle.offer(0, 61000, "Oracle", 1)).isTrue();
+		Assertions.assertThat(throttle.offer(0, 91000, "Oracle", 1)).isFalse();
+		Assertions.assertThat(throttle.offer(0, 92000, "OpenJDK", 1)).isTrue();
+		// a new server gets the value
+		Assertions.assertThat(throttle.offer(0, 93000, "OpenJDK", 3)).isTrue();
+		// clock went back
+		Assertions.assertThat(throttle.offer(0, 500, "OpenJDK", 3)).isTrue();
+	}
+
+	@Test
+	public void testKeys() throws Exception
+	{
+		ValueThrottle throttle = new ValueThrottle(60000);
+
+		Assertions.assertThat(throttle.offer(1000, 1000, 5L, 1)).isTrue();
+		Assertions.assertThat(throttle.offer(1, 1000, 5L, 1)).isTrue();
+		Assertions.assertThat(throttle.offer(1000, 2000, 5L, 1)).isFalse();
+		Assertions.assertThat(throttle.offer(1, 2000, 5L, 1)).isFalse();
+
+		throttle.reset(1);
+		Assertions.assertThat(throttle.offer(1, 3000, 5L, 1)).isTrue();
+
+		throttle.retain(new int[] { 1 });
+		Assertions.assertThat(throttle.offer(1, 4000, 5L, 1)).isFalse();
+		Assertions.assertThat(throttle.offer(1000, 4000, 5L, 1)).isTrue();
+	}
+}
@@ -0,0 +1,46 @@
+package com.github.zabbix.agent.util;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * @author Victor Kadachigov
+ */
+public class AllowListTest
+{
+	@Test
+	public void testAddresses() throws Exception
+	{
+		AllowList list = new AllowList(Arrays.asList("127.0.0.1", "10.1.0.0/16", "192.168.1.128/25", "::1", "fe80::/64"));
+		Assertions.assertThat(list.isAllowed(InetAddress.getByName("127.0.0.1"))).isTrue();
+		Assertions.assertThat(list.isAllowed(InetAddress.getByName("127.0.0.2"))).isFalse();
+		Assertions.assertThat(list.isAllowed(InetAddress.getByName("10.1.200.3"))).isTrue();
+		Assertions.assertThat(list.isAllowed(InetAddress.getByName("10.2.0.1"))).isFalse();
+		Assertions.assertThat(list.isAllowed(InetAddress.getByName("192.168.1.200"))).isTrue();
+		Assertions.assertThat(list.isAllowed(InetAddress.getByName("192.168.1.100"))).isFalse();
+		Assertions.assertThat(list.isAllowed(InetAddress.getByName("::1"))).isTrue();
+		Assertions.assertThat(list.isAllowed(InetAddress.getByName("fe80::1:2"))).isTrue();
+		Assertions.assertThat(list.isAllowed(InetAddress.getByName("fe81::1"))).isFalse();
+	}
+
+	@Test
+	public void testHostName() throws Exception
+	{
+		AllowList list = new AllowList(Arrays.asList("localhost"));
+		Assertions.assertThat(list.hasHostNames()).isTrue();
+		// not resolved yet
+		Assertions.assertThat(list.isAllowed(InetAddress.getByName("127.0.0.1"))).isFalse();
+		list.resolve();
+		Assertions.assertThat(list.isAllowed(InetAddress.getByName("127.0.0.1"))).isTrue();
+		Assertions.assertThat(list.isAllowed(InetAddress.getByName("10.0.0.1"))).isFalse();
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadPrefix() throws Exception
+	{
+		new AllowList(Arrays.asList("10.0.0.0/33"));
+	}
+}
@@ -0,0 +1,43 @@
+package com.github.zabbix.agent.util;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * @author Victor Kadachigov
+ */
+public class CircuitBreakerTest
+{
+	@Test
+	public void testBackoff() throws Exception
+	{
+		CircuitBreaker breaker = new CircuitBreaker(1000L, 3000L);
+		
+		Assertions.assertThat(breaker.onFailure(0)).isFalse();
+		Assertions.assertThat(breaker.onFailure(0)).isFalse();
+		Assertions.assertThat(breaker.isOpen(0)).isFalse();
+		
+		Assertions.assertThat(breaker.onFailure(0)).isTrue();
+		Assertions.assertThat(breaker.isOpen(999)).isTrue();
+		Assertions.assertThat(breaker.isOpen(1000)).isFalse();
+		
+		// the first attempt after quarantine fails 
+		Assertions.assertThat(breaker.onFailure(1000)).isTrue();
+		Assertions.assertThat(breaker.getBackoff()).isEqualTo(2000L);
+		Assertions.assertThat(breaker.onFailure(3000)).isTrue();
+		Assertions.assertThat(breaker.getBackoff()).isEqualTo(3000L);
+		Assertions.assertThat(breaker.isOpen(5999)).isTrue();
+	}
+
+	@Test
+	public void testSuccess() throws Exception
+	{
+		CircuitBreaker breaker = new CircuitBreaker(1000L, 3000L);
+		breaker.onFailure(0);
+		breaker.onFailure(0);
+		breaker.onSuccess();
+		
+		Assertions.assertThat(breaker.onFailure(0)).isFalse();
+		Assertions.assertThat(breaker.getFailures()).isEqualTo(1);
+	}
+}
@@ -0,0 +1,42 @@
+package com.github.zabbix.agent.util;
+
+import org.assertj.core.api.Assertions;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * @author Victor Kadachigov
+ */
+public class DiscoveryWriterTest
+{
+	@Test
+	public void testRows() throws Exception
+	{
+		DiscoveryWriter writer = new DiscoveryWriter(10);
+		for (int i = 0; i < 2; i++)
+		{
+			Assertions.assertThat(writer.beginRow()).isTrue();
+			writer.macro("{#NAME}", "a\"b\\c\n" + i).macro("{#N}", String.valueOf(i));
+			writer.endRow();
+		}
+		JSONObject json = new JSONObject(writer.finish());
+		Assertions.assertThat(json.getJSONArray("data").length()).isEqualTo(2);
+		Assertions.assertThat(json.getJSONArray("data").getJSONObject(1).getString("{#NAME}")).isEqualTo("a\"b\\c\n1");
+		Assertions.assertThat(json.has("truncated")).isFalse();
+	}
+	
+	@Test
+	public void testTruncated() throws Exception
+	{
+		DiscoveryWriter writer = new DiscoveryWriter(1);
+		Assertions.assertThat(writer.beginRow()).isTrue();
+		writer.macro("{#N}", "1");
+		writer.endRow();
+		Assertions.assertThat(writer.beginRow()).isFalse();
+		Assertions.assertThat(writer.getTruncateReason()).isEqualTo("more than 1 rows");
+		
+		JSONObject json = new JSONObject(writer.finish());
+		Assertions.assertThat(json.getJSONArray("data").length()).isEqualTo(1);
+		Assertions.assertThat(json.getBoolean("truncated")).isTrue();
+	}
+}
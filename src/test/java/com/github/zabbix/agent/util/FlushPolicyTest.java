@@ -0,0 +1,77 @@
+package com.github.zabbix.agent.util;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * @author Victor Kadachigov
+ */
+public class FlushPolicyTest
+{
+	@Test
+	public void testBatchSize() throws Exception
+	{
+		FlushPolicy policy = new FlushPolicy(1000, 5000L, 1000L);
+		Assertions.assertThat(policy.getBatchSize()).isEqualTo(1000);
+		
+		policy.onFailure();
+		Assertions.assertThat(policy.getBatchSize()).isEqualTo(500);
+		for (int i = 0; i < 10; i++)
+			policy.onFailure();
+		Assertions.assertThat(policy.getBatchSize()).isEqualTo(100);
+		
+		policy.onSuccess(100, 10L, null);
+		Assertions.assertThat(policy.getBatchSize()).isEqualTo(125);
+		policy.onSuccess(10, 10L, null); // not a full batch
+		Assertions.assertThat(policy.getBatchSize()).isEqualTo(125);
+		for (int i = 0; i < 20; i++)
+			policy.onSuccess(policy.getBatchSize(), 10L, null);
+		Assertions.assertThat(policy.getBatchSize()).isEqualTo(1000);
+		
+		policy.onSuccess(1000, 4000L, null);
+		Assertions.assertThat(policy.getBatchSize()).isEqualTo(250);
+	}
+
+	@Test
+	public void testSendDelay() throws Exception
+	{
+		FlushPolicy policy = new FlushPolicy(1000, 5000L, 1000L);
+		Assertions.assertThat(policy.getSendDelay()).isEqualTo(5000L);
+		
+		policy.onFailure();
+		Assertions.assertThat(policy.getSendDelay()).isEqualTo(10000L);
+		policy.onSuccess(10, 2000L, null); // slow
+		Assertions.assertThat(policy.getSendDelay()).isEqualTo(20000L);
+		policy.onSuccess(10, 10L, "processed: 5; failed: 0; total: 5; seconds spent: 0.000100"); // dropped
+		Assertions.assertThat(policy.getSendDelay()).isEqualTo(20000L);
+		
+		policy.onSuccess(10, 10L, "processed: 9; failed: 1; total: 10; seconds spent: 0.000100");
+		Assertions.assertThat(policy.getSendDelay()).isEqualTo(5000L);
+	}
+
+	@Test
+	public void testRejectedAndLost() throws Exception
+	{
+		FlushPolicy policy = new FlushPolicy(1000, 5000L, 1000L);
+		policy.onSuccess(10, 10L, "processed: 9; failed: 1; total: 10; seconds spent: 0.000100");
+		Assertions.assertThat(policy.getRejected()).isEqualTo(1);
+		Assertions.assertThat(policy.getLost()).isEqualTo(0);
+		
+		policy.onSuccess(10, 10L, "processed: 3; failed: 2; total: 5; seconds spent: 0.000100");
+		Assertions.assertThat(policy.getRejected()).isEqualTo(3);
+		Assertions.assertThat(policy.getLost()).isEqualTo(5);
+		
+		policy.onSuccess(10, 10L, null);
+		Assertions.assertThat(policy.getRejected()).isEqualTo(3);
+		Assertions.assertThat(policy.getLost()).isEqualTo(5);
+	}
+
+	@Test
+	public void testParseInfo() throws Exception
+	{
+		Assertions.assertThat(FlushPolicy.parseInfo("processed: 9; failed: 1; total: 10; seconds spent: 0.000133"))
+			.containsExactly(9, 1, 10);
+		Assertions.assertThat(FlushPolicy.parseInfo("something else")).isNull();
+		Assertions.assertThat(FlushPolicy.parseInfo(null)).isNull();
+	}
+}
@@ -0,0 +1,155 @@
+package com.github.zabbix.agent.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * @author Victor Kadachigov
+ */
+public class RingBufferTest
+{
+	@Test(expected=IllegalArgumentException.class)
+	public void testZero() throws Exception
+	{
+		new IntBuffer(0);
+	}
+
+	@Test
+	public void testOffer() throws Exception
+	{
+		IntBuffer buffer = new IntBuffer(5);
+		for (int i = 0; i < 10; i++)
+			buffer.offer(i + 1);
+
+		Assertions.assertThat(buffer.size()).isEqualTo(5);
+		Assertions.assertThat(buffer.getDropped()).isEqualTo(5);
+		Assertions.assertThat(buffer.drain(100)).containsExactly(6, 7, 8, 9, 10);
+	}
+
+	@Test
+	public void testDrain() throws Exception
+	{
+		IntBuffer buffer = new IntBuffer(5);
+		for (int i = 0; i < 7; i++)
+			buffer.offer(i + 1);
+
+		Assertions.assertThat(buffer.drain(2)).containsExactly(3, 4);
+		buffer.offer(8);
+		Assertions.assertThat(buffer.drain(10)).containsExactly(5, 6, 7, 8);
+		Assertions.assertThat(buffer.size()).isEqualTo(0);
+	}
+
+	@Test
+	public void testGrow() throws Exception
+	{
+		IntBuffer buffer = new IntBuffer(100);
+		for (int i = 0; i < 3; i++)
+			buffer.offer(i);
+		buffer.drain(2);
+		// wraps around before growing
+		for (int i = 3; i < 50; i++)
+			buffer.offer(i);
+
+		List<Integer> values = buffer.drain(100);
+		Assertions.assertThat(values).hasSize(48);
+		Assertions.assertThat(values.get(0)).isEqualTo(2);
+		Assertions.assertThat(values.get(47)).isEqualTo(49);
+		Assertions.assertThat(buffer.length()).isEqualTo(IntBuffer.INITIAL_LENGTH);
+	}
+
+	@Test
+	public void testConcurrentOffer() throws Exception
+	{
+		final IntBuffer buffer = new IntBuffer(1000);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++)
+		{
+			threads[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					for (int i = 0; i < 10000; i++)
+						buffer.offer(i);
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		Assertions.assertThat(buffer.size()).isEqualTo(1000);
+		Assertions.assertThat(buffer.getDropped()).isEqualTo(39000);
+	}
+
+	private static class IntBuffer extends RingBuffer
+	{
+		static final int INITIAL_LENGTH = 4;
+
+		private int[] values = new int[INITIAL_LENGTH];
+
+		IntBuffer(int capacity)
+		{
+			super(capacity);
+		}
+
+		void offer(int value)
+		{
+			lock.lock();
+			try
+			{
+				// claim() may replace the array
+				int index = claim();
+				values[index] = value;
+				commit();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		List<Integer> drain(int max)
+		{
+			List<Integer> result = new ArrayList<>();
+			lock.lock();
+			try
+			{
+				while (result.size() < max && size() > 0)
+				{
+					result.add(values[oldest()]);
+					remove();
+				}
+				shrink(INITIAL_LENGTH);
+			}
+			finally
+			{
+				lock.unlock();
+			}
+			return result;
+		}
+
+		@Override
+		protected int length()
+		{
+			return values.length;
+		}
+
+		@Override
+		protected void resize(int length, long from, long to)
+		{
+			int[] old = values;
+			values = new int[length];
+			for (long sequence = from; sequence < to; sequence++)
+				values[index(sequence)] = old[(int)(sequence % old.length)];
+		}
+
+		@Override
+		protected void release(int index)
+		{
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package com.github.zabbix.agent.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+/**
+ * @author Victor Kadachigov
+ */
+public class TimerWheelTest
+{
+	@Test
+	public void testExpire() throws Exception
+	{
+		final List<String> fired = new ArrayList<>();
+		final List<Long> times = new ArrayList<>();
+		TimerWheel wheel = new TimerWheel(100, 8);
+		TimerWheel.Target target = new TimerWheel.Target()
+		{
+			@Override
+			public void expired(int[] ids, int count, long time)
+			{
+				StringBuilder sb = new StringBuilder();
+				for (int i = 0; i < count; i++)
+					sb.append(ids[i]).append(' ');
+				fired.add(sb.toString().trim());
+				times.add(time);
+			}
+		};
+
+		long wall = System.currentTimeMillis();
+		wheel.schedule(target, 1, wall + 300);
+		wheel.schedule(target, 2, wall + 300);
+		// later round of the same slot
+		wheel.schedule(target, 3, wall + 300 + 800);
+		wheel.schedule(target, 4, wall - 1000);
+		// the wheel follows the monotonic clock
+		long now = TimerWheel.clock();
+
+		wheel.advance(now + 150);
+		Assertions.assertThat(fired).containsExactly("4");
+		fired.clear();
+
+		wheel.advance(now + 450);
+		// both are due at the same wall clock time, the conversion to ticks may split them by one tick 
+		Assertions.assertThat(fired.size()).isBetween(1, 2);
+		Assertions.assertThat(fired.toString()).contains("1").contains("2");
+		// targets get wall clock time of the tick
+		Assertions.assertThat(times.get(times.size() - 1)).isBetween(wall + 290, wall + 410);
+		fired.clear();
+
+		wheel.advance(now + 1000);
+		Assertions.assertThat(fired).isEmpty();
+		wheel.advance(now + 1250);
+		Assertions.assertThat(fired).containsExactly("3");
+		Assertions.assertThat(wheel.getLateTicks()).isGreaterThan(0);
+	}
+}